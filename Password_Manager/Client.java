@@ -11,19 +11,142 @@ assignment in my Security course.
 package Password_Manager;
 import Password_Manager.UI.MainUI;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
 /**
  * @brief The entry point of the program.
+ * 
+ * Without arguments, starts the GUI. Otherwise the first argument is a
+ * command, followed by the socket file of a VaultDaemon:
+ * 
+ * * ```daemon <socket>``` runs the daemon until it is killed.
+ * * ```unlock <socket> <user>``` unlocks a vault in the daemon.
+ * * ```lock <socket> <user>``` makes the daemon forget a vault.
+ * * ```get <socket> <user> <website>``` prints a password.
+ * * ```list <socket> <user>``` prints the websites, one per line.
+ * * ```add <socket> <user> <website>``` adds or changes an entry.
+ * * ```remove <socket> <user> <website>``` removes an entry.
+ * * ```metrics <socket>``` prints the Metrics report of the daemon.
+ * 
+ * Master passwords and new entry passwords are read from the console, or
+ * from the first line of the standard input when there is no console.
  */
 public class Client {
 	private static boolean restart = false;
 
 	public static void main(String[] args) {
+		try {
+			Metrics.register();
+		} catch (Exception e) {
+			// metrics are only missing from JMX
+		}
+
+		if (args.length > 0) {
+			System.exit(runCommand(args));
+		}
+
 		do {
 			restart = false;
 			new MainUI();
 		} while (restart);
 	}//end main()
 
+	/**
+	 * @brief Run a command line command
+	 *
+	 * @param      args  The command and its arguments
+	 *
+	 * @return     The exit status: 0 on success, 1 if the entry wasn't
+	 * found, 2 on errors.
+	 */
+	private static int runCommand(String[] args) {
+		String command = args[0];
+		int expected = command.equals("daemon") || command.equals("metrics") ? 2 :
+			command.equals("unlock") || command.equals("lock") || command.equals("list") ? 3 : 4;
+		if (args.length != expected) {
+			System.err.println("Usage: daemon|metrics|unlock|lock|get|list|add|remove <socket> [<user> [<website>]]");
+			return 2;
+		}
+
+		try {
+			if (command.equals("daemon")) {
+				final VaultDaemon daemon = new VaultDaemon(args[1], EncryptedMap.defaultLoadThreads);
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						try {
+							daemon.close();
+						} catch (IOException e) {
+							// exiting anyway
+						}
+					}
+				});
+				daemon.serve();
+				return 0;
+			}
+
+			DaemonClient client = new DaemonClient(args[1]);
+			try {
+				if (command.equals("metrics")) {
+					System.out.print(client.metrics());
+					return 0;
+				}
+
+				String user = args[2];
+				switch (command) {
+				case "unlock":
+					client.unlock(user, readSecret("Master password: "));
+					return 0;
+				case "lock":
+					client.lock(user);
+					return 0;
+				case "get":
+					String password = client.get(user, args[3]);
+					if (password == null)
+						return 1;
+					System.out.println(password);
+					return 0;
+				case "list":
+					for (String website : client.list(user))
+						System.out.println(website);
+					return 0;
+				case "add":
+					client.add(user, args[3], readSecret("Password: "));
+					return 0;
+				case "remove":
+					return client.remove(user, args[3]) ? 0 : 1;
+				default:
+					System.err.println("Unknown command " + command + ".");
+					return 2;
+				}
+			} finally {
+				client.close();
+			}
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			return 2;
+		}
+	}
+
+	/**
+	 * @brief Read a password without echoing it if possible
+	 *
+	 * @param      prompt       The prompt shown on the console
+	 *
+	 * @return     The password
+	 *
+	 * @throws     IOException  If there is no console and the standard input is empty.
+	 */
+	private static String readSecret(String prompt) throws IOException {
+		Console console = System.console();
+		if (console != null)
+			return new String(console.readPassword(prompt));
+		String line = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+		if (line == null)
+			throw new EOFException("No password on the standard input.");
+		return line;
+	}
+
 	/**
 	 * @brief Sets the restart flag to true. 
 	 * 
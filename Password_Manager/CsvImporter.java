@@ -0,0 +1,318 @@
+package Password_Manager;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * @brief Class for importing password entries from CSV files.
+ *
+ * The first column of each row is the website and the second one the
+ * password. Other columns are ignored. A first row of ```website,password```
+ * is treated as a header. Fields may be quoted as in RFC 4180, with
+ * doubled quotes inside quoted fields. A byte order mark at the start of
+ * the file, as some spreadsheets write, is skipped.
+ *
+ * The file is read one row at a time, so memory use depends on
+ * ```batchSize``` and not on the size of the file. Each batch is encrypted
+ * on a pool of threads and added with EncryptedMap::addEntries, which
+ * writes the whole batch to the journal at once.
+ *
+ * Rows whose website is not accepted by Naming::checkWebsite are skipped
+ * and reported in the result.
+ */
+public class CsvImporter {
+	private static final int batchSize = 1024; ///< Number of rows added to the map at once
+	private static final int maxFieldLength = 1 << 16; ///< Longest field accepted, to bound memory on malformed files
+	private static final int maxReportedErrors = 20; ///< Number of rejected rows described in the result
+	private static final char byteOrderMark = '\uFEFF'; ///< Character some programs write at the start of UTF-8 files
+	private final EncryptedMap passwords; ///< The map the entries are added to
+	private final int threads; ///< Number of encryption threads
+
+	/**
+	 * @brief Progress of an import
+	 */
+	public interface ProgressListener {
+		/**
+		 * @brief Called after each batch has been added
+		 *
+		 * @param      rows           The number of rows read so far
+		 * @param      rowsPerSecond  The average import speed so far
+		 */
+		public void progress(long rows, double rowsPerSecond);
+	}
+
+	/**
+	 * @brief Outcome of an import
+	 */
+	public static class Result {
+		public final long imported; ///< Number of rows added to the map
+		public final long rejected; ///< Number of rows skipped
+		public final long millis; ///< Duration of the import in milliseconds
+		public final ArrayList<String> errors; ///< Description of the first rejected rows
+
+		Result(long imported, long rejected, long millis, ArrayList<String> errors) {
+			this.imported = imported;
+			this.rejected = rejected;
+			this.millis = millis;
+			this.errors = errors;
+		}
+
+		/**
+		 * @return     The average number of rows read per second
+		 */
+		public double rowsPerSecond() {
+			return CsvImporter.rowsPerSecond(imported + rejected, millis);
+		}
+	}
+
+	/**
+	 * Constructs an importer adding entries to ```passwords```, encrypting
+	 * with ```EncryptedMap.defaultLoadThreads``` threads.
+	 *
+	 * @param      passwords  The password entries
+	 */
+	public CsvImporter(EncryptedMap passwords) {
+		this(passwords, EncryptedMap.defaultLoadThreads);
+	}
+
+	/**
+	 * Constructs an importer adding entries to ```passwords```.
+	 *
+	 * @param      passwords  The password entries
+	 * @param      threads    The number of encryption threads
+	 */
+	public CsvImporter(EncryptedMap passwords, int threads) {
+		this.passwords = passwords;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @brief Import a CSV file
+	 *
+	 * @param      filename     The name of the UTF-8 encoded CSV file
+	 * @param      listener     Told about the progress after each batch, or null
+	 *
+	 * @return     The number of imported and rejected rows
+	 *
+	 * @throws     IOException           If the file couldn't be read or the
+	 * journal couldn't be written.
+	 * @throws     InterruptedException  If the thread was interrupted. The
+	 * batches added before that are kept.
+	 * @throws     Exception             If an entry couldn't be encrypted.
+	 */
+	public Result importFile(String filename, ProgressListener listener)
+	throws IOException, InterruptedException, Exception {
+		Reader reader = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8);
+		try {
+			return importFrom(reader, listener);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @brief Import CSV data
+	 *
+	 * @param      reader       The CSV data. It is wrapped in a BufferedReader
+	 * if it doesn't support mark.
+	 * @param      listener     Told about the progress after each batch, or null
+	 *
+	 * @return     The number of imported and rejected rows
+	 *
+	 * @throws     IOException           If the data couldn't be read or the
+	 * journal couldn't be written.
+	 * @throws     InterruptedException  If the thread was interrupted. The
+	 * batches added before that are kept.
+	 * @throws     Exception             If an entry couldn't be encrypted.
+	 */
+	public Result importFrom(Reader reader, ProgressListener listener)
+	throws IOException, InterruptedException, Exception {
+		if (!reader.markSupported())
+			reader = new BufferedReader(reader);
+		reader.mark(1);
+		if (reader.read() != byteOrderMark)
+			reader.reset();
+
+		long start = System.nanoTime();
+		long imported = 0, rejected = 0, rowNumber = 0;
+		ArrayList<String> errors = new ArrayList<String>();
+		LinkedHashMap<String, String> batch = new LinkedHashMap<String, String>();
+		ArrayList<String> row = new ArrayList<String>();
+
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			while (readRow(reader, row)) {
+				++rowNumber;
+				if (row.size() == 1 && row.get(0).isEmpty())
+					continue;
+				if (rowNumber == 1 && isHeader(row))
+					continue;
+
+				try {
+					if (row.size() < 2)
+						throw new Exception("Expected a website and a password.");
+					Naming.checkWebsite(row.get(0));
+				} catch (Exception e) {
+					++rejected;
+					if (errors.size() < maxReportedErrors)
+						errors.add("Row " + rowNumber + ": " + e.getMessage());
+					continue;
+				}
+
+				batch.remove(row.get(0));
+				batch.put(row.get(0), row.get(1));
+				if (batch.size() == batchSize) {
+					imported += addBatch(batch, pool);
+					report(listener, imported + rejected, start);
+				}
+			}
+			imported += addBatch(batch, pool);
+			report(listener, imported + rejected, start);
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
+		}
+
+		long millis = (System.nanoTime() - start) / 1000000;
+		return new Result(imported, rejected, millis, errors);
+	}
+
+	/**
+	 * @brief Add a batch of entries to the map and empty it
+	 *
+	 * @param      batch        The entries
+	 * @param      pool         The encryption threads, or null
+	 *
+	 * @return     The number of entries added
+	 *
+	 * @throws     InterruptedException  If the thread was interrupted before
+	 * the batch was added.
+	 * @throws     Exception             If the batch couldn't be encrypted or written.
+	 */
+	private int addBatch(LinkedHashMap<String, String> batch, ExecutorService pool)
+	throws InterruptedException, Exception {
+		if (Thread.interrupted())
+			throw new InterruptedException("Import interrupted.");
+		if (batch.isEmpty())
+			return 0;
+
+		int added = batch.size();
+		passwords.addEntries(batch, pool);
+		batch.clear();
+		return added;
+	}
+
+	/**
+	 * @brief Tell the listener how far the import got
+	 *
+	 * @param      listener  The listener, or null
+	 * @param      rows      The number of rows read
+	 * @param      start     When the import started, from System.nanoTime
+	 */
+	private static void report(ProgressListener listener, long rows, long start) {
+		if (listener != null)
+			listener.progress(rows, rowsPerSecond(rows, (System.nanoTime() - start) / 1000000));
+	}
+
+	/**
+	 * @brief Average speed of an import
+	 *
+	 * @param      rows    The number of rows
+	 * @param      millis  The time taken, in milliseconds
+	 *
+	 * @return     The number of rows per second
+	 */
+	private static double rowsPerSecond(long rows, long millis) {
+		return rows * 1000.0 / Math.max(1, millis);
+	}
+
+	/**
+	 * @brief Check if a row is the header row
+	 *
+	 * @param      row   The first row of the file
+	 *
+	 * @return     True if the row names the website and password columns.
+	 */
+	private static boolean isHeader(ArrayList<String> row) {
+		return row.size() >= 2 && row.get(0).trim().equalsIgnoreCase("website") &&
+			row.get(1).trim().equalsIgnoreCase("password");
+	}
+
+	/**
+	 * @brief Read one CSV row
+	 *
+	 * Reads fields until the end of the row. Line breaks inside quoted
+	 * fields are part of the field. A quoted field must be followed by a
+	 * comma or the end of the row. A ```\r\n``` line ending is accepted.
+	 *
+	 * @param      reader       The CSV data. It must support mark.
+	 * @param      row          Cleared, and then filled with the fields of the row
+	 *
+	 * @return     False if the end of the data was reached before the row started.
+	 *
+	 * @throws     IOException  If the data couldn't be read, a field is longer
+	 * than ```maxFieldLength```, or a quoted field is not closed or is
+	 * followed by other text.
+	 */
+	private static boolean readRow(Reader reader, ArrayList<String> row) throws IOException {
+		row.clear();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false, closed = false, started = false;
+		while (true) {
+			int c = reader.read();
+			if (c == -1) {
+				if (quoted)
+					throw new IOException("Quoted field is not closed at the end of the file.");
+				if (started)
+					row.add(field.toString());
+				return started;
+			}
+			started = true;
+
+			if (quoted) {
+				if (c != '"') {
+					append(field, c);
+					continue;
+				}
+				reader.mark(1);
+				if (reader.read() == '"') {
+					append(field, '"');
+				} else {
+					reader.reset();
+					quoted = false;
+					closed = true;
+				}
+			} else if (closed && c != ',' && c != '\n' && c != '\r') {
+				throw new IOException("Unexpected text after the closing quote of a field.");
+			} else if (c == '"' && field.length() == 0) {
+				quoted = true;
+			} else if (c == ',') {
+				row.add(field.toString());
+				field.setLength(0);
+				closed = false;
+			} else if (c == '\n') {
+				row.add(field.toString());
+				return true;
+			} else if (c != '\r') {
+				append(field, c);
+			}
+		}
+	}
+
+	/**
+	 * @brief Append a character to a field
+	 *
+	 * @param      field        The field
+	 * @param      c            The character
+	 *
+	 * @throws     IOException  If the field becomes longer than ```maxFieldLength```.
+	 */
+	private static void append(StringBuilder field, int c) throws IOException {
+		if (field.length() == maxFieldLength)
+			throw new IOException("CSV field longer than " + maxFieldLength + " characters.");
+		field.append((char)c);
+	}
+}
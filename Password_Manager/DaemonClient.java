@@ -0,0 +1,184 @@
+package Password_Manager;
+
+import Password_Manager.DaemonProtocol.Frame;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * @brief Client of a VaultDaemon
+ *
+ * Sends one request at a time and waits for its response. Scripts that
+ * want to pipeline requests can speak DaemonProtocol directly.
+ *
+ * The methods are synchronized, so a client can be shared by threads.
+ */
+public class DaemonClient implements Closeable {
+	private final SocketChannel channel; ///< Connection to the daemon
+	private int nextId; ///< Id of the next request
+
+	/**
+	 * Constructs a client connected to the daemon listening on ```socketFilename```.
+	 *
+	 * @param      socketFilename  The socket file of the daemon
+	 *
+	 * @throws     IOException     If the daemon couldn't be reached.
+	 */
+	public DaemonClient(String socketFilename) throws IOException {
+		channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFilename));
+	}
+
+	/**
+	 * @brief Unlock a vault in the daemon
+	 *
+	 * @param      user       The username
+	 * @param      password   The master password
+	 *
+	 * @throws     Exception  If the vault couldn't be unlocked.
+	 */
+	public void unlock(String user, String password) throws Exception {
+		expectOk(request(DaemonProtocol.UNLOCK, user, password), user);
+	}
+
+	/**
+	 * @brief Make the daemon forget a vault
+	 *
+	 * @param      user       The username
+	 *
+	 * @throws     Exception  If the request failed.
+	 */
+	public void lock(String user) throws Exception {
+		expectOk(request(DaemonProtocol.LOCK, user), user);
+	}
+
+	/**
+	 * @brief Get the password of a website
+	 *
+	 * @param      user       The username
+	 * @param      website    The website
+	 *
+	 * @return     The password, or null if there is no entry for ```website```.
+	 *
+	 * @throws     Exception  If the vault isn't unlocked or the request failed.
+	 */
+	public String get(String user, String website) throws Exception {
+		Frame response = request(DaemonProtocol.GET, user, website);
+		if (response.code == DaemonProtocol.NOT_FOUND)
+			return null;
+		expectOk(response, user);
+		return response.fields.get(0);
+	}
+
+	/**
+	 * @brief List the websites of a vault
+	 *
+	 * @param      user       The username
+	 *
+	 * @return     The websites, sorted as by WebsiteIndex::order
+	 *
+	 * @throws     Exception  If the vault isn't unlocked or the request failed.
+	 */
+	public List<String> list(String user) throws Exception {
+		Frame response = request(DaemonProtocol.LIST, user);
+		expectOk(response, user);
+		return response.fields;
+	}
+
+	/**
+	 * @brief Add an entry, or change its password
+	 *
+	 * @param      user       The username
+	 * @param      website    The website
+	 * @param      password   The password
+	 *
+	 * @throws     Exception  If the vault isn't unlocked or the request failed.
+	 */
+	public void add(String user, String website, String password) throws Exception {
+		expectOk(request(DaemonProtocol.ADD, user, website, password), user);
+	}
+
+	/**
+	 * @brief Remove an entry
+	 *
+	 * @param      user       The username
+	 * @param      website    The website
+	 *
+	 * @return     False if there was no entry for ```website```.
+	 *
+	 * @throws     Exception  If the vault isn't unlocked or the request failed.
+	 */
+	public boolean remove(String user, String website) throws Exception {
+		Frame response = request(DaemonProtocol.REMOVE, user, website);
+		if (response.code == DaemonProtocol.NOT_FOUND)
+			return false;
+		expectOk(response, user);
+		return true;
+	}
+
+	/**
+	 * @brief Get the Metrics report of the daemon
+	 *
+	 * @return     The report
+	 *
+	 * @throws     Exception  If the request failed.
+	 */
+	public String metrics() throws Exception {
+		Frame response = request(DaemonProtocol.METRICS);
+		expectOk(response, null);
+		return response.fields.get(0);
+	}
+
+	/**
+	 * @brief Closes the connection
+	 *
+	 * @throws     IOException  If the connection couldn't be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @brief Send a request and wait for its response
+	 *
+	 * @param      operation    The operation
+	 * @param      fields       The fields of the request
+	 *
+	 * @return     The response
+	 *
+	 * @throws     IOException  If the connection failed.
+	 */
+	private synchronized Frame request(byte operation, String... fields) throws IOException {
+		int id = nextId++;
+		DaemonProtocol.write(channel, DaemonProtocol.encode(new Frame(id, operation, Arrays.asList(fields))));
+		Frame response = DaemonProtocol.read(channel);
+		if (response == null)
+			throw new EOFException("The daemon closed the connection.");
+		if (response.id != id)
+			throw new IOException("Response to request " + response.id + " instead of " + id + ".");
+		return response;
+	}
+
+	/**
+	 * @brief Turn an unsuccessful response into an exception
+	 *
+	 * @param      response   The response
+	 * @param      user       The user of the request
+	 *
+	 * @throws     Exception  If the status is not OK.
+	 */
+	private static void expectOk(Frame response, String user) throws Exception {
+		switch (response.code) {
+		case DaemonProtocol.OK:
+			return;
+		case DaemonProtocol.LOCKED:
+			throw new Exception("The vault of " + user + " is not unlocked.");
+		case DaemonProtocol.ERROR:
+			throw new Exception(response.fields.isEmpty() ? "Request failed." : response.fields.get(0));
+		default:
+			throw new Exception("Unexpected response status " + response.code + ".");
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package Password_Manager;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @brief Binary protocol spoken by VaultDaemon and DaemonClient
+ *
+ * Requests and responses are frames. All integers are 4 byte little endian,
+ * as in the files written by EncodedFileWriter. A frame is:
+ *
+ * 1. The length of the rest of the frame.
+ * 2. An id chosen by the client. The response to a request has the same id.
+ * 3. One byte: the operation of a request, or the status of a response.
+ * 4. Any number of UTF-8 strings, each one its length followed by its bytes.
+ *
+ * Clients may send several requests without waiting for the responses.
+ * Responses can arrive in a different order than the requests, except
+ * that requests changing a vault (UNLOCK, LOCK, ADD, REMOVE) see the
+ * effect of all the earlier requests on the same connection, and the
+ * later requests see theirs.
+ *
+ * | Operation | Fields                   | Response fields           |
+ * |-----------|--------------------------|---------------------------|
+ * | UNLOCK    | user, master password    |                           |
+ * | LOCK      | user                     |                           |
+ * | GET       | user, website            | password                  |
+ * | LIST      | user                     | websites, sorted          |
+ * | ADD       | user, website, password  |                           |
+ * | REMOVE    | user, website            |                           |
+ * | METRICS   |                          | Metrics::report           |
+ *
+ * A response with status ERROR has the error message as its only field.
+ */
+public class DaemonProtocol {
+	public static final byte UNLOCK = 1; ///< Unlock a vault and keep it in memory
+	public static final byte LOCK = 2; ///< Forget an unlocked vault
+	public static final byte GET = 3; ///< Get the password of a website
+	public static final byte LIST = 4; ///< List the websites of a vault
+	public static final byte ADD = 5; ///< Add an entry, or change its password
+	public static final byte REMOVE = 6; ///< Remove an entry
+	public static final byte METRICS = 7; ///< Get the Metrics report of the daemon
+
+	public static final byte OK = 0; ///< The request succeeded
+	public static final byte NOT_FOUND = 1; ///< The website has no entry
+	public static final byte LOCKED = 2; ///< The vault of the user is not unlocked
+	public static final byte ERROR = 3; ///< The request failed
+
+	static final int maxFrameSize = 1 << 24; ///< Longest frame accepted, to bound memory on bad input
+	private static final int headerSize = 9; ///< Size of the length, id and operation or status
+
+	/**
+	 * @brief A request or response
+	 */
+	public static class Frame {
+		public final int id; ///< The request id
+		public final byte code; ///< The operation of a request, or the status of a response
+		public final List<String> fields; ///< The strings of the frame
+
+		public Frame(int id, byte code, List<String> fields) {
+			this.id = id;
+			this.code = code;
+			this.fields = fields;
+		}
+	}
+
+	/**
+	 * @brief Encode a frame
+	 *
+	 * @param      frame  The frame
+	 *
+	 * @return     A buffer with the encoded frame, ready to be written
+	 */
+	static ByteBuffer encode(Frame frame) {
+		byte[][] fields = new byte[frame.fields.size()][];
+		int size = headerSize;
+		for (int i = 0; i < fields.length; ++i) {
+			fields[i] = frame.fields.get(i).getBytes(StandardCharsets.UTF_8);
+			size += 4 + fields[i].length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(size - 4).putInt(frame.id).put(frame.code);
+		for (byte[] field : fields)
+			buffer.putInt(field.length).put(field);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @brief Read one frame from a blocking channel
+	 *
+	 * @param      channel      The channel
+	 *
+	 * @return     The frame, or null if the channel was closed between frames.
+	 *
+	 * @throws     IOException  If the channel couldn't be read, was closed in
+	 * the middle of a frame, or the frame is malformed.
+	 */
+	static Frame read(ReadableByteChannel channel) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		if (!readFully(channel, length, true))
+			return null;
+		int size = length.getInt(0);
+		if (size < headerSize - 4 || size > maxFrameSize)
+			throw new IOException("Bad frame length " + size + ".");
+
+		ByteBuffer data = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, data, false);
+		data.flip();
+		int id = data.getInt();
+		byte code = data.get();
+		ArrayList<String> fields = new ArrayList<String>();
+		while (data.hasRemaining()) {
+			if (data.remaining() < 4)
+				throw new IOException("Truncated field length.");
+			int fieldSize = data.getInt();
+			if (fieldSize < 0 || fieldSize > data.remaining())
+				throw new IOException("Bad field length " + fieldSize + ".");
+			fields.add(new String(data.array(), data.position(), fieldSize, StandardCharsets.UTF_8));
+			data.position(data.position() + fieldSize);
+		}
+		return new Frame(id, code, fields);
+	}
+
+	/**
+	 * @brief Write a whole buffer to a blocking channel
+	 *
+	 * @param      channel      The channel
+	 * @param      buffer       The data
+	 *
+	 * @throws     IOException  If the channel couldn't be written.
+	 */
+	static void write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * @brief Fill a buffer from a blocking channel
+	 *
+	 * @param      channel      The channel
+	 * @param      buffer       The buffer
+	 * @param      endAllowed   Whether the channel may be closed before the first byte
+	 *
+	 * @return     False if the channel was closed before the first byte.
+	 *
+	 * @throws     IOException  If the channel couldn't be read, or was closed
+	 * after the first byte.
+	 */
+	private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer,
+		boolean endAllowed) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				if (endAllowed && buffer.position() == 0)
+					return false;
+				throw new EOFException("Connection closed in the middle of a frame.");
+			}
+		}
+		return true;
+	}
+}
@@ -46,14 +46,19 @@ public class EncodedFileReader {
 	 */
 	public ArrayList<ByteArray> readData() throws IOException {
 		ArrayList<ByteArray> dataEntries = new ArrayList<ByteArray>();
+		long start = Metrics.start();
+		long bytes = 0;
 		try {
 			while (true) { // breaks with EOFException
 				byte[] rawBytes = decodeBytes();
+				bytes += 4 + rawBytes.length;
 				ByteArray entry = new ByteArray(rawBytes);
 				dataEntries.add(entry);
 			}
 		} catch (EOFException e) {
 			return dataEntries;
+		} finally {
+			Metrics.fileRead.stop(start, bytes);
 		}
 	}
 
@@ -101,10 +106,22 @@ public class EncodedFileReader {
 	 *
 	 * @return     decoded integer
 	 */
-	private int decodeInt(byte[] encodedInt) {
+	static int decodeInt(byte[] encodedInt) {
+		return decodeInt(encodedInt, 0);
+	}
+
+	/**
+	 * @brief Returns an integer decoded from 4 bytes of an array
+	 *
+	 * @param      encodedInt  The array containing the encoded integer
+	 * @param      offset      The index of the first of the 4 bytes
+	 *
+	 * @return     decoded integer
+	 */
+	static int decodeInt(byte[] encodedInt, int offset) {
 		int decodedInt = 0;
 		for (int i = 0; i < 4; ++i) {
-			int decodedByte = encodedInt[i] << 8*i;
+			int decodedByte = (encodedInt[offset + i] & 0xFF) << 8*i;
 			decodedInt = decodedInt | decodedByte;
 		}
 
@@ -1,6 +1,8 @@
 package Password_Manager;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
 
@@ -10,15 +12,39 @@ import java.util.*;
  * Data entries are written contiguously to a file.
  * Each entry is encoded using its length as an integer
  * represented by 4 bytes, followed by the data itself.
+ * 
+ * A call to writeData encodes all its entries into one direct buffer
+ * and writes it with a single channel write, instead of one write per
+ * entry. The buffer is kept per thread and reused by later writers, as
+ * long as it is not bigger than ```maxRetainedBufferSize```. Larger record
+ * sets are written in chunks of that size.
+ *
+ * A file that is replaced rather than appended to is written to a
+ * temporary file with ```tempSuffix``` appended to its name. close forces
+ * it to the storage device and moves it over the file, so the file is
+ * always either the old or the complete new one, even after a crash. The
+ * rename itself is durable once the directory is synced, which close does
+ * unless told otherwise, so that a caller writing several files can sync
+ * the directory once for all of them with syncDirectory. Directory syncs
+ * go through GroupCommit, so concurrent writers in the same directory
+ * share them.
  */
 public class EncodedFileWriter {
+	private static final int maxRetainedBufferSize = 1 << 20; ///< Largest encoding buffer kept for reuse
+	private static final ThreadLocal<ByteBuffer> encodingBuffer = new ThreadLocal<ByteBuffer>(); ///< Reusable encoding buffer of each thread
+	private static final String tempSuffix = ".part"; ///< Suffix of the file written before replacing a file
 	private FileOutputStream fileOutStream; ///< The file we are writing to.
+	private final boolean sync; ///< If true, data is forced to the storage device after each write
+	private final String filename; ///< The file being written
+	private final String tempFilename; ///< The temporary file written instead, or null when appending
+	private boolean failed; ///< Whether a write failed and the temporary file was deleted
 
 	/**
 	 * Constructs an object to write to file ```filename```
 	 * 
 	 * This constructor tries to create a new file if it
 	 * doesn't already exist, or replace the file if it exists.
+	 * The file is only created or replaced by close.
 	 *
 	 * @param      filename  The file we want to write to.
 	 * 
@@ -26,7 +52,7 @@ public class EncodedFileWriter {
 	 * a directory, or if the file can't be created or opened.
 	 */
 	public EncodedFileWriter(String filename) throws FileNotFoundException {
-		fileOutStream = new FileOutputStream(filename);
+		this(filename, false, false);
 	}
 
 	/**
@@ -34,14 +60,35 @@ public class EncodedFileWriter {
 	 * 
 	 * If ```append``` is true, the file should already exist, and
 	 * any write operation will be performed at the end of the file.
-	 * Otherwise, a new file will be created if possible.
+	 * Otherwise, a new file will be created if possible, and moved over
+	 * the file by close.
 	 *
 	 * @param      filename  The filename to write to
 	 * @param      append    If true, write operations write to the end
 	 * of an existing file.
 	 */
 	public EncodedFileWriter(String filename, boolean append) throws FileNotFoundException {
-		fileOutStream = new FileOutputStream(filename, append);
+		this(filename, append, false);
+	}
+
+	/**
+	 * Constructs an object to write to file ```filename```
+	 * 
+	 * If ```sync``` is true, every call to writeData returns only after
+	 * the data has been forced to the storage device (fsync). Appenders
+	 * that share the file with other threads should rather use GroupCommit.
+	 *
+	 * @param      filename  The filename to write to
+	 * @param      append    If true, write operations write to the end
+	 * of an existing file.
+	 * @param      sync      If true, force each write to the storage device
+	 */
+	public EncodedFileWriter(String filename, boolean append, boolean sync)
+	throws FileNotFoundException {
+		this.filename = filename;
+		this.tempFilename = append ? null : filename + tempSuffix;
+		fileOutStream = new FileOutputStream(append ? filename : tempFilename, append);
+		this.sync = sync;
 	}
 
 	/**
@@ -50,69 +97,167 @@ public class EncodedFileWriter {
 	 * Closes the fileOutStream object. After the caller finished using the file,
 	 * this function should always be called to release system resources.
 	 *
+	 * A replaced file is forced to the storage device and moved over the
+	 * old one, and the directory is synced, so the new file is durable when
+	 * this returns.
+	 *
 	 * @throws     IOException  If an error occurred while closing the file stream.
 	 */
 	public void close() throws IOException {
-		fileOutStream.close();
+		close(true);
+	}
+
+	/**
+	 * @brief Closes the file, optionally leaving the directory unsynced
+	 *
+	 * Same as close, but with ```syncDirectory``` false the rename of a
+	 * replaced file is not yet durable. The caller must call syncDirectory
+	 * afterwards, typically once after writing several files.
+	 *
+	 * @param      syncDirectory  Whether to sync the directory of the file
+	 *
+	 * @throws     IOException    If an error occurred while closing, syncing
+	 * or moving the file.
+	 */
+	public void close(boolean syncDirectory) throws IOException {
+		if (tempFilename == null || failed) {
+			fileOutStream.close();
+			return;
+		}
+
+		try {
+			fileOutStream.getChannel().force(true);
+		} finally {
+			fileOutStream.close();
+		}
+		Files.move(Paths.get(tempFilename), Paths.get(filename),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (syncDirectory)
+			syncDirectory(filename);
+	}
+
+	/**
+	 * @brief Make the files created or replaced in a directory durable
+	 *
+	 * Syncs the directory holding ```filename```. Concurrent calls for the
+	 * same directory share one sync.
+	 *
+	 * @param      filename     A file in the directory
+	 *
+	 * @throws     IOException  If the sync was interrupted.
+	 */
+	public static void syncDirectory(String filename) throws IOException {
+		GroupCommit.ofDirectory(filename).sync();
 	}
 
 	/**
 	 * @brief Writes data to file
 	 * 
-	 * Writes a list of data entries to the file.
+	 * Writes a list of data entries to the file. The entries are encoded
+	 * into a buffer first, so the file is written with a single call as
+	 * long as the encoded entries fit in ```maxRetainedBufferSize``` bytes.
 	 *
 	 * @param      dataToWrite  The data to write as a list of ByteArray objects
 	 *
 	 * @throws     IOException  If an error occurred while writing to the file.
 	 */
-	public void writeData(ArrayList<ByteArray> dataToWrite) throws IOException {
-		for (ByteArray entry : dataToWrite) {
-			byte[] encoded = encodeBytes(entry.getRawBytes());
-
-			try {
-				fileOutStream.write(encoded);
-			} catch (IOException e) {
-				fileOutStream.close();
-				throw e;
+	public void writeData(List<ByteArray> dataToWrite) throws IOException {
+		long encodedSize = 0;
+		for (ByteArray entry : dataToWrite)
+			encodedSize += 4 + entry.length();
+
+		FileChannel channel = fileOutStream.getChannel();
+		ByteBuffer buffer = getEncodingBuffer(encodedSize);
+		long start = Metrics.start();
+		try {
+			for (ByteArray entry : dataToWrite) {
+				byte[] bytes = entry.getRawBytes();
+				if (buffer.remaining() < 4)
+					flush(channel, buffer);
+				buffer.putInt(bytes.length);
+
+				int written = 0;
+				while (written < bytes.length) {
+					if (!buffer.hasRemaining())
+						flush(channel, buffer);
+					int chunk = Math.min(buffer.remaining(), bytes.length - written);
+					buffer.put(bytes, written, chunk);
+					written += chunk;
+				}
+			}
+			flush(channel, buffer);
+
+			if (sync)
+				channel.force(false);
+		} catch (IOException e) {
+			fileOutStream.close();
+			if (tempFilename != null) {
+				failed = true;
+				try {
+					Files.deleteIfExists(Paths.get(tempFilename));
+				} catch (IOException deleteError) {
+					e.addSuppressed(deleteError);
+				}
 			}
+			throw e;
+		} finally {
+			Metrics.fileWrite.stop(start, encodedSize);
 		}
 	}
 
 	/**
-	 * @brief Encodes bytes to be written to file
+	 * @brief Write the contents of a buffer to the file
 	 * 
-	 * Encodes a byte[] to the format that will be written to file.
-	 * First, 4 bytes representing the length of the byte
-	 * array as an integer are written, followed by the byte array
-	 * itself.
+	 * Writes everything between the start of ```buffer``` and its position,
+	 * and clears the buffer so it can be filled again.
 	 *
-	 * @param      bytes  The bytes
+	 * @param      channel      The channel of the file
+	 * @param      buffer       The buffer
 	 *
-	 * @return     encoded bytes to be written to the file.
+	 * @throws     IOException  If an error occurred while writing to the file.
 	 */
-	private byte[] encodeBytes(byte[] bytes) {
-		int length = bytes.length;
-		byte[] lengthBytes = encodeInt(length);
-
-		byte[] encodedBytes = new byte[length+4];
-		System.arraycopy(lengthBytes, 0, encodedBytes, 0, 4);
-		System.arraycopy(bytes, 0, encodedBytes, 4, length);
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
 
-		return encodedBytes;
+	/**
+	 * @brief Get a buffer to encode entries into
+	 * 
+	 * Returns the calling thread's reusable buffer, growing it if it is
+	 * smaller than ```size``` and below ```maxRetainedBufferSize```.
+	 * Entries bigger than the returned buffer are written in chunks.
+	 *
+	 * @param      size  The size of the encoded entries
+	 *
+	 * @return     An empty little-endian direct buffer
+	 */
+	private static ByteBuffer getEncodingBuffer(long size) {
+		int capacity = (int)Math.min(Math.max(size, 4), maxRetainedBufferSize);
+		ByteBuffer buffer = encodingBuffer.get();
+		if (buffer == null || buffer.capacity() < capacity) {
+			buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+			encodingBuffer.set(buffer);
+		}
+		buffer.clear();
+		return buffer;
 	}
 
 	/**
 	 * @brief Encode an integer to a byte[]
 	 *
 	 * Encodes an integer to a byte array, starting from
-	 * the rightmost byte. Mostly used to encode entry
-	 * lengths when writing to a file.
+	 * the rightmost byte, in the same order writeData
+	 * uses for entry lengths. Used to encode integers
+	 * stored inside entries, like the vault index.
 	 *
 	 * @param      toEncode  Integer to encode
 	 *
 	 * @return     The array of 4 bytes representing the encoded integer.
 	 */
-	private byte[] encodeInt(int toEncode) {
+	static byte[] encodeInt(int toEncode) {
 		byte[] encodedInt = new byte[4];
 
 		for (int i = 0; i < 4; ++i) {
@@ -0,0 +1,71 @@
+package Password_Manager;
+
+import java.util.Arrays;
+
+/**
+ * @brief An encrypted password entry as it is stored on disk
+ * 
+ * Holds the encrypted website name and the encrypted password of an
+ * entry. Both fields are the output of StringCipher::tryEncrypt, so
+ * they can be moved between files without being decrypted.
+ *
+ * Entries are equal when their encrypted fields are. Every encryption
+ * uses a new nonce, so two equal entries come from the same encryption.
+ */
+public class EncryptedEntry {
+	private final ByteArray website; ///< The encrypted website name
+	private final ByteArray password; ///< The encrypted password
+
+	/**
+	 * Constructs an entry from its encrypted fields.
+	 *
+	 * @param      website   The encrypted website name
+	 * @param      password  The encrypted password
+	 */
+	public EncryptedEntry(ByteArray website, ByteArray password) {
+		this.website = website;
+		this.password = password;
+	}
+
+	/**
+	 * @return     The encrypted website name
+	 */
+	public ByteArray getWebsite() {
+		return website;
+	}
+
+	/**
+	 * @return     The encrypted password
+	 */
+	public ByteArray getPassword() {
+		return password;
+	}
+
+	/**
+	 * @brief Size of the entry on disk
+	 * 
+	 * Returns the number of bytes the entry takes in an encoded file,
+	 * counting the 4 byte length prefix of each field.
+	 *
+	 * @return     The encoded size in bytes
+	 */
+	public int encodedSize() {
+		return 4 + website.length() + 4 + password.length();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other)
+			return true;
+		if (!(other instanceof EncryptedEntry))
+			return false;
+		EncryptedEntry entry = (EncryptedEntry)other;
+		return Arrays.equals(website.getRawBytes(), entry.website.getRawBytes()) &&
+			Arrays.equals(password.getRawBytes(), entry.password.getRawBytes());
+	}
+
+	@Override
+	public int hashCode() {
+		return 31*Arrays.hashCode(website.getRawBytes()) + Arrays.hashCode(password.getRawBytes());
+	}
+}
@@ -3,26 +3,123 @@ package Password_Manager;
 import java.io.*;
 import java.util.*;
 import javax.crypto.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.*;
 import Password_Manager.Encryption.StringCipher;
+import Password_Manager.Encryption.CipherPool;
+import Password_Manager.Encryption.KdfParameters;
 import Password_Manager.Encryption.CipherBuilder;
 import Password_Manager.Encryption.Hmac;
+import Password_Manager.Encryption.UnlockSession;
 
 /**
  * @brief Structure that keeps password entries in memory
  * 
- * A structure based on a HashMap, that stores the password entries
+ * A structure based on hash maps, that stores the password entries
  * in memory, and handles communication with files in disk.
+ * 
+ * The entries are stored on disk in a single vault file (see VaultFile).
+ * Users that still have one file per entry are migrated to a vault
+ * the first time they log in.
+ * 
+ * Changes are not written to the vault directly. Each one is appended to
+ * a journal (see VaultJournal) that is replayed on top of the vault at
+ * login. Once the journal grows past ```maxJournalSize```, or past
+ * ```compactRatio``` times the size of the vault, a background thread
+ * folds it into a new vault.
+ * 
+ * With startWatching, changes that other programs make to the vault and
+ * the journal are picked up while the map is open. Only the entries that
+ * changed are decrypted, and a ChangeListener is told about each one.
+ * 
+ * In lazy mode only the website names are decrypted at login. Passwords
+ * stay encrypted in memory and are decrypted when they are requested,
+ * keeping the most recently used ones in a small cache.
+ * 
+ * Decrypted passwords are kept off the heap in a SecretStore, and zeroed
+ * when they are replaced, removed, evicted from the cache or the map is
+ * locked. getWebsitePasswordChars hands out a copy for the caller to zero.
+ * 
+ * The structure is thread safe. Lookups read concurrent maps without
+ * locking, and each thread encrypts and decrypts with its own cipher.
+ * Changes are serialized: each one is written to the vault first and
+ * only then published to the maps, so readers never see an entry that
+ * isn't on disk, and never wait for a write to finish.
+ * 
+ * A change returns only once it is on the storage device. The journal is
+ * synced after the write lock is released, through the GroupCommit of the
+ * journal, so threads changing the map at the same time share one fsync
+ * instead of queueing for one each.
  */
 public class EncryptedMap {
 	private static final int macKeyIndexInFile = 0; ///< Index of the mac key in the file on disk
 	private static final int masterKeyIndexInFile = 1; ///< Index of the master key in the file on disk
-	private StringCipher cipher; ///< cipher used to encrypt/decrypt passwords
-	private HashMap<String, String> passwordMap; ///< Map storing (website,password) as (key,value) pairs
+	private static final int kdfIndexInFile = 2; ///< Index of the key derivation settings in the file on disk, if it has them
+	private static final int minEntriesPerThread = 256; ///< Vaults smaller than this are decrypted on the calling thread
+	private static final int minEncryptChunk = 64; ///< Smallest number of entries encrypted by one task in addEntries
+	public static final int defaultLoadThreads = Runtime.getRuntime().availableProcessors(); ///< Number of threads decrypting the vault at login
+	private static final int lazyCacheSize = 16; ///< Number of decrypted passwords kept in lazy mode
+	private static final long minCompactSize = 1 << 14; ///< Journals smaller than this are never compacted
+	private static final long maxJournalSize = 1 << 20; ///< Journals at least this big are always compacted
+	private static final double compactRatio = 0.5; ///< Journals at least this big relative to the vault are compacted
+	private static final int migrateBatchSize = 256; ///< Entries encrypted again per journal write by migrateFormat
+	private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "EncryptedMap compactor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}); ///< Thread compacting journals into vaults
+	private volatile CipherPool ciphers; ///< ciphers used to encrypt/decrypt passwords, one for each thread. Replaced by rotateKeys while holding ```writeLock```.
+	private volatile int keyGeneration; ///< Incremented before and after rotateKeys replaces the keys, so it is odd while entries of both keys are in the map
+	private final Object writeLock = new Object(); ///< Lock serializing changes to the vault
+	private final Object compactLock = new Object(); ///< Lock serializing compactions
+	private final VaultLock vaultLock; ///< Lock on the files shared with other programs. ```VaultLock::journal``` is taken after ```writeLock```, ```VaultLock::files``` before it.
+	private Map<String, DecryptedPassword> passwordMap; ///< Map storing the decrypted password of each website. In lazy mode, only recently used passwords are stored.
+	private final SecretStore secrets = new SecretStore(); ///< Holds the passwords of ```passwordMap```
+	private EntryMap encryptedEntries; ///< Map storing the encrypted entry of each website, as written in the vault
 	private final String user; ///< Username
+	private final int loadThreads; ///< Maximum number of threads used to decrypt the vault
+	private final boolean lazy; ///< If true, passwords are decrypted only when requested
+	private final UnlockSession session; ///< Cache of salts and password-derived keys, or null
+	private long journalSize; ///< Size of the journal file. Guarded by ```writeLock```.
+	private long vaultSize; ///< Size of the vault file. Guarded by ```writeLock```.
+	private boolean compactionScheduled; ///< Whether a compaction is waiting to run. Guarded by ```writeLock```.
+	private boolean deleted; ///< Whether the account has been deleted. Guarded by ```writeLock```.
+	private volatile boolean locked; ///< Whether lock was called. Set while holding ```writeLock```.
+	private boolean rotationUnfinished; ///< Whether a committed key rotation couldn't replace all the files. Guarded by ```writeLock```.
+	private Object vaultVersion; ///< Identity of the vault file last read or written. Guarded by ```writeLock```.
+	private WatchService watcher; ///< Service watching the vault directory, or null. Guarded by ```writeLock```.
+	private ChangeListener listener; ///< Listener told about changes made by other programs, or null. Guarded by ```writeLock```.
+
+	/**
+	 * @brief Listener for entries changed by other programs
+	 * 
+	 * The methods are called while the map's write lock is held, so they
+	 * must return quickly. They may be called from any thread.
+	 */
+	public interface ChangeListener {
+		/**
+		 * @brief An entry was added or its password was changed
+		 *
+		 * @param      website  The website of the entry
+		 */
+		public void entryChanged(String website);
+
+		/**
+		 * @brief An entry was removed
+		 *
+		 * @param      website  The website of the entry
+		 */
+		public void entryRemoved(String website);
+	}
 
 	/**
 	 * Constructs an EncryptedMap object for ```user``` with ```password```.
+	 * The vault is decrypted using ```defaultLoadThreads``` threads.
 	 *
 	 * @param      user      The username
 	 * @param      password  The user's password
@@ -32,8 +129,82 @@ public class EncryptedMap {
 	 * were corrupted.
 	 */
 	public EncryptedMap(String user, String password) throws Exception {
+		this(user, password, defaultLoadThreads);
+	}
+
+	/**
+	 * Constructs an EncryptedMap object for ```user``` with ```password```,
+	 * decrypting the vault with up to ```loadThreads``` worker threads.
+	 * 
+	 * Each worker decrypts a contiguous part of the vault with its own
+	 * cipher. If ```loadThreads``` is 1, or the vault is small, everything
+	 * is decrypted on the calling thread.
+	 *
+	 * @param      user         The username
+	 * @param      password     The user's password
+	 * @param      loadThreads  The maximum number of decryption threads
+	 * 
+	 * @throws     Exception If the structure can't be created because
+	 * the user doesn't exist, the password is incorrect, or some of the files
+	 * were corrupted.
+	 */
+	public EncryptedMap(String user, String password, int loadThreads) throws Exception {
+		this(user, password, loadThreads, false);
+	}
+
+	/**
+	 * Constructs an EncryptedMap object for ```user``` with ```password```,
+	 * decrypting the vault with up to ```loadThreads``` worker threads.
+	 * 
+	 * If ```lazy``` is true, only the website names are decrypted here.
+	 * Each password is decrypted the first time getWebsitePassword asks
+	 * for it.
+	 *
+	 * @param      user         The username
+	 * @param      password     The user's password
+	 * @param      loadThreads  The maximum number of decryption threads
+	 * @param      lazy         Whether to decrypt passwords on demand
+	 * 
+	 * @throws     Exception If the structure can't be created because
+	 * the user doesn't exist, the password is incorrect, or some of the files
+	 * were corrupted.
+	 */
+	public EncryptedMap(String user, String password, int loadThreads, boolean lazy)
+	throws Exception {
+		this(user, password, loadThreads, lazy, null);
+	}
+
+	/**
+	 * Constructs an EncryptedMap object for ```user``` with ```password```,
+	 * decrypting the vault with up to ```loadThreads``` worker threads.
+	 * 
+	 * The salts and the keys derived from ```password``` are taken from
+	 * ```session``` when it has them, so unlocking the same vault again
+	 * within the session's timeout doesn't repeat the key derivation.
+	 *
+	 * @param      user         The username
+	 * @param      password     The user's password
+	 * @param      loadThreads  The maximum number of decryption threads
+	 * @param      lazy         Whether to decrypt passwords on demand
+	 * @param      session      The unlock session, or null to derive the keys every time
+	 * 
+	 * @throws     Exception If the structure can't be created because
+	 * the user doesn't exist, the password is incorrect, or some of the files
+	 * were corrupted.
+	 */
+	public EncryptedMap(String user, String password, int loadThreads, boolean lazy,
+		UnlockSession session) throws Exception {
+		long loadStart = Metrics.start();
 		this.user = user;
-		passwordMap = new HashMap<String, String>();
+		this.loadThreads = Math.max(1, loadThreads);
+		this.lazy = lazy;
+		this.session = session;
+		vaultLock = VaultLock.of(user);
+		if (lazy)
+			passwordMap = Collections.synchronizedMap(new PasswordCache(secrets));
+		else
+			passwordMap = new ConcurrentHashMap<String, DecryptedPassword>();
+		encryptedEntries = new EntryMap();
 
 		int masterKeySize = CipherBuilder.encryptionKeyType.sizeInBytes();
 		ByteArray masterKey = new ByteArray(masterKeySize);
@@ -41,10 +212,57 @@ public class EncryptedMap {
 		int macKeySize = Hmac.keyType.sizeInBytes();
 		ByteArray macKey = new ByteArray(macKeySize);
 
-		getKeys(password, masterKey, macKey);
+		if (!new File(Naming.keyFileName(user)).exists())
+			throw new Exception("Can't find password directory/file.",
+				new FileNotFoundException(Naming.keyFileName(user)));
+		vaultLock.lock(VaultLock.files);
+		try {
+			long phaseStart = Metrics.start();
+			KeyRotation.recover(user);
+			getKeys(password, masterKey, macKey);
+			Metrics.loadKeys.stop(phaseStart);
+
+			ciphers = CipherBuilder.buildPool(masterKey.getRawBytes(), macKey.getRawBytes());
+			tryMigrateToVault();
+			try {
+				tryGetPasswords();
+			} catch (Exception e) {
+				secrets.wipe();
+				throw e;
+			}
+		} finally {
+			vaultLock.unlock(VaultLock.files);
+		}
+		Metrics.load.stop(loadStart, encryptedEntries.size());
+	}
+
+	/**
+	 * @brief Migrate the user's entry files to a vault
+	 * 
+	 * If the user doesn't have a vault yet, moves the entries from the
+	 * password directory into a new vault file. Otherwise deletes the entry
+	 * files of a migration that stopped after writing the vault.
+	 *
+	 * @throws     Exception  If the migration failed. The entry files are
+	 * left untouched in that case.
+	 */
+	private void tryMigrateToVault() throws Exception {
+		if (VaultFile.exists(user)) {
+			try {
+				VaultFile.deleteMigratedFiles(user);
+			} catch (Exception e) {
+				throw new Exception("Couldn't delete the password files moved to vault " +
+					Naming.vaultFilename(user) + ".", e);
+			}
+			return;
+		}
 
-		cipher = CipherBuilder.build(masterKey.getRawBytes(), macKey.getRawBytes());
-		tryGetPasswords(cipher);
+		try {
+			VaultFile.migrate(user);
+		} catch (Exception e) {
+			throw new Exception("Couldn't move password files to vault " +
+				Naming.vaultFilename(user) + ".", e);
+		}
 	}
 
 	/**
@@ -52,6 +270,10 @@ public class EncryptedMap {
 	 * 
 	 * Read the master and mac keys from the file, decrypt them,
 	 * check their integrity is intact by unmaccing, and return them.
+	 * The password keys are derived with the settings stored in the key
+	 * file, or KdfParameters::legacy for files that don't have them. Keys
+	 * derived for the unlock session are kept by it only if they decrypt
+	 * the key file.
 	 *
 	 * @param      password   The of the user password
 	 * @param      masterKey  The object in which the master key will be stored
@@ -61,20 +283,28 @@ public class EncryptedMap {
 	 */
 	private void getKeys(String password, ByteArray masterKey, ByteArray macKey)
 	throws Exception {
-		tryReadKeys(password, masterKey, macKey);
-
-		byte[] decryptedMasterKey =
-			decryptKey(password, Naming.masterSaltFilename(user), masterKey);
-		masterKey.setRawBytes(decryptedMasterKey);
+		KdfParameters kdf = tryReadKeys(password, masterKey, macKey);
+		boolean right = false;
+		try {
+			byte[] decryptedMasterKey =
+				decryptKey(password, Naming.masterSaltFilename(user), kdf, masterKey);
+			masterKey.setRawBytes(decryptedMasterKey);
 
-		byte[] decryptedMacKey =
-			decryptKey(password, Naming.macSaltFilename(user), macKey);
-		macKey.setRawBytes(decryptedMacKey);
+			byte[] decryptedMacKey =
+				decryptKey(password, Naming.macSaltFilename(user), kdf, macKey);
+			macKey.setRawBytes(decryptedMacKey);
 
-		// unmac keys
-		macKey.setRawBytes(Hmac.unwrap(macKey.getRawBytes()));
-		Hmac hmac = new Hmac(macKey.getRawBytes());
-		masterKey.setRawBytes(hmac.unmac(masterKey.getRawBytes()));
+			// unmac keys
+			macKey.setRawBytes(Hmac.unwrap(macKey.getRawBytes()));
+			Hmac hmac = new Hmac(macKey.getRawBytes());
+			masterKey.setRawBytes(hmac.unmac(masterKey.getRawBytes()));
+			right = true;
+		} finally {
+			if (session != null) {
+				session.confirm(Naming.masterSaltFilename(user), password, kdf, right);
+				session.confirm(Naming.macSaltFilename(user), password, kdf, right);
+			}
+		}
 	}
 
 	/**
@@ -85,6 +315,7 @@ public class EncryptedMap {
 	 *
 	 * @param      password      The user's password
 	 * @param      saltFilename  The name of the salt file
+	 * @param      kdf           The key derivation settings
 	 * @param      encryptedKey  The encrypted key data
 	 *
 	 * @return     the decrypted (but macced) key
@@ -92,9 +323,9 @@ public class EncryptedMap {
 	 * @throws     Exception     If one of the files was corrupted or the
 	 * password is incorrect.
 	 */
-	private byte[] decryptKey(String password, String saltFilename,
+	private byte[] decryptKey(String password, String saltFilename, KdfParameters kdf,
 		ByteArray encryptedKey) throws Exception {
-		StringCipher keyDecrypter = CipherBuilder.build(saltFilename, password);
+		StringCipher keyDecrypter = CipherBuilder.build(saltFilename, password, kdf, session);
 		return keyDecrypter.tryDecrypt(encryptedKey.getRawBytes());
 	}
 
@@ -107,14 +338,16 @@ public class EncryptedMap {
 	 * @param      masterKey  The object where the encrypted master key will be stored
 	 * @param      macKey     The object where the encrypted mac key will be stored
 	 *
+	 * @return     The key derivation settings
+	 *
 	 * @throws     Exception  If a file was corrupted, or an error occurred while reading
 	 * from a file.
 	 */
-	private void tryReadKeys(String password, ByteArray masterKey, ByteArray macKey) 
+	private KdfParameters tryReadKeys(String password, ByteArray masterKey, ByteArray macKey) 
 	throws Exception {
 		String keyFilename = Naming.keyFileName(user);
 		try {
-			readKeys(password, masterKey, macKey);
+			return readKeys(password, masterKey, macKey);
 		} catch (FileNotFoundException e) {
 			throw new Exception("Key file " + keyFilename +
 				" not found.");
@@ -133,22 +366,25 @@ public class EncryptedMap {
 	 * @brief Read keys from file.
 	 * 
 	 * Reads the master and mac keys from file and returns them
-	 * encrypted.
+	 * encrypted, along with the settings deriving the keys that decrypt
+	 * them.
 	 *
 	 * @param      password               The user's password
 	 * @param      masterKey              The object where the encrypted master key will be stored
 	 * @param      macKey                 The object where the encrypted mac key will be stored
 	 *
+	 * @return     The key derivation settings
+	 *
 	 * @throws     FileNotFoundException  If the file key file can't be found
 	 * @throws     EOFException           If the key file was corrupted
 	 * @throws     IOException            If an error occurred when reading from file
 	 * @throws     IntegrityException                   If the file was corrupted
 	 */
-	private void readKeys(String password, ByteArray masterKey, ByteArray macKey)
+	private KdfParameters readKeys(String password, ByteArray masterKey, ByteArray macKey)
 	throws FileNotFoundException, EOFException, IOException,
 	Hmac.IntegrityException, Exception {
 	    String keyFilename = Naming.keyFileName(user);
-	    EncodedFileReader fileReader = new EncodedFileReader(keyFilename);
+	    MappedEncodedFileReader fileReader = new MappedEncodedFileReader(keyFilename);
 
 	    ArrayList<ByteArray> encryptedKeys = fileReader.readData();
 
@@ -156,6 +392,13 @@ public class EncryptedMap {
 
 	    macKey.setRawBytes(encryptedKeys.get(macKeyIndexInFile).getRawBytes());
 	    masterKey.setRawBytes(encryptedKeys.get(masterKeyIndexInFile).getRawBytes());
+	    if (encryptedKeys.size() <= kdfIndexInFile)
+	    	return KdfParameters.legacy;
+	    try {
+	    	return KdfParameters.decode(encryptedKeys.get(kdfIndexInFile).getRawBytes());
+	    } catch (Exception e) {
+	    	throw new Exception("Key file " + keyFilename + " is corrupted.", e);
+	    }
 	}
 
 	/**
@@ -163,14 +406,12 @@ public class EncryptedMap {
 	 * 
 	 * Handles exceptions thrown by the readPasswords method.
 	 *
-	 * @param      cipher     The cipher to decrypt the passwords
-	 *
 	 * @throws     Exception  If a file was corrupted or an error occurred when
 	 * reading from a file.
 	 */
-	private void tryGetPasswords(StringCipher cipher) throws Exception {
+	private void tryGetPasswords() throws Exception {
 		try {
-			getPasswords(cipher);
+			getPasswords();
 		} catch (FileNotFoundException e) {
 			throw new Exception("Can't find password directory/file.", e);
 		} catch (IOException e) {	// also handles EOFException
@@ -183,29 +424,789 @@ public class EncryptedMap {
 	/**
 	 * @brief Read passwords from file
 	 * 
-	 * Reads and returns all decrypted passwords in the user's
-	 * directory.
+	 * Reads and decrypts all password entries in the user's vault, then
+	 * applies the changes in the journal. Must be called holding
+	 * ```VaultLock::files```, so no other program replaces the vault
+	 * meanwhile.
 	 *
-	 * @param      cipher                 The cipher used to decrypt the password files
-	 *
-	 * @throws     FileNotFoundException  If a file or directory was not found.
-	 * @throws     IOException            If an error occurred reading from a file.
-	 * @throws     Exception              If a file has been corrupted.
+	 * @throws     FileNotFoundException  If the vault file was not found.
+	 * @throws     IOException            If an error occurred reading from the vault.
+	 * @throws     Exception              If the vault has been corrupted.
 	 */
-	private void getPasswords(StringCipher cipher)
+	private void getPasswords()
 	throws FileNotFoundException, IOException, Exception {
-		ArrayList<String> filenames = EncodedFileReader.getFilenames(user);
+		String vaultFilename = Naming.vaultFilename(user);
+		long phaseStart = Metrics.start();
+		ArrayList<EncryptedEntry> entries = VaultFile.read(vaultFilename);
+		Metrics.loadVault.stop(phaseStart, entries.size());
+
+		phaseStart = Metrics.start();
+		int threads = Math.min(loadThreads, entries.size() / minEntriesPerThread);
+		String[] websites = new String[entries.size()];
+		SecretStore.Secret[] passwords = lazy ? null : new SecretStore.Secret[entries.size()];
+		if (threads <= 1)
+			decryptEntries(ciphers.get(), entries, secrets, websites, passwords, 0);
+		else
+			decryptInParallel(ciphers, entries, secrets, websites, passwords, threads);
+		Metrics.loadDecrypt.stop(phaseStart, entries.size());
+
+		if (!lazy) {
+			for (int i = 0; i < entries.size(); ++i)
+				cachePassword(websites[i], new DecryptedPassword(entries.get(i), passwords[i]));
+		}
+		encryptedEntries.load(websites, entries);
+
+		phaseStart = Metrics.start();
+		String journalFilename = Naming.journalFilename(user);
+		ArrayList<EncryptedEntry> changes;
+		long journalEnd;
+		vaultLock.lock(VaultLock.journal);
+		try {
+			changes = VaultJournal.recover(journalFilename);
+			journalEnd = new File(journalFilename).length();
+		} finally {
+			vaultLock.unlock(VaultLock.journal);
+		}
+		replayJournal(changes);
+		Metrics.loadJournal.stop(phaseStart);
+
+		synchronized (writeLock) {
+			vaultSize = new File(vaultFilename).length();
+			vaultVersion = fileVersion(vaultFilename);
+			journalSize = journalEnd;
+			scheduleFormatMigration();
+			scheduleCompaction();
+		}
+	}
+
+	/**
+	 * @brief Apply the changes in the journal
+	 * 
+	 * Decrypts the website of each change and adds, replaces or removes
+	 * its entry in order. In lazy mode the passwords are left encrypted.
+	 *
+	 * @param      changes    The changes read from the journal, oldest first
+	 *
+	 * @throws     Exception  If a change has been corrupted.
+	 */
+	private void replayJournal(List<EncryptedEntry> changes) throws Exception {
+		StringCipher cipher = ciphers.get();
+		for (EncryptedEntry change : changes) {
+			String website = cipher.tryDecryptString(change.getWebsite().getRawBytes());
+			forgetPassword(website);
+			if (VaultJournal.isRemoval(change)) {
+				encryptedEntries.remove(website);
+				continue;
+			}
+
+			if (!lazy)
+				cachePassword(website, new DecryptedPassword(change, decryptPassword(cipher, change)));
+			encryptedEntries.put(website, change);
+		}
+	}
+
+	/**
+	 * @brief Decrypt a list of entries
+	 *
+	 * The passwords are decrypted into ```secrets``` without going through
+	 * a String.
+	 *
+	 * @param      cipher     The cipher used to decrypt the entries
+	 * @param      entries    The encrypted entries
+	 * @param      secrets    The store receiving the passwords
+	 * @param      websites   Receives the website of each entry
+	 * @param      passwords  Receives the password of each entry, or null
+	 * to decrypt only the websites
+	 * @param      offset     Where the first entry goes in ```websites``` and ```passwords```
+	 *
+	 * @throws     InterruptedException  If the thread was interrupted, so that
+	 * a cancelled login stops decrypting.
+	 * @throws     Exception             If an entry has been corrupted.
+	 */
+	private static void decryptEntries(StringCipher cipher, List<EncryptedEntry> entries,
+		SecretStore secrets, String[] websites, SecretStore.Secret[] passwords, int offset)
+	throws Exception {
+		int maxSize = 0;
+		for (EncryptedEntry entry : entries) {
+			maxSize = Math.max(maxSize, entry.getWebsite().getRawBytes().length);
+			if (passwords != null)
+				maxSize = Math.max(maxSize, entry.getPassword().getRawBytes().length);
+		}
+
+		byte[] buffer = new byte[maxSize];
+		try {
+			for (int i = 0; i < entries.size(); ++i) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException("Decryption interrupted.");
+				EncryptedEntry entry = entries.get(i);
+				int length = decryptRecord(cipher, entry.getWebsite(), buffer);
+				websites[offset + i] = new String(buffer, 0, length, StandardCharsets.UTF_8);
+				if (passwords != null) {
+					length = decryptRecord(cipher, entry.getPassword(), buffer);
+					passwords[offset + i] = secrets.put(buffer, 0, length);
+				}
+			}
+		} finally {
+			Arrays.fill(buffer, (byte)0);
+		}
+	}
+
+	/**
+	 * @brief Decrypt a record into a reused buffer
+	 *
+	 * @param      cipher     The cipher used to decrypt the record
+	 * @param      encrypted  The encrypted record
+	 * @param      buffer     Receives the decrypted data. It must be at
+	 * least as long as ```encrypted```.
+	 *
+	 * @return     The length of the decrypted data
+	 *
+	 * @throws     Exception  If the record has been corrupted.
+	 */
+	private static int decryptRecord(StringCipher cipher, ByteArray encrypted, byte[] buffer)
+	throws Exception {
+		byte[] raw = encrypted.getRawBytes();
+		return cipher.tryDecrypt(raw, 0, raw.length, buffer, 0);
+	}
+
+	/**
+	 * @brief Decrypt the password of an entry into the store
+	 *
+	 * @param      cipher     The cipher used to decrypt the password
+	 * @param      entry      The encrypted entry
+	 *
+	 * @return     The stored password
+	 *
+	 * @throws     Exception  If the password has been corrupted.
+	 */
+	private SecretStore.Secret decryptPassword(StringCipher cipher, EncryptedEntry entry)
+	throws Exception {
+		byte[] buffer = new byte[entry.getPassword().length()];
+		try {
+			int length = decryptRecord(cipher, entry.getPassword(), buffer);
+			return secrets.put(buffer, 0, length);
+		} finally {
+			Arrays.fill(buffer, (byte)0);
+		}
+	}
+
+	/**
+	 * @brief Decrypt a list of entries using a pool of threads
+	 * 
+	 * Splits ```entries``` into ```threads``` contiguous parts and decrypts
+	 * each part on a worker with its own cipher from ```ciphers```. Each
+	 * worker writes its results to its own range of the arrays.
+	 *
+	 * @param      ciphers    The pool of ciphers used to decrypt the entries
+	 * @param      entries    The encrypted entries
+	 * @param      secrets    The store receiving the passwords
+	 * @param      websites   Receives the website of each entry
+	 * @param      passwords  Receives the password of each entry, or null
+	 * to decrypt only the websites
+	 * @param      threads    The number of worker threads
+	 *
+	 * @throws     Exception  If an entry has been corrupted, or a worker failed.
+	 */
+	private static void decryptInParallel(final CipherPool ciphers,
+		ArrayList<EncryptedEntry> entries, final SecretStore secrets, final String[] websites,
+		final SecretStore.Secret[] passwords, int threads)
+	throws Exception {
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+		int chunkSize = (entries.size() + threads - 1) / threads;
+		for (int start = 0; start < entries.size(); start += chunkSize) {
+			final List<EncryptedEntry> chunk =
+				entries.subList(start, Math.min(start + chunkSize, entries.size()));
+			final int offset = start;
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					decryptEntries(ciphers.get(), chunk, secrets, websites, passwords, offset);
+					return null;
+				}
+			});
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+		try {
+			for (Future<Void> result : pool.invokeAll(tasks))
+				getResult(result);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	/**
+	 * @brief Get the result of a finished task
+	 * 
+	 * Rethrows the exception that made the task fail, so callers can
+	 * handle it as if the work was done on their own thread.
+	 *
+	 * @param      result     The task's future
+	 *
+	 * @return     The result of the task
+	 *
+	 * @throws     Exception  The exception thrown by the task.
+	 */
+	private static <T> T getResult(Future<T> result) throws Exception {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * @brief Lock the journal against other programs and catch up with them
+	 * 
+	 * Must be called holding ```writeLock```, and followed by unlockJournal.
+	 * The journal length is read again after taking the lock. If other
+	 * programs appended to the journal or replaced the vault since this map
+	 * last read them, their changes are applied first, so ```journalSize```
+	 * is the end of the journal again. Bytes after the last complete change,
+	 * left by a program that stopped in the middle of an append, are cut off
+	 * so the next append follows a complete change.
+	 *
+	 * @throws     IOException  If the lock couldn't be taken or the changes
+	 * of other programs couldn't be applied. The lock is not held then.
+	 */
+	private void lockJournal() throws IOException {
+		vaultLock.lock(VaultLock.journal);
+		try {
+			catchUp();
+		} catch (IOException e) {
+			vaultLock.unlock(VaultLock.journal);
+			throw e;
+		}
+	}
+
+	/**
+	 * @brief Release the lock taken by lockJournal
+	 *
+	 * @throws     IOException  If the lock file couldn't be closed.
+	 */
+	private void unlockJournal() throws IOException {
+		vaultLock.unlock(VaultLock.journal);
+	}
+
+	/**
+	 * @brief Apply the changes other programs made since the files were read
+	 * 
+	 * Must be called holding ```writeLock``` and ```VaultLock::journal```.
+	 *
+	 * @throws     IOException  If the changes couldn't be read or applied.
+	 */
+	private void catchUp() throws IOException {
+		if (deleted)
+			return;
+		String vaultFilename = Naming.vaultFilename(user);
+		String journalFilename = Naming.journalFilename(user);
+		if (new File(journalFilename).length() == journalSize &&
+			Objects.equals(fileVersion(vaultFilename), vaultVersion))
+			return;
+
+		try {
+			reloadChanges();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Couldn't apply the changes other programs made to the vault of " +
+				user + ".", e);
+		}
+		if (new File(journalFilename).length() > journalSize)
+			VaultJournal.truncate(journalFilename, journalSize);
+	}
+
+	/**
+	 * @brief Append a change to the journal
+	 * 
+	 * The maps are not modified. Must be called between lockJournal and
+	 * unlockJournal.
+	 *
+	 * @param      change       The change
+	 *
+	 * @return     The ticket to pass to awaitDurable
+	 *
+	 * @throws     IOException  If an error occurred writing the journal.
+	 */
+	private long appendToJournal(EncryptedEntry change) throws IOException {
+		return appendToJournal(Collections.singletonList(change));
+	}
+
+	/**
+	 * @brief Append changes to the journal with a single write
+	 * 
+	 * The maps are not modified. Must be called between lockJournal and
+	 * unlockJournal. The changes are not yet forced to the storage device; the caller
+	 * passes the returned ticket to awaitDurable once it released the lock.
+	 *
+	 * @param      changes      The changes, oldest first
+	 *
+	 * @return     The ticket to pass to awaitDurable
+	 *
+	 * @throws     IOException  If an error occurred writing the journal.
+	 */
+	private long appendToJournal(Collection<EncryptedEntry> changes) throws IOException {
+		if (locked)
+			throw new IOException("The vault of " + user + " is locked.");
+		if (rotationUnfinished)
+			throw new IOException("The key rotation of " + user + " is unfinished. Log in again.");
+		String journalFilename = Naming.journalFilename(user);
+		journalSize += VaultJournal.append(journalFilename, changes);
+		scheduleCompaction();
+		return GroupCommit.ofFile(journalFilename).written();
+	}
 
-		for (String filename : filenames) {
-			EncodedFileReader fileReader = new EncodedFileReader(filename);
+	/**
+	 * @brief Wait until appended changes are on the storage device
+	 * 
+	 * Must be called without holding ```writeLock```, so other writers can
+	 * append meanwhile and be covered by the same fsync. Changes compacted
+	 * in the meantime are already durable in the new vault, and changes
+	 * kept in a shortened journal were forced when it was rewritten.
+	 *
+	 * @param      ticket       The ticket returned by appendToJournal
+	 *
+	 * @throws     IOException  If the journal couldn't be synced.
+	 */
+	private void awaitDurable(long ticket) throws IOException {
+		GroupCommit.ofFile(Naming.journalFilename(user)).sync(ticket);
+	}
 
-			ArrayList<ByteArray> data = fileReader.readData();
+	/**
+	 * @brief Compact the journal in the background if it is too big
+	 * 
+	 * Must be called holding ```writeLock```. If the compaction fails, the
+	 * journal is left as it is and compaction is tried again after the
+	 * next change.
+	 */
+	private void scheduleCompaction() {
+		if (compactionScheduled || deleted || journalSize < minCompactSize)
+			return;
+		if (journalSize < maxJournalSize && journalSize < vaultSize * compactRatio)
+			return;
 
-			fileReader.close();
+		compactionScheduled = true;
+		compactor.execute(new Runnable() {
+			public void run() {
+				synchronized (writeLock) {
+					compactionScheduled = false;
+				}
+				try {
+					compact();
+				} catch (IOException e) {
+					// the journal still holds every change
+				}
+			}
+		});
+	}
 
-			String website = cipher.tryDecryptString(data.get(0).getRawBytes());
-			String password = cipher.tryDecryptString(data.get(1).getRawBytes());
-			passwordMap.put(website, password);
+	/**
+	 * @brief Fold the journal into the vault
+	 * 
+	 * Writes the current entries to a new vault and drops the part of the
+	 * journal they include. The new vault is written without holding the
+	 * write lock, so changes made meanwhile are only delayed while the
+	 * files are swapped. They stay in the journal for the next compaction.
+	 * 
+	 * If the program stops between replacing the vault and shortening the
+	 * journal, the changes are replayed again at the next login, which
+	 * gives the same entries.
+	 * 
+	 * ```VaultLock::files``` is held throughout, so no other program
+	 * replaces the vault or the journal meanwhile; they can only append to
+	 * the journal, after the part that is dropped.
+	 *
+	 * @throws     IOException  If an error occurred writing the vault or the journal.
+	 */
+	public void compact() throws IOException {
+		synchronized (compactLock) {
+			vaultLock.lock(VaultLock.files);
+			try {
+				compactFiles();
+			} finally {
+				vaultLock.unlock(VaultLock.files);
+			}
+		}
+	}
+
+	/**
+	 * @brief Fold the journal into the vault, holding ```VaultLock::files```
+	 *
+	 * @throws     IOException  If an error occurred writing the vault or the journal.
+	 */
+	private void compactFiles() throws IOException {
+		String vaultFilename = Naming.vaultFilename(user);
+		String journalFilename = Naming.journalFilename(user);
+		ArrayList<EncryptedEntry> entries;
+		long compactedSize;
+		synchronized (writeLock) {
+			if (deleted || rotationUnfinished)
+				return;
+			lockJournal();
+			try {
+				if (journalSize == 0)
+					return;
+				entries = new ArrayList<EncryptedEntry>(encryptedEntries.values());
+				compactedSize = journalSize;
+			} finally {
+				unlockJournal();
+			}
+		}
+
+		VaultFile.writeTemporary(vaultFilename, entries);
+
+		synchronized (writeLock) {
+			if (deleted) {
+				VaultFile.deleteTemporary(vaultFilename);
+				return;
+			}
+			try {
+				lockJournal();
+			} catch (IOException e) {
+				VaultFile.deleteTemporary(vaultFilename);
+				throw e;
+			}
+			try {
+				VaultFile.replaceWithTemporary(vaultFilename);
+				VaultJournal.dropPrefix(journalFilename, compactedSize);
+				journalSize -= compactedSize;
+				vaultSize = new File(vaultFilename).length();
+				vaultVersion = fileVersion(vaultFilename);
+			} finally {
+				unlockJournal();
+			}
+		}
+	}
+
+	/**
+	 * @brief Migrate entries of older formats in the background
+	 * 
+	 * Must be called holding ```writeLock```. The migration runs on the
+	 * compaction thread. If it fails, the remaining entries are still
+	 * readable, and are migrated after the next login.
+	 */
+	private void scheduleFormatMigration() {
+		if (deleted)
+			return;
+
+		compactor.execute(new Runnable() {
+			public void run() {
+				try {
+					migrateFormat();
+				} catch (Exception e) {
+					// entries of older formats can still be decrypted
+				}
+			}
+		});
+	}
+
+	/**
+	 * @brief Encrypt again the entries written in an older record format
+	 * 
+	 * Finds the entries whose website or password isn't in the format the
+	 * ciphers write, and replaces them with new encryptions of the same
+	 * data, ```migrateBatchSize``` entries at a time. Each batch is
+	 * encrypted without holding the write lock and appended to the journal
+	 * with a single write, so the map stays usable during the migration.
+	 * The journal is synced once, after the last batch. Entries changed or
+	 * removed meanwhile are skipped. The vault itself is rewritten by the
+	 * next compaction.
+	 *
+	 * @return     The number of entries migrated.
+	 *
+	 * @throws     IOException  If an error occurred writing the journal.
+	 * @throws     Exception    If an entry couldn't be decrypted or encrypted.
+	 */
+	public int migrateFormat() throws IOException, Exception {
+		CipherPool pool = ciphers;
+		StringCipher cipher = pool.get();
+		ArrayList<String> websites = new ArrayList<String>();
+		ArrayList<EncryptedEntry> originals = new ArrayList<EncryptedEntry>();
+		for (Map.Entry<String, EncryptedEntry> entry : encryptedEntries.entrySet()) {
+			EncryptedEntry encrypted = entry.getValue();
+			if (!cipher.isCurrentFormat(encrypted.getWebsite().getRawBytes()) ||
+				!cipher.isCurrentFormat(encrypted.getPassword().getRawBytes())) {
+				websites.add(entry.getKey());
+				originals.add(encrypted);
+			}
+		}
+
+		int migrated = 0;
+		long ticket = 0;
+		for (int start = 0; start < websites.size(); start += migrateBatchSize) {
+			if (Thread.currentThread().isInterrupted())
+				break;
+			int end = Math.min(start + migrateBatchSize, websites.size());
+			List<String> batch = websites.subList(start, end);
+			ArrayList<String> passwords = new ArrayList<String>(batch.size());
+			for (int i = start; i < end; ++i)
+				passwords.add(cipher.tryDecryptString(originals.get(i).getPassword().getRawBytes()));
+			List<EncryptedEntry> encrypted = encryptEntries(cipher, batch, passwords);
+
+			synchronized (writeLock) {
+				if (deleted || pool != ciphers)
+					break;
+				lockJournal();
+				try {
+					ArrayList<Integer> unchanged = new ArrayList<Integer>();
+					ArrayList<EncryptedEntry> changes = new ArrayList<EncryptedEntry>();
+					for (int i = 0; i < batch.size(); ++i) {
+						if (originals.get(start + i).equals(encryptedEntries.get(batch.get(i)))) {
+							unchanged.add(i);
+							changes.add(encrypted.get(i));
+						}
+					}
+					if (changes.isEmpty())
+						continue;
+
+					ticket = appendToJournal(changes);
+					for (int i : unchanged) {
+						String website = batch.get(i);
+						DecryptedPassword decrypted = passwordMap.get(website);
+						if (decrypted != null && decrypted.entry.equals(originals.get(start + i)))
+							cachePassword(website, new DecryptedPassword(encrypted.get(i), decrypted.password));
+						encryptedEntries.put(website, encrypted.get(i));
+					}
+					migrated += changes.size();
+				} finally {
+					unlockJournal();
+				}
+			}
+		}
+		if (ticket != 0)
+			awaitDurable(ticket);
+		return migrated;
+	}
+
+	/**
+	 * @brief Watch the vault for changes made by other programs
+	 * 
+	 * Starts a thread that waits for the vault or the journal to change on
+	 * disk, and then applies the changes to the map. If the journal only
+	 * grew, just the new changes are read. If the vault was replaced, it is
+	 * read again, but entries that are the same as the ones in memory are
+	 * not decrypted again.
+	 * 
+	 * Does nothing if the map is already being watched.
+	 *
+	 * @param      listener     The listener told about every changed entry, or null
+	 *
+	 * @throws     IOException  If the vault directory can't be watched.
+	 */
+	public void startWatching(ChangeListener listener) throws IOException {
+		synchronized (writeLock) {
+			if (watcher != null)
+				return;
+
+			Path directory = Paths.get(Naming.vaultFilename(user)).toAbsolutePath().getParent();
+			final WatchService watchService = directory.getFileSystem().newWatchService();
+			directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			watcher = watchService;
+			this.listener = listener;
+
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					watch(watchService);
+				}
+			}, "EncryptedMap watcher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * @brief Stop watching the vault
+	 *
+	 * @throws     IOException  If the watch service couldn't be closed.
+	 */
+	public void stopWatching() throws IOException {
+		synchronized (writeLock) {
+			if (watcher == null)
+				return;
+			watcher.close();
+			watcher = null;
+			listener = null;
+		}
+	}
+
+	/**
+	 * @brief Wait for file events until the watch service is closed
+	 * 
+	 * Events that arrive together are handled with a single reload.
+	 *
+	 * @param      watchService  The watch service
+	 */
+	private void watch(WatchService watchService) {
+		Path vaultName = Paths.get(Naming.vaultFilename(user)).getFileName();
+		Path journalName = Paths.get(Naming.journalFilename(user)).getFileName();
+		try {
+			while (true) {
+				boolean changed = false;
+				WatchKey key = watchService.take();
+				do {
+					for (WatchEvent<?> event : key.pollEvents())
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+							vaultName.equals(event.context()) ||
+							journalName.equals(event.context()))
+							changed = true;
+					key.reset();
+					key = watchService.poll();
+				} while (key != null);
+
+				if (changed) {
+					synchronized (writeLock) {
+						if (watcher == watchService)
+							tryReloadChanges();
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// stopWatching was called
+		}
+	}
+
+	/**
+	 * @brief Apply the changes of other programs, ignoring errors
+	 * 
+	 * Takes and releases the journal lock, which applies the changes.
+	 * If that fails, nothing is applied, and the next file event tries
+	 * again. Must be called holding ```writeLock```.
+	 */
+	private void tryReloadChanges() {
+		try {
+			lockJournal();
+			unlockJournal();
+		} catch (IOException e) {
+			// the next event reloads again
+		}
+	}
+
+	/**
+	 * @brief Apply the changes other programs made to the files
+	 * 
+	 * Works out the entries the files now hold, decrypting only what isn't
+	 * already in memory, and then updates the maps and tells the listener
+	 * about each difference. The maps are not changed if anything fails.
+	 * Must be called holding ```writeLock``` and ```VaultLock::journal```.
+	 *
+	 * @throws     IOException  If an error occurred reading the files.
+	 * @throws     Exception    If a new entry couldn't be decrypted.
+	 */
+	private void reloadChanges() throws IOException, Exception {
+		if (deleted)
+			return;
+
+		String vaultFilename = Naming.vaultFilename(user);
+		String journalFilename = Naming.journalFilename(user);
+		Object currentVaultVersion = fileVersion(vaultFilename);
+		StringCipher cipher = ciphers.get();
+		HashMap<String, EncryptedEntry> entries = new HashMap<String, EncryptedEntry>();
+		HashMap<ByteBuffer, String> known = null;
+		ArrayList<EncryptedEntry> changes = new ArrayList<EncryptedEntry>();
+		long journalEnd;
+
+		if (Objects.equals(currentVaultVersion, vaultVersion) &&
+			new File(journalFilename).length() >= journalSize) {
+			journalEnd = VaultJournal.read(journalFilename, journalSize, changes);
+			if (changes.isEmpty())
+				return;
+			entries.putAll(encryptedEntries);
+		} else {
+			known = new HashMap<ByteBuffer, String>();
+			for (Map.Entry<String, EncryptedEntry> current : encryptedEntries.entrySet())
+				known.put(ByteBuffer.wrap(current.getValue().getWebsite().getRawBytes()), current.getKey());
+			for (EncryptedEntry entry : VaultFile.read(vaultFilename))
+				entries.put(decryptWebsite(cipher, entry, known), entry);
+			journalEnd = VaultJournal.read(journalFilename, 0, changes);
+		}
+
+		for (EncryptedEntry change : changes) {
+			String website = decryptWebsite(cipher, change, known);
+			if (VaultJournal.isRemoval(change))
+				entries.remove(website);
+			else
+				entries.put(website, change);
+		}
+
+		HashMap<String, DecryptedPassword> changed = new HashMap<String, DecryptedPassword>();
+		try {
+			for (Map.Entry<String, EncryptedEntry> entry : entries.entrySet()) {
+				EncryptedEntry current = encryptedEntries.get(entry.getKey());
+				if (current != null && Arrays.equals(current.getPassword().getRawBytes(),
+						entry.getValue().getPassword().getRawBytes()))
+					continue;
+				SecretStore.Secret password = null;
+				if (!lazy)
+					password = decryptPassword(cipher, entry.getValue());
+				changed.put(entry.getKey(), new DecryptedPassword(entry.getValue(), password));
+			}
+		} catch (Exception e) {
+			for (DecryptedPassword decrypted : changed.values())
+				secrets.free(decrypted.password);
+			throw e;
+		}
+
+		for (String website : new ArrayList<String>(encryptedEntries.keySet())) {
+			if (entries.containsKey(website))
+				continue;
+			encryptedEntries.remove(website);
+			forgetPassword(website);
+			if (listener != null)
+				listener.entryRemoved(website);
+		}
+		for (Map.Entry<String, DecryptedPassword> entry : changed.entrySet()) {
+			if (lazy)
+				forgetPassword(entry.getKey());
+			else
+				cachePassword(entry.getKey(), entry.getValue());
+			encryptedEntries.put(entry.getKey(), entry.getValue().entry);
+			if (listener != null)
+				listener.entryChanged(entry.getKey());
+		}
+
+		journalSize = journalEnd;
+		vaultVersion = currentVaultVersion;
+		vaultSize = new File(vaultFilename).length();
+	}
+
+	/**
+	 * @brief Decrypt the website of an entry
+	 *
+	 * @param      cipher     The cipher used to decrypt the website
+	 * @param      entry      The encrypted entry
+	 * @param      known      Websites already decrypted, by their encrypted
+	 * form, or null
+	 *
+	 * @return     The website
+	 *
+	 * @throws     Exception  If the website couldn't be decrypted.
+	 */
+	private static String decryptWebsite(StringCipher cipher, EncryptedEntry entry,
+		Map<ByteBuffer, String> known) throws Exception {
+		byte[] encrypted = entry.getWebsite().getRawBytes();
+		String website = known == null ? null : known.get(ByteBuffer.wrap(encrypted));
+		return website != null ? website : cipher.tryDecryptString(encrypted);
+	}
+
+	/**
+	 * @brief Identity of a file
+	 * 
+	 * Two versions are equal if the file wasn't replaced or modified in
+	 * between.
+	 *
+	 * @param      filename  The filename
+	 *
+	 * @return     The file key, modification time and size of the file, or
+	 * null if it doesn't exist.
+	 */
+	private static Object fileVersion(String filename) {
+		try {
+			BasicFileAttributes attributes =
+				Files.readAttributes(Paths.get(filename), BasicFileAttributes.class);
+			return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+		} catch (IOException e) {
+			return null;
 		}
 	}
 
@@ -213,51 +1214,448 @@ public class EncryptedMap {
 	 * @brief Changes the master password
 	 * 
 	 * Changes the master password from ```oldPass```  to ```newPass```. Only the
-	 * key file is changed, the password files are not touched.
+	 * key file and the salts are changed, the vault is not touched.
+	 * 
+	 * The new key file and salts are staged and swapped in by KeyRotation,
+	 * which finishes or undoes the swap at the next login if the program
+	 * stops in the middle, so the account is never left with files of both
+	 * passwords. The keys are wrapped with the new password before taking
+	 * any lock; only the files are written under the locks. The salts are
+	 * replaced, so anything the unlock session cached for them is dropped.
 	 *
 	 * @param      oldPass    The old password
 	 * @param      newPass    The new password
 	 *
-	 * @throws     Exception  If an error occured writing to file.
+	 * @throws     Exception  If the old password is wrong or an error occured writing to file.
 	 */
 	public void tryChangeMasterPassword(String oldPass, String newPass) throws Exception {
 		ByteArray masterKey = new ByteArray(CipherBuilder.encryptionKeyType.sizeInBytes());
 		ByteArray macKey = new ByteArray(Hmac.keyType.sizeInBytes());
-		tryReadKeys(oldPass, masterKey, macKey);
+		Object keysVersion = fileVersion(Naming.keyFileName(user));
+		Registration keys;
+		try {
+			getKeys(oldPass, masterKey, macKey);
+			keys = KeyRotation.wrapKeys(user, newPass, masterKey.getRawBytes(), macKey.getRawBytes());
+		} finally {
+			Arrays.fill(masterKey.getRawBytes(), (byte)0);
+			Arrays.fill(macKey.getRawBytes(), (byte)0);
+		}
+
+		vaultLock.lock(VaultLock.files);
 		try {
-			new Registration(user, newPass, masterKey.getRawBytes(), macKey.getRawBytes());
-		} catch (FileAlreadyExistsException e) {
-			// supposed to happen because password folder already exists. ignore
+			synchronized (writeLock) {
+				if (deleted || rotationUnfinished)
+					throw new Exception("The vault of " + user + " can't be changed.");
+				checkKeysUnchanged(keysVersion);
+				try {
+					KeyRotation.stageKeys(user, keys);
+					KeyRotation.commitKeys(user);
+				} catch (IOException e) {
+					if (new File(Naming.passwordChangeFilename(user)).exists())
+						throw new Exception("Couldn't replace all the key files." +
+							" Log in again to finish changing the password.", e);
+					throw new Exception("Couldn't change the master password.", e);
+				} finally {
+					if (session != null) {
+						session.invalidate(Naming.masterSaltFilename(user));
+						session.invalidate(Naming.macSaltFilename(user));
+					}
+				}
+			}
+		} finally {
+			vaultLock.unlock(VaultLock.files);
 		}
 	}
 
+	/**
+	 * @brief Check that no one replaced the key file
+	 *
+	 * The keys are read and wrapped with a new password before taking any
+	 * lock, since the key derivation takes seconds. Must be called holding
+	 * ```VaultLock::files```, before writing the new files.
+	 *
+	 * @param      keysVersion  The version of the key file when the keys were read
+	 *
+	 * @throws     Exception    If the key file changed since, for example because
+	 * another program changed the password or the keys.
+	 */
+	private void checkKeysUnchanged(Object keysVersion) throws Exception {
+		if (keysVersion == null || !keysVersion.equals(fileVersion(Naming.keyFileName(user))))
+			throw new Exception("The keys of " + user + " were changed by another program. Try again.");
+	}
+
+	/**
+	 * @brief Replace the master and mac keys
+	 * 
+	 * Generates new keys and encrypts every entry again with them, so keys
+	 * that may have leaked stop protecting the vault. The entries are
+	 * encrypted in parallel on up to ```loadThreads``` threads, without
+	 * holding the write lock, so the map stays usable meanwhile. Entries
+	 * changed in the meantime are encrypted again under the lock.
+	 * 
+	 * The new vault, key file and salts are staged and then swapped in by
+	 * KeyRotation, which finishes or undoes the swap at the next login if
+	 * the program stops in the middle. The journal is folded into the new
+	 * vault. Other programs that have the vault open must log in again.
+	 *
+	 * @param      password   The master password
+	 *
+	 * @throws     Exception  If the password is wrong, an entry couldn't be
+	 * encrypted, or the files couldn't be written. Unless the files were
+	 * partly replaced, the old keys stay in use; otherwise no more changes
+	 * are accepted, and the rotation is finished at the next login.
+	 */
+	public void rotateKeys(String password) throws Exception {
+		ByteArray masterKey = new ByteArray(CipherBuilder.encryptionKeyType.sizeInBytes());
+		ByteArray macKey = new ByteArray(Hmac.keyType.sizeInBytes());
+		Object keysVersion = fileVersion(Naming.keyFileName(user));
+		getKeys(password, masterKey, macKey);
+		Arrays.fill(masterKey.getRawBytes(), (byte)0);
+		Arrays.fill(macKey.getRawBytes(), (byte)0);
+
+		byte[] newMasterKey = CipherBuilder.generateKey(CipherBuilder.encryptionKeyType);
+		byte[] newMacKey = CipherBuilder.generateKey(Hmac.keyType);
+		try {
+			Registration keys = KeyRotation.wrapKeys(user, password, newMasterKey, newMacKey);
+			synchronized (compactLock) {
+				vaultLock.lock(VaultLock.files);
+				try {
+					checkKeysUnchanged(keysVersion);
+					rotateKeys(keys, newMasterKey, newMacKey);
+				} finally {
+					vaultLock.unlock(VaultLock.files);
+				}
+			}
+		} finally {
+			Arrays.fill(newMasterKey, (byte)0);
+			Arrays.fill(newMacKey, (byte)0);
+		}
+	}
+
+	/**
+	 * @brief Encrypt the entries with given keys and swap them in
+	 * 
+	 * Second half of rotateKeys. Must be called holding ```compactLock```
+	 * and ```VaultLock::files```.
+	 *
+	 * @param      keys          The new keys wrapped with the master password
+	 * @param      newMasterKey  The new master key
+	 * @param      newMacKey     The new mac key
+	 *
+	 * @throws     Exception     If an entry couldn't be encrypted, or the
+	 * files couldn't be written.
+	 */
+	private void rotateKeys(Registration keys, byte[] newMasterKey, byte[] newMacKey)
+	throws Exception {
+		CipherPool newCiphers = CipherBuilder.buildPool(newMasterKey, newMacKey);
+		CipherPool oldCiphers;
+		ArrayList<String> websites;
+		ArrayList<EncryptedEntry> originals;
+		synchronized (writeLock) {
+			if (deleted || rotationUnfinished)
+				throw new Exception("The vault of " + user + " can't be changed.");
+			oldCiphers = ciphers;
+			websites = new ArrayList<String>(encryptedEntries.keySet());
+			originals = new ArrayList<EncryptedEntry>(websites.size());
+			for (String website : websites)
+				originals.add(encryptedEntries.get(website));
+		}
+
+		List<EncryptedEntry> rotated = reencryptInParallel(oldCiphers, newCiphers, originals, loadThreads);
+
+		synchronized (writeLock) {
+			if (deleted || rotationUnfinished)
+				throw new Exception("The vault of " + user + " can't be changed.");
+			lockJournal();
+			try {
+				HashMap<String, Integer> snapshotIndex = new HashMap<String, Integer>();
+				for (int i = 0; i < websites.size(); ++i)
+					snapshotIndex.put(websites.get(i), i);
+				LinkedHashMap<String, EncryptedEntry> current = new LinkedHashMap<String, EncryptedEntry>(encryptedEntries);
+				LinkedHashMap<String, EncryptedEntry> replaced = new LinkedHashMap<String, EncryptedEntry>();
+				for (Map.Entry<String, EncryptedEntry> entry : current.entrySet()) {
+					Integer index = snapshotIndex.get(entry.getKey());
+					if (index != null && originals.get(index).equals(entry.getValue()))
+						replaced.put(entry.getKey(), rotated.get(index));
+					else
+						replaced.put(entry.getKey(), reencryptEntries(oldCiphers.get(), newCiphers.get(),
+							Collections.singletonList(entry.getValue())).get(0));
+				}
+
+				KeyRotation.stage(user, keys, replaced.values());
+				try {
+					KeyRotation.commit(user);
+				} catch (IOException e) {
+					if (new File(Naming.rotationFilename(user)).exists()) {
+						rotationUnfinished = true;
+						throw new Exception("Couldn't replace all the files of the key rotation." +
+							" Log in again to finish it.", e);
+					}
+					throw new Exception("Couldn't start the key rotation.", e);
+				} finally {
+					if (session != null) {
+						session.invalidate(Naming.masterSaltFilename(user));
+						session.invalidate(Naming.macSaltFilename(user));
+					}
+				}
+
+				++keyGeneration;
+				ciphers = newCiphers;
+				for (Map.Entry<String, EncryptedEntry> entry : replaced.entrySet()) {
+					String website = entry.getKey();
+					DecryptedPassword decrypted = passwordMap.get(website);
+					if (decrypted != null && decrypted.entry.equals(current.get(website)))
+						cachePassword(website, new DecryptedPassword(entry.getValue(), decrypted.password));
+					else
+						forgetPassword(website);
+					encryptedEntries.put(website, entry.getValue());
+				}
+				++keyGeneration;
+
+				String vaultFilename = Naming.vaultFilename(user);
+				journalSize = 0;
+				vaultSize = new File(vaultFilename).length();
+				vaultVersion = fileVersion(vaultFilename);
+			} finally {
+				unlockJournal();
+			}
+		}
+	}
+
+	/**
+	 * @brief Encrypt entries again with other keys using a pool of threads
+	 * 
+	 * Splits ```entries``` in up to ```threads``` parts of at least
+	 * ```minEntriesPerThread``` entries, like decryptInParallel.
+	 *
+	 * @param      from       The ciphers of the current keys
+	 * @param      to         The ciphers of the new keys
+	 * @param      entries    The entries
+	 * @param      threads    The maximum number of threads
+	 *
+	 * @return     The entries encrypted with the new keys, in the same order.
+	 *
+	 * @throws     Exception  If an entry has been corrupted.
+	 */
+	private static List<EncryptedEntry> reencryptInParallel(final CipherPool from, final CipherPool to,
+		ArrayList<EncryptedEntry> entries, int threads) throws Exception {
+		threads = Math.max(1, Math.min(threads, entries.size() / minEntriesPerThread));
+		if (threads == 1)
+			return reencryptEntries(from.get(), to.get(), entries);
+
+		ArrayList<Callable<List<EncryptedEntry>>> tasks = new ArrayList<Callable<List<EncryptedEntry>>>(threads);
+		int chunkSize = (entries.size() + threads - 1) / threads;
+		for (int start = 0; start < entries.size(); start += chunkSize) {
+			final List<EncryptedEntry> chunk =
+				entries.subList(start, Math.min(start + chunkSize, entries.size()));
+			tasks.add(new Callable<List<EncryptedEntry>>() {
+				public List<EncryptedEntry> call() throws Exception {
+					return reencryptEntries(from.get(), to.get(), chunk);
+				}
+			});
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+		try {
+			ArrayList<EncryptedEntry> reencrypted = new ArrayList<EncryptedEntry>(entries.size());
+			for (Future<List<EncryptedEntry>> result : pool.invokeAll(tasks))
+				reencrypted.addAll(getResult(result));
+			return reencrypted;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * @brief Encrypt entries again with another cipher
+	 * 
+	 * The records are decrypted into a reused buffer, which is zeroed
+	 * afterwards, and never turned into strings.
+	 *
+	 * @param      from       The cipher of the current keys
+	 * @param      to         The cipher of the new keys
+	 * @param      entries    The entries
+	 *
+	 * @return     The entries encrypted by ```to```, in the same order.
+	 *
+	 * @throws     Exception  If an entry has been corrupted.
+	 */
+	private static List<EncryptedEntry> reencryptEntries(StringCipher from, StringCipher to,
+		List<EncryptedEntry> entries) throws Exception {
+		int maxSize = 0;
+		for (EncryptedEntry entry : entries)
+			maxSize = Math.max(maxSize, Math.max(entry.getWebsite().length(), entry.getPassword().length()));
+
+		byte[] buffer = new byte[maxSize];
+		try {
+			ArrayList<EncryptedEntry> reencrypted = new ArrayList<EncryptedEntry>(entries.size());
+			for (EncryptedEntry entry : entries)
+				reencrypted.add(new EncryptedEntry(reencryptRecord(from, to, entry.getWebsite(), buffer),
+					reencryptRecord(from, to, entry.getPassword(), buffer)));
+			return reencrypted;
+		} finally {
+			Arrays.fill(buffer, (byte)0);
+		}
+	}
+
+	/**
+	 * @brief Encrypt a record again with another cipher
+	 *
+	 * @param      from       The cipher of the current keys
+	 * @param      to         The cipher of the new keys
+	 * @param      record     The encrypted record
+	 * @param      buffer     Receives the decrypted data. It must be at
+	 * least as long as ```record```.
+	 *
+	 * @return     The record encrypted by ```to```
+	 *
+	 * @throws     Exception  If the record has been corrupted.
+	 */
+	private static ByteArray reencryptRecord(StringCipher from, StringCipher to, ByteArray record,
+		byte[] buffer) throws Exception {
+		byte[] raw = record.getRawBytes();
+		int length = from.tryDecrypt(raw, 0, raw.length, buffer, 0);
+		byte[] encrypted = new byte[to.encryptedSize(length)];
+		int encryptedLength = to.tryEncrypt(buffer, 0, length, encrypted, 0);
+		return new ByteArray(encryptedLength == encrypted.length ? encrypted : Arrays.copyOf(encrypted, encryptedLength));
+	}
+
 	/**
 	 * @brief Adds a password entry.
+	 * 
+	 * Adds or replaces the entry of ```website```. The entry is encrypted
+	 * before taking the write lock, and is visible to other threads only
+	 * after it has been appended to the journal.
 	 *
 	 * @param      website                The website for which the password is used
 	 * @param      password               The password
 	 *
-	 * @throws     FileNotFoundException  If the password file can't be created.
+	 * @throws     FileNotFoundException  If the journal file can't be created.
 	 * @throws     IOException            If an error occurs when writing to file.
 	 */
 	public void addEntry(String website, String password)
 	throws FileNotFoundException, IOException, Exception {
-		byte[] rawEncryptedWebsite = cipher.tryEncrypt(website);
-		byte[] rawEncryptedPassword = cipher.tryEncrypt(password);
-		String pathname = Naming.directoryName(user) + File.separator +
-				Naming.entryFilename(user, website);
+		CipherPool pool = ciphers;
+		EncryptedEntry entry = encryptEntry(pool.get(), website, password);
 
-		ArrayList<ByteArray> encryptedData = new ArrayList<ByteArray>();
-		ByteArray encryptedWebsite = new ByteArray(rawEncryptedWebsite);
-		ByteArray encryptedPassword = new ByteArray(rawEncryptedPassword);
+		long ticket;
+		synchronized (writeLock) {
+			lockJournal();
+			try {
+				if (pool != ciphers)
+					entry = encryptEntry(ciphers.get(), website, password);
+				ticket = appendToJournal(entry);
+				if (lazy)
+					forgetPassword(website);
+				else
+					cachePassword(website, new DecryptedPassword(entry, secrets.put(password)));
+				encryptedEntries.put(website, entry);
+			} finally {
+				unlockJournal();
+			}
+		}
+		awaitDurable(ticket);
+	}
+
+	/**
+	 * @brief Adds several password entries at once.
+	 * 
+	 * Adds or replaces the entry of each website in ```entries```. The
+	 * entries are encrypted on ```pool```, split in parts of at least
+	 * ```minEncryptChunk``` entries, and then appended to the journal with
+	 * a single write. Either all of the entries are added, or none.
+	 *
+	 * @param      entries      The passwords of the websites
+	 * @param      pool         The threads encrypting the entries, or null
+	 * to encrypt them on the calling thread
+	 *
+	 * @throws     IOException  If an error occurs when writing to file.
+	 * @throws     Exception    If an entry couldn't be encrypted.
+	 */
+	public void addEntries(Map<String, String> entries, ExecutorService pool)
+	throws IOException, Exception {
+		final ArrayList<String> websites = new ArrayList<String>(entries.keySet());
+		final ArrayList<String> passwords = new ArrayList<String>(entries.values());
+		ArrayList<EncryptedEntry> encrypted = new ArrayList<EncryptedEntry>(websites.size());
+		final CipherPool encrypters = ciphers;
 
-		encryptedData.add(encryptedWebsite);
-		encryptedData.add(encryptedPassword);
+		int chunkSize = Math.max(minEncryptChunk, (websites.size() + defaultLoadThreads - 1) / defaultLoadThreads);
+		if (pool == null || websites.size() <= chunkSize) {
+			encrypted.addAll(encryptEntries(encrypters.get(), websites, passwords));
+		} else {
+			ArrayList<Callable<List<EncryptedEntry>>> tasks = new ArrayList<Callable<List<EncryptedEntry>>>();
+			for (int start = 0; start < websites.size(); start += chunkSize) {
+				final int end = Math.min(start + chunkSize, websites.size());
+				final int from = start;
+				tasks.add(new Callable<List<EncryptedEntry>>() {
+					public List<EncryptedEntry> call() throws Exception {
+						return encryptEntries(encrypters.get(), websites.subList(from, end),
+							passwords.subList(from, end));
+					}
+				});
+			}
+			for (Future<List<EncryptedEntry>> result : pool.invokeAll(tasks))
+				encrypted.addAll(getResult(result));
+		}
 
-		EncodedFileWriter fileWriter = new EncodedFileWriter(pathname);
-		fileWriter.writeData(encryptedData);
-		fileWriter.close();
-		passwordMap.put(website, password);
+		long ticket;
+		synchronized (writeLock) {
+			lockJournal();
+			try {
+				if (encrypters != ciphers) {
+					encrypted.clear();
+					encrypted.addAll(encryptEntries(ciphers.get(), websites, passwords));
+				}
+				ticket = appendToJournal(encrypted);
+				for (int i = 0; i < websites.size(); ++i) {
+					if (lazy)
+						forgetPassword(websites.get(i));
+					else
+						cachePassword(websites.get(i), new DecryptedPassword(encrypted.get(i), secrets.put(passwords.get(i))));
+					encryptedEntries.put(websites.get(i), encrypted.get(i));
+				}
+			} finally {
+				unlockJournal();
+			}
+		}
+		awaitDurable(ticket);
+	}
+
+	/**
+	 * @brief Encrypt a list of entries
+	 *
+	 * @param      cipher     The cipher used to encrypt the entries
+	 * @param      websites   The websites
+	 * @param      passwords  The password of each website
+	 *
+	 * @return     The encrypted entries, in the same order.
+	 *
+	 * @throws     Exception  If an entry couldn't be encrypted.
+	 */
+	private static List<EncryptedEntry> encryptEntries(StringCipher cipher, List<String> websites,
+		List<String> passwords) throws Exception {
+		ArrayList<EncryptedEntry> encrypted = new ArrayList<EncryptedEntry>(websites.size());
+		for (int i = 0; i < websites.size(); ++i)
+			encrypted.add(encryptEntry(cipher, websites.get(i), passwords.get(i)));
+		return encrypted;
+	}
+
+	/**
+	 * @brief Encrypt an entry
+	 *
+	 * @param      cipher     The cipher used to encrypt the entry
+	 * @param      website    The website
+	 * @param      password   The password of the website
+	 *
+	 * @return     The encrypted entry
+	 *
+	 * @throws     Exception  If the entry couldn't be encrypted.
+	 */
+	private static EncryptedEntry encryptEntry(StringCipher cipher, String website, String password)
+	throws Exception {
+		ByteArray encryptedWebsite = new ByteArray(cipher.tryEncrypt(website));
+		ByteArray encryptedPassword = new ByteArray(cipher.tryEncrypt(password));
+		return new EncryptedEntry(encryptedWebsite, encryptedPassword);
 	}
 
 	/**
@@ -265,33 +1663,219 @@ public class EncryptedMap {
 	 *
 	 * @param      website    The website for which the password is used.
 	 *
-	 * @throws     Exception  If an error occurs when deleting the password file.
+	 * @throws     Exception  If an error occurs when writing the journal.
 	 */
 	public void removeEntry(String website) throws Exception {
-		String pathname = Naming.directoryName(user) + File.separator +
-				Naming.entryFilename(user, website);
-		EncodedFileWriter.deleteFile(pathname);
-		passwordMap.remove(website);
+		CipherPool pool = ciphers;
+		ByteArray encryptedWebsite = new ByteArray(pool.get().tryEncrypt(website));
+		long ticket;
+		synchronized (writeLock) {
+			try {
+				lockJournal();
+			} catch (IOException e) {
+				throw new Exception("Couldn't remove " + website + " from the vault.", e);
+			}
+			try {
+				if (!encryptedEntries.containsKey(website))
+					return;
+				if (pool != ciphers)
+					encryptedWebsite = new ByteArray(ciphers.get().tryEncrypt(website));
+				try {
+					ticket = appendToJournal(VaultJournal.removal(encryptedWebsite));
+				} catch (IOException e) {
+					throw new Exception("Couldn't remove " + website + " from the vault.", e);
+				}
+				encryptedEntries.remove(website);
+				forgetPassword(website);
+			} finally {
+				unlockJournal();
+			}
+		}
+		try {
+			awaitDurable(ticket);
+		} catch (IOException e) {
+			throw new Exception("Couldn't remove " + website + " from the vault.", e);
+		}
 	}
 
 	/**
 	 * @brief Get the stored websites
+	 * 
+	 * The returned set is a live, read-only view. It can be iterated while
+	 * other threads add or remove entries.
 	 *
 	 * @return     The websites.
 	 */
 	public Set<String> getWebsites() {
-		return passwordMap.keySet();
+		return Collections.unmodifiableSet(encryptedEntries.keySet());
 	}
 
 	/**
 	 * @brief Gets the website password.
+	 * 
+	 * In lazy mode, the password is decrypted if it is not in the cache
+	 * of recently used passwords. The returned String can't be wiped;
+	 * getWebsitePasswordChars avoids leaving copies on the heap.
 	 *
 	 * @param      website  The website for which we want the password
 	 *
-	 * @return     The password.
+	 * @return     The password, or null if there is no entry for ```website```.
+	 *
+	 * @throws     Exception  If the entry has been corrupted or the map is locked.
+	 */
+	public String getWebsitePassword(String website) throws Exception {
+		char[] password = getWebsitePasswordChars(website);
+		if (password == null)
+			return null;
+		try {
+			return new String(password);
+		} finally {
+			Arrays.fill(password, '\0');
+		}
+	}
+
+	/**
+	 * @brief Gets a copy of the website password that can be wiped
+	 * 
+	 * Same as getWebsitePassword, but the password is copied out of the
+	 * store into a new array. The caller should zero it with Arrays.fill
+	 * as soon as it is done with it.
+	 *
+	 * @param      website  The website for which we want the password
+	 *
+	 * @return     The password, or null if there is no entry for ```website```.
+	 *
+	 * @throws     Exception  If the entry has been corrupted or the map is locked.
+	 */
+	public char[] getWebsitePasswordChars(String website) throws Exception {
+		while (true) {
+			if (locked)
+				throw new Exception("The vault of " + user + " is locked.");
+			int generation = keyGeneration;
+			EncryptedEntry entry = encryptedEntries.get(website);
+			if (entry == null)
+				return null;
+
+			DecryptedPassword decrypted = passwordMap.get(website);
+			if (decrypted != null && decrypted.entry.equals(entry)) {
+				char[] password = secrets.chars(decrypted.password);
+				if (password != null)
+					return password;
+				// freed by another thread since it was looked up
+				continue;
+			}
+
+			SecretStore.Secret password;
+			try {
+				password = decryptPassword(ciphers.get(), entry);
+			} catch (BadPaddingException | Hmac.IntegrityException e) {
+				// the entry or the cipher may be from before a key rotation
+				if (generation % 2 == 0 && generation == keyGeneration)
+					throw new Exception("Password of " + website + " is corrupted.", e);
+				Thread.yield();
+				continue;
+			} catch (Exception e) {
+				// a record of the old key can also fail as a malformed legacy record
+				if (generation % 2 == 0 && generation == keyGeneration)
+					throw e;
+				Thread.yield();
+				continue;
+			}
+			char[] chars = secrets.chars(password);
+			cachePassword(website, new DecryptedPassword(entry, password));
+			if (chars != null)
+				return chars;
+		}
+	}
+
+	/**
+	 * @brief Keep a decrypted password
+	 * 
+	 * The password it replaces is zeroed, unless it is the same one.
+	 *
+	 * @param      website    The website
+	 * @param      decrypted  The password and its entry
+	 */
+	private void cachePassword(String website, DecryptedPassword decrypted) {
+		DecryptedPassword previous = passwordMap.put(website, decrypted);
+		if (previous != null && previous.password != decrypted.password)
+			secrets.free(previous.password);
+	}
+
+	/**
+	 * @brief Forget the decrypted password of a website and zero it
+	 *
+	 * @param      website  The website
+	 */
+	private void forgetPassword(String website) {
+		DecryptedPassword previous = passwordMap.remove(website);
+		if (previous != null)
+			secrets.free(previous.password);
+	}
+
+	/**
+	 * @brief A decrypted password and the entry it was decrypted from
+	 * 
+	 * A decrypted password is valid only while its entry is the current
+	 * entry of the website. This way a password decrypted by a reader
+	 * while a writer replaced the entry is never returned.
 	 */
-	public String getWebsitePassword(String website) {
-		return passwordMap.get(website);
+	private static class DecryptedPassword {
+		final EncryptedEntry entry; ///< The entry the password was decrypted from
+		final SecretStore.Secret password; ///< The decrypted password, in ```secrets```
+
+		DecryptedPassword(EncryptedEntry entry, SecretStore.Secret password) {
+			this.entry = entry;
+			this.password = password;
+		}
+	}
+
+	/**
+	 * @brief Cache of recently used passwords
+	 * 
+	 * A map that holds at most ```lazyCacheSize``` passwords, evicting
+	 * the least recently used one when it is full. Evicted passwords are
+	 * zeroed.
+	 */
+	@SuppressWarnings("serial")
+	private static class PasswordCache extends LinkedHashMap<String, DecryptedPassword> {
+		private final SecretStore secrets; ///< The store holding the passwords
+
+		/**
+		 * Constructs an empty cache ordered by access.
+		 *
+		 * @param      secrets  The store holding the passwords
+		 */
+		PasswordCache(SecretStore secrets) {
+			super(lazyCacheSize, 0.75f, true);
+			this.secrets = secrets;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, DecryptedPassword> eldest) {
+			if (size() <= lazyCacheSize)
+				return false;
+			secrets.free(eldest.getValue().password);
+			return true;
+		}
+	}
+
+	/**
+	 * @brief Lock the map and zero the decrypted passwords
+	 * 
+	 * Stops watching the vault and wipes every decrypted password. Later
+	 * lookups and changes fail; the website names stay readable. Copies
+	 * handed out by getWebsitePasswordChars are up to their callers.
+	 *
+	 * @throws     IOException  If the watcher couldn't be closed.
+	 */
+	public void lock() throws IOException {
+		synchronized (writeLock) {
+			locked = true;
+			passwordMap.clear();
+			secrets.wipe();
+			stopWatching();
+		}
 	}
 
 	/**
@@ -302,9 +1886,24 @@ public class EncryptedMap {
 	 * @throws     Exception  If an error occurs when deleting a file.
 	 */
 	public void deleteAccount() throws Exception {
-		EncodedFileWriter.deleteFile(Naming.directoryName(user));
-		EncodedFileWriter.deleteFile(Naming.masterSaltFilename(user));
-		EncodedFileWriter.deleteFile(Naming.macSaltFilename(user));
-		EncodedFileWriter.deleteFile(Naming.keyFileName(user));
+		synchronized (writeLock) {
+			deleted = true;
+			passwordMap.clear();
+			secrets.wipe();
+			stopWatching();
+			vaultLock.lock(VaultLock.journal);
+			try {
+				EncodedFileWriter.deleteFile(Naming.directoryName(user));
+				EncodedFileWriter.deleteFile(Naming.vaultFilename(user));
+				if (new File(Naming.journalFilename(user)).exists())
+					EncodedFileWriter.deleteFile(Naming.journalFilename(user));
+				EncodedFileWriter.deleteFile(Naming.masterSaltFilename(user));
+				EncodedFileWriter.deleteFile(Naming.macSaltFilename(user));
+				EncodedFileWriter.deleteFile(Naming.keyFileName(user));
+			} finally {
+				vaultLock.unlock(VaultLock.journal);
+			}
+			Files.deleteIfExists(Paths.get(Naming.lockFilename(user)));
+		}
 	}
 }
@@ -1,6 +1,7 @@
 package Password_Manager.Encryption;
-import Password_Manager.EncodedFileReader;
+import Password_Manager.MappedEncodedFileReader;
 import Password_Manager.ByteArray;
+import Password_Manager.Metrics;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
@@ -16,14 +17,17 @@ import java.util.*;
  */
 public class CipherBuilder {
 	private static final String cipherInitString = "AES/CBC/PKCS5Padding"; ///< String representing the type of cipher
-	private static final int pbeIterations = 1000; ///< Iterations of PBEKeySpec
+	private static final String gcmInitString = "AES/GCM/NoPadding"; ///< Cipher of RecordFormat::GCM records
+	private static final byte[] gcmKeyLabel = "Password_Manager GCM record key".getBytes(); ///< Input deriving the GCM key from the master key
+	public static final RecordFormat recordFormat = RecordFormat.GCM; ///< Format of newly encrypted entries
 	public static final KeyTypes encryptionKeyType = KeyTypes.AES128; /// Type of encryption key (AES-128)
+	private static final ThreadLocal<SecureRandom> threadRandoms = new ThreadLocal<SecureRandom>(); ///< Random number generator of each thread
 
 	/**
 	 * @brief Build cipher from master and mac keys
 	 * 
-	 * Creates a cipher that uses ```keyBytes``` to encrypt and
-	 * ```macBytes``` to mac data.
+	 * Creates a cipher that encrypts entries in ```recordFormat```, using
+	 * keys derived from ```keyBytes``` and ```macBytes```.
 	 *
 	 * @param      keyBytes   The master key as a byte array
 	 * @param      macBytes   The mac key as a byte array
@@ -33,11 +37,52 @@ public class CipherBuilder {
 	 * @throws     Exception  If an error occurred creating the ciphers.
 	 */
 	public static StringCipher build(byte[] keyBytes, byte[] macBytes) throws Exception {
+		return build(keyBytes, macBytes, recordFormat);
+	}
+
+	/**
+	 * @brief Build cipher writing a given record format
+	 * 
+	 * A CBC_HMAC cipher uses ```keyBytes``` to encrypt and ```macBytes``` to
+	 * mac data. A GCM cipher encrypts with a key derived from ```keyBytes```,
+	 * so the master key is never used by two AES modes, and also reads
+	 * CBC_HMAC records.
+	 *
+	 * @param      keyBytes   The master key as a byte array
+	 * @param      macBytes   The mac key as a byte array
+	 * @param      format     The format of the records the cipher writes
+	 *
+	 * @return     the newly created cipher
+	 *
+	 * @throws     Exception  If an error occurred creating the ciphers.
+	 */
+	public static StringCipher build(byte[] keyBytes, byte[] macBytes, RecordFormat format)
+	throws Exception {
 		Cipher cipher = createCipher();
 		SecretKey secretKey = new SecretKeySpec(keyBytes, 0, keyBytes.length,
 												encryptionKeyType.getType());
 		Hmac hmac = new Hmac(macBytes);
-		return new StringCipherImpl(cipher, secretKey, hmac);
+		StringCipher cbcCipher = new StringCipherImpl(cipher, secretKey, hmac);
+		if (format == RecordFormat.CBC_HMAC)
+			return cbcCipher;
+		return new GcmStringCipher(createGcmCipher(), gcmKey(keyBytes), cbcCipher);
+	}
+
+	/**
+	 * @brief Build a pool of ciphers from master and mac keys
+	 * 
+	 * Creates a pool handing out ciphers that use ```keyBytes``` to encrypt
+	 * and ```macBytes``` to mac data, one for each thread.
+	 *
+	 * @param      keyBytes   The master key as a byte array
+	 * @param      macBytes   The mac key as a byte array
+	 *
+	 * @return     the newly created pool
+	 *
+	 * @throws     Exception  If an error occurred creating the ciphers.
+	 */
+	public static CipherPool buildPool(byte[] keyBytes, byte[] macBytes) throws Exception {
+		return new CipherPool(build(keyBytes, macBytes));
 	}
 
 	/**
@@ -48,14 +93,57 @@ public class CipherBuilder {
 	 *
 	 * @param      saltFilename  The name of the salt file
 	 * @param      password      The password
+	 * @param      kdf           The key derivation settings
 	 *
 	 * @return     The generated cipher
 	 *
 	 * @throws     Exception     If there was an error reading from the salt file or creating the cipher.
 	 */
-	public static StringCipher build(String saltFilename, String password) throws Exception {
+	public static StringCipher build(String saltFilename, String password, KdfParameters kdf)
+	throws Exception {
 		byte[] salt = readSaltFromFile(saltFilename);
-		return build(password, salt);
+		return build(password, salt, kdf);
+	}
+
+	/**
+	 * @brief Build cipher from salt filename and password, using a session cache
+	 * 
+	 * Same as build(saltFilename, password, kdf), but the salt and the derived
+	 * key are taken from ```session``` if it has them, and added to it otherwise.
+	 * A newly derived key is only used by later unlocks once the caller
+	 * confirms it with UnlockSession::confirm.
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 * @param      password      The password
+	 * @param      kdf           The key derivation settings
+	 * @param      session       The unlock session, or null to use no cache
+	 *
+	 * @return     The generated cipher
+	 *
+	 * @throws     Exception     If there was an error reading from the salt file or creating the cipher.
+	 */
+	public static StringCipher build(String saltFilename, String password,
+		KdfParameters kdf, UnlockSession session) throws Exception {
+		if (session == null)
+			return build(saltFilename, password, kdf);
+
+		byte[] salt = session.getSalt(saltFilename);
+		if (salt == null) {
+			Object version = UnlockSession.fileVersion(saltFilename);
+			salt = readSaltFromFile(saltFilename);
+			session.putSalt(saltFilename, salt, version);
+		}
+
+		byte[] keyBytes = session.getKey(saltFilename, salt, password, kdf);
+		if (keyBytes == null) {
+			keyBytes = deriveKey(password, salt, kdf);
+			session.putKey(saltFilename, salt, password, kdf, keyBytes);
+		}
+
+		SecretKey secretKey = new SecretKeySpec(keyBytes, 0, keyBytes.length,
+												encryptionKeyType.getType());
+		Arrays.fill(keyBytes, (byte)0);
+		return new StringCipherImpl(createCipher(), secretKey);
 	}
 
 	/**
@@ -66,14 +154,16 @@ public class CipherBuilder {
 	 *
 	 * @param      password   The password
 	 * @param      salt       The salt
+	 * @param      kdf        The key derivation settings
 	 *
 	 * @return     { description_of_the_return_value }
 	 *
 	 * @throws     Exception  { exception_description }
 	 */
-	public static StringCipher build(String password, byte[] salt) throws Exception {
+	public static StringCipher build(String password, byte[] salt, KdfParameters kdf)
+	throws Exception {
 		Cipher cipher = createCipher();
-		SecretKey secretKey = keyFromPasswordAndSalt(password, salt);
+		SecretKey secretKey = keyFromPasswordAndSalt(password, salt, kdf);
 		return new StringCipherImpl(cipher, secretKey);
 	}
 
@@ -88,7 +178,7 @@ public class CipherBuilder {
 	 *
 	 * @throws     Exception  If the ```cipherInitString``` is invalid.
 	 */
-	private static Cipher createCipher() throws Exception {
+	static Cipher createCipher() throws Exception {
 		try {
 			return Cipher.getInstance(cipherInitString);
 		} catch (Exception e) {
@@ -96,6 +186,43 @@ public class CipherBuilder {
 		}
 	}
 
+	/**
+	 * @brief Creates an AES-GCM Cipher
+	 *
+	 * @return     A javax.crypto.Cipher object for RecordFormat::GCM records
+	 *
+	 * @throws     Exception  If AES-GCM is not available.
+	 */
+	static Cipher createGcmCipher() throws Exception {
+		try {
+			return Cipher.getInstance(gcmInitString);
+		} catch (Exception e) {
+			throw new Exception("Unknown options for encryption algorithm.", e);
+		}
+	}
+
+	/**
+	 * @brief Derive the GCM key from the master key
+	 *
+	 * The key is the start of the HMAC-SHA-256 of a fixed label under the
+	 * master key.
+	 *
+	 * @param      keyBytes   The master key
+	 *
+	 * @return     The GCM key
+	 *
+	 * @throws     Exception  If HMAC-SHA-256 is not available.
+	 */
+	private static SecretKey gcmKey(byte[] keyBytes) throws Exception {
+		Mac mac = Mac.getInstance(Hmac.keyType.getType());
+		mac.init(new SecretKeySpec(keyBytes, Hmac.keyType.getType()));
+		byte[] derived = mac.doFinal(gcmKeyLabel);
+		SecretKey key = new SecretKeySpec(derived, 0, encryptionKeyType.sizeInBytes(),
+										  encryptionKeyType.getType());
+		Arrays.fill(derived, (byte)0);
+		return key;
+	}
+
 	/**
 	 * @brief Reads a salt from file.
 	 *
@@ -107,7 +234,7 @@ public class CipherBuilder {
 	 */
 	private static byte[] readSaltFromFile(String saltFilename) throws Exception {
 		try {
-			EncodedFileReader fileReader = new EncodedFileReader(saltFilename);
+			MappedEncodedFileReader fileReader = new MappedEncodedFileReader(saltFilename);
 			ArrayList<ByteArray> data = fileReader.readData();
 			fileReader.close();
 
@@ -127,19 +254,62 @@ public class CipherBuilder {
 	 *
 	 * @param      password   The user's password
 	 * @param      salt       The salt as a byte array
+	 * @param      kdf        The key derivation settings
 	 *
 	 * @return     The generated key
 	 *
 	 * @throws     Exception  If an error occurs when creating the key
 	 */
-	private static SecretKey keyFromPasswordAndSalt(String password, byte[] salt)
+	private static SecretKey keyFromPasswordAndSalt(String password, byte[] salt, KdfParameters kdf)
 	throws Exception {
+		byte[] secretKeyBytes = deriveKey(password, salt, kdf);
+		return new SecretKeySpec(secretKeyBytes, 0, secretKeyBytes.length, encryptionKeyType.getType());
+	}
+
+	/**
+	 * @brief Derive raw key bytes from password and salt
+	 * 
+	 * Runs PBKDF2 on the password and the salt, and times it.
+	 *
+	 * @param      password   The user's password
+	 * @param      salt       The salt as a byte array
+	 * @param      kdf        The key derivation settings
+	 *
+	 * @return     The derived key bytes
+	 *
+	 * @throws     Exception  If an error occurs when deriving the key
+	 */
+	private static byte[] deriveKey(String password, byte[] salt, KdfParameters kdf) throws Exception {
+		long start = Metrics.start();
+		try {
+			return derive(password, salt, kdf);
+		} finally {
+			Metrics.kdf.stop(start);
+		}
+	}
+
+	/**
+	 * @brief Run PBKDF2 on a password and a salt
+	 * 
+	 * Not timed by Metrics, so KdfParameters::calibrate can use it.
+	 *
+	 * @param      password   The password
+	 * @param      salt       The salt as a byte array
+	 * @param      kdf        The key derivation settings
+	 *
+	 * @return     The derived key bytes
+	 *
+	 * @throws     Exception  If an error occurs when deriving the key
+	 */
+	static byte[] derive(String password, byte[] salt, KdfParameters kdf) throws Exception {
 		try {
 			char[] chars = password.toCharArray();
-			PBEKeySpec spec = new PBEKeySpec(chars, salt, pbeIterations, encryptionKeyType.sizeInBits());
-			SecretKeyFactory skf = SecretKeyFactory.getInstance(KeyTypes.PBKD_HMACSHA1.getType());
+			PBEKeySpec spec = new PBEKeySpec(chars, salt, kdf.getIterations(), encryptionKeyType.sizeInBits());
+			SecretKeyFactory skf = SecretKeyFactory.getInstance(kdf.getAlgorithm().getType());
 			byte[] secretKeyBytes = skf.generateSecret(spec).getEncoded();
-			return new SecretKeySpec(secretKeyBytes, 0, secretKeyBytes.length, encryptionKeyType.getType());
+			spec.clearPassword();
+			Arrays.fill(chars, '\0');
+			return secretKeyBytes;
 		} catch (Exception e) {
 			throw new Exception("Problem creating key from password and salt.", e);
 		}
@@ -175,8 +345,24 @@ public class CipherBuilder {
 	 */
 	public static byte[] randomData(int size) {
 		byte[] generated = new byte[size];
-		SecureRandom prng = new SecureRandom();
-		prng.nextBytes(generated);
+		randomData(generated);
 		return generated;
 	}
+
+	/**
+	 * @brief fill an array with random data
+	 * 
+	 * Uses the calling thread's SecureRandom, which is created the first
+	 * time the thread needs random data and reused afterwards.
+	 *
+	 * @param      buffer  The array to fill
+	 */
+	public static void randomData(byte[] buffer) {
+		SecureRandom prng = threadRandoms.get();
+		if (prng == null) {
+			prng = new SecureRandom();
+			threadRandoms.set(prng);
+		}
+		prng.nextBytes(buffer);
+	}
 }
@@ -0,0 +1,40 @@
+package Password_Manager.Encryption;
+
+/**
+ * @brief Pool of ciphers sharing the same keys
+ * 
+ * StringCipher objects are not thread safe. A CipherPool hands out one
+ * cipher per thread, duplicated from a prototype the first time the
+ * thread asks for it. Every later call from that thread returns the same
+ * cipher, with its javax.crypto.Cipher, Mac, SecureRandom and IV buffer
+ * already created, so encrypting an entry needs no provider lookups.
+ */
+public class CipherPool {
+	private final StringCipher prototype; ///< The cipher that is duplicated for each thread
+	private final ThreadLocal<StringCipher> threadCiphers = new ThreadLocal<StringCipher>(); ///< Cipher of each thread
+
+	/**
+	 * @brief Create a pool of duplicates of ```prototype```
+	 *
+	 * @param      prototype  The cipher to duplicate. It is not used directly.
+	 */
+	public CipherPool(StringCipher prototype) {
+		this.prototype = prototype;
+	}
+
+	/**
+	 * @brief Get the calling thread's cipher
+	 *
+	 * @return     The cipher of the calling thread
+	 *
+	 * @throws     Exception  If the cipher couldn't be created.
+	 */
+	public StringCipher get() throws Exception {
+		StringCipher cipher = threadCiphers.get();
+		if (cipher == null) {
+			cipher = prototype.duplicate();
+			threadCiphers.set(cipher);
+		}
+		return cipher;
+	}
+}
@@ -0,0 +1,315 @@
+package Password_Manager.Encryption;
+
+import Password_Manager.Metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * @brief StringCipher writing AES-GCM records
+ *
+ * Encrypts into RecordFormat::GCM records. The version byte is
+ * authenticated along with the data, so a record can't be passed off as
+ * another format.
+ *
+ * Decrypts both GCM records and the older CBC_HMAC records, using the
+ * cipher given for the old format. Since CBC_HMAC records start with a
+ * random IV, one in 256 of them starts with the GCM version byte; those
+ * fail GCM authentication and are then decrypted as CBC_HMAC records.
+ */
+class GcmStringCipher implements StringCipher {
+	private static final int nonceSize = 12; ///< Size of the GCM nonce
+	private static final int tagSize = 16; ///< Size of the GCM authentication tag
+	private static final int overhead = 1 + nonceSize + tagSize; ///< Bytes a record adds to its data
+	private static final byte version = RecordFormat.GCM.version(); ///< First byte of every record
+	private final Cipher cipher; ///< AES-GCM cipher
+	private final SecretKey secretKey; ///< GCM key
+	private final StringCipher legacy; ///< Cipher of CBC_HMAC records, or null if they aren't accepted
+	private final byte[] nonceBuffer = new byte[nonceSize]; ///< Reused for the nonce of every encryption
+	private final byte[] versionBuffer = {version}; ///< Additional authenticated data of every record
+
+	/**
+	 * Constructs a cipher from an AES-GCM javax.crypto.Cipher and its key.
+	 *
+	 * @param      cipher     The java cipher
+	 * @param      secretKey  The GCM key
+	 * @param      legacy     The cipher decrypting CBC_HMAC records, or null
+	 */
+	GcmStringCipher(Cipher cipher, SecretKey secretKey, StringCipher legacy) {
+		this.cipher = cipher;
+		this.secretKey = secretKey;
+		this.legacy = legacy;
+	}
+
+	/**
+	 * @brief Create an independent cipher with the same keys
+	 *
+	 * @return     A new cipher using the same keys
+	 *
+	 * @throws     Exception  If the javax.crypto.Cipher couldn't be created.
+	 */
+	public StringCipher duplicate() throws Exception {
+		return new GcmStringCipher(CipherBuilder.createGcmCipher(), secretKey,
+			legacy == null ? null : legacy.duplicate());
+	}
+
+	/**
+	 * @brief Encrypt a string
+	 *
+	 * Converts the string to a byte array using the UTF8 character set and
+	 * encrypts it into a GCM record.
+	 *
+	 * @param      plaintext  The plaintext string
+	 *
+	 * @return     The record
+	 *
+	 * @throws     Exception  If unknown options were given to the encryption algorithm
+	 */
+	public byte[] tryEncrypt(String plaintext) throws Exception {
+		return tryEncrypt(plaintext.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @brief Encrypt a byte array
+	 *
+	 * Encrypts the whole array into a new GCM record.
+	 *
+	 * @param      plaintext  The plaintext byte array
+	 *
+	 * @return     The record
+	 *
+	 * @throws     Exception  If unknown options were given to the encryption algorithm
+	 */
+	public byte[] tryEncrypt(byte[] plaintext) throws Exception {
+		byte[] encrypted = new byte[encryptedSize(plaintext.length)];
+		tryEncrypt(plaintext, 0, plaintext.length, encrypted, 0);
+		return encrypted;
+	}
+
+	/**
+	 * @brief Encrypt part of an array into a given array
+	 *
+	 * Writes the version byte and a random nonce, followed by the
+	 * ciphertext and the tag.
+	 *
+	 * @param      plaintext     The array containing the plaintext
+	 * @param      offset        The start of the plaintext
+	 * @param      length        The length of the plaintext
+	 * @param      output        The array the record is written to
+	 * @param      outputOffset  Where the record is written in ```output```
+	 *
+	 * @return     The length of the record
+	 *
+	 * @throws     Exception  If unknown options were given to the encryption algorithm,
+	 * or ```output``` is too short.
+	 */
+	public int tryEncrypt(byte[] plaintext, int offset, int length, byte[] output, int outputOffset)
+	throws Exception {
+		long start = Metrics.start();
+		try {
+			CipherBuilder.randomData(nonceBuffer);
+			cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(8*tagSize, nonceBuffer));
+			cipher.updateAAD(versionBuffer);
+
+			output[outputOffset] = version;
+			System.arraycopy(nonceBuffer, 0, output, outputOffset + 1, nonceSize);
+			int position = outputOffset + 1 + nonceSize;
+			position += cipher.doFinal(plaintext, offset, length, output, position);
+			return position - outputOffset;
+		} catch (Exception e) {
+			throw new Exception("Problem with encryption algorithm.", e);
+		} finally {
+			Metrics.encrypt.stop(start, length);
+		}
+	}
+
+	/**
+	 * @brief Size of the encrypted data
+	 *
+	 * Returns how many bytes tryEncrypt writes for a plaintext of
+	 * ```plaintextLength``` bytes: the version byte, the nonce, the
+	 * ciphertext, which is as long as the plaintext, and the tag.
+	 *
+	 * @param      plaintextLength  The length of the plaintext
+	 *
+	 * @return     The length of the record
+	 */
+	public int encryptedSize(int plaintextLength) {
+		return overhead + plaintextLength;
+	}
+
+	/**
+	 * @brief Decrypt a GCM or CBC_HMAC record to a string
+	 *
+	 * @param      encrypted  The record
+	 *
+	 * @return     The plaintext, decoded with the UTF8 character set
+	 *
+	 * @throws     BadPaddingException  If the record was corrupted
+	 * @throws     Exception            If unknown options were given to the decryption algorithm.
+	 */
+	public String tryDecryptString(byte[] encrypted) throws Exception {
+		return new String(tryDecrypt(encrypted), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @brief Decrypt a GCM or CBC_HMAC record
+	 *
+	 * The plaintext of either format is shorter than its record, so it is
+	 * decrypted into an array as long as the record and then trimmed.
+	 *
+	 * @param      encrypted  The record
+	 *
+	 * @return     The plaintext
+	 *
+	 * @throws     BadPaddingException  If the record was corrupted
+	 * @throws     Exception            If unknown options were given to the decryption algorithm.
+	 */
+	public byte[] tryDecrypt(byte[] encrypted) throws Exception {
+		byte[] decrypted = new byte[encrypted.length];
+		int length = tryDecrypt(encrypted, 0, encrypted.length, decrypted, 0);
+		return Arrays.copyOf(decrypted, length);
+	}
+
+	/**
+	 * @brief Decrypt a GCM or CBC_HMAC record into a given array
+	 *
+	 * @param      encrypted            The array containing the record
+	 * @param      offset               The start of the record
+	 * @param      length               The length of the record
+	 * @param      output               The array the plaintext is written to
+	 * @param      outputOffset         Where the plaintext is written in ```output```
+	 *
+	 * @return     The length of the plaintext
+	 *
+	 * @throws     BadPaddingException  If the record was corrupted. For GCM
+	 * records this is an AEADBadTagException.
+	 * @throws     Exception            If the record was corrupted or ```output``` is too short.
+	 */
+	public int tryDecrypt(byte[] encrypted, int offset, int length, byte[] output, int outputOffset)
+	throws BadPaddingException, Exception {
+		if (length < overhead || encrypted[offset] != version)
+			return decryptLegacy(encrypted, offset, length, output, outputOffset);
+
+		long start = Metrics.start();
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, secretKey,
+				new GCMParameterSpec(8*tagSize, encrypted, offset + 1, nonceSize));
+			cipher.updateAAD(versionBuffer);
+			return cipher.doFinal(encrypted, offset + 1 + nonceSize, length - 1 - nonceSize,
+				output, outputOffset);
+		} catch (AEADBadTagException e) {
+			if (legacy == null)
+				throw e;
+			return decryptLegacy(encrypted, offset, length, output, outputOffset);
+		} catch (InvalidAlgorithmParameterException | InvalidKeyException |
+				IllegalBlockSizeException | ShortBufferException e) {
+			throw new Exception("Problem decrypting. Data corrupted.", e);
+		} finally {
+			Metrics.decrypt.stop(start, length);
+		}
+	}
+
+	/**
+	 * @brief Decrypt a GCM or CBC_HMAC record in a buffer into another buffer
+	 *
+	 * Same as tryDecrypt(byte[], int, int, byte[], int), for the bytes between
+	 * the position and the limit of ```encrypted```. The position of
+	 * ```encrypted``` is not changed. The position of ```output``` is moved
+	 * to the end of the plaintext.
+	 *
+	 * @param      encrypted            The record
+	 * @param      output               The buffer the plaintext is written to
+	 *
+	 * @return     The length of the plaintext
+	 *
+	 * @throws     BadPaddingException  If the record was corrupted.
+	 * @throws     Exception            If the record was corrupted or ```output``` is too short.
+	 */
+	public int tryDecrypt(ByteBuffer encrypted, ByteBuffer output)
+	throws BadPaddingException, Exception {
+		int length = encrypted.remaining();
+		if (length < overhead || encrypted.get(encrypted.position()) != version)
+			return decryptLegacy(encrypted, output);
+
+		long start = Metrics.start();
+		try {
+			ByteBuffer record = encrypted.duplicate();
+			record.get();
+			record.get(nonceBuffer);
+			cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(8*tagSize, nonceBuffer));
+			cipher.updateAAD(versionBuffer);
+			return cipher.doFinal(record, output);
+		} catch (AEADBadTagException e) {
+			if (legacy == null)
+				throw e;
+			return decryptLegacy(encrypted, output);
+		} catch (InvalidAlgorithmParameterException | InvalidKeyException |
+				IllegalBlockSizeException | ShortBufferException e) {
+			throw new Exception("Problem decrypting. Data corrupted.", e);
+		} finally {
+			Metrics.decrypt.stop(start, length);
+		}
+	}
+
+	/**
+	 * @brief Check if a record is a GCM record
+	 *
+	 * Records starting with the version byte are checked by decrypting
+	 * them, to tell them apart from CBC_HMAC records with the same first byte.
+	 *
+	 * @param      encrypted  The record
+	 *
+	 * @return     True if the record is a valid GCM record.
+	 *
+	 * @throws     Exception  If the cipher couldn't be initialized.
+	 */
+	public boolean isCurrentFormat(byte[] encrypted) throws Exception {
+		if (encrypted.length < overhead || encrypted[0] != version)
+			return false;
+		byte[] plaintext = new byte[encrypted.length];
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, secretKey,
+				new GCMParameterSpec(8*tagSize, encrypted, 1, nonceSize));
+			cipher.updateAAD(versionBuffer);
+			cipher.doFinal(encrypted, 1 + nonceSize, encrypted.length - 1 - nonceSize, plaintext, 0);
+			return true;
+		} catch (AEADBadTagException e) {
+			return false;
+		} finally {
+			Arrays.fill(plaintext, (byte)0);
+		}
+	}
+
+	/**
+	 * @brief Decrypt a CBC_HMAC record
+	 *
+	 * @throws     BadPaddingException  If the record was corrupted.
+	 * @throws     Exception            If old records are not accepted, or the
+	 * record was corrupted.
+	 */
+	private int decryptLegacy(byte[] encrypted, int offset, int length, byte[] output, int outputOffset)
+	throws BadPaddingException, Exception {
+		if (legacy == null)
+			throw new Exception("Problem decrypting. Data corrupted.");
+		return legacy.tryDecrypt(encrypted, offset, length, output, outputOffset);
+	}
+
+	/**
+	 * @brief Decrypt a CBC_HMAC record in a buffer
+	 *
+	 * @throws     BadPaddingException  If the record was corrupted.
+	 * @throws     Exception            If old records are not accepted, or the
+	 * record was corrupted.
+	 */
+	private int decryptLegacy(ByteBuffer encrypted, ByteBuffer output)
+	throws BadPaddingException, Exception {
+		if (legacy == null)
+			throw new Exception("Problem decrypting. Data corrupted.");
+		return legacy.tryDecrypt(encrypted, output);
+	}
+}
@@ -2,14 +2,25 @@ package Password_Manager.Encryption;
 
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import Password_Manager.Encryption.KeyTypes;
+import Password_Manager.Metrics;
 
 /**
  * @brief Class for handling message authentication codes
+ * 
+ * Each thread using an Hmac object gets its own javax.crypto.Mac,
+ * initialized with the key once and reused for every message.
+ * 
+ * Besides the byte[] methods, there are overloads working on parts of
+ * arrays and on ByteBuffers, which verify macs in place and write macs
+ * to buffers given by the caller, without allocating.
  */
 public class Hmac {
-	private final byte[] key; ///< HMAC key
+	private final SecretKeySpec key; ///< HMAC key, a copy of the array given
+	private final ThreadLocal<Mac> threadMacs = new ThreadLocal<Mac>(); ///< Initialized Mac of each thread
+	private static final ThreadLocal<byte[]> threadTags = new ThreadLocal<byte[]>(); ///< Buffer of each thread for computing a mac to verify
 	public final static KeyTypes keyType = KeyTypes.HMACSHA256; ///< type of key used
 
 	/**
@@ -22,6 +33,8 @@ public class Hmac {
 	/**
 	 * @brief Construct an object from a byte array key
 	 *
+	 * The key is copied, so the caller may wipe its array afterwards.
+	 *
 	 * @param      key   The HMAC key
 	 * 
 	 * @throws     Exception If key argument is of the wrong size
@@ -31,7 +44,7 @@ public class Hmac {
 			throw new Exception("Wrong Key Size. " + keyType.sizeInBits()
 								+ " bits expected.");
 
-		this.key = key;
+		this.key = new SecretKeySpec(key, keyType.getType());
 	}
 
 	/**
@@ -47,8 +60,10 @@ public class Hmac {
 	 * @throws     Exception  If unknown options were used for the Mac algorithm
 	 */
 	public byte[] mac(byte[] message) throws Exception {
-		byte[] mac = getMac(message);
-		return Utility.concatByteArray(message, mac);
+		byte[] macced = new byte[message.length + keyType.sizeInBytes()];
+		System.arraycopy(message, 0, macced, 0, message.length);
+		getMac(message, 0, message.length, macced, message.length);
+		return macced;
 	}
 
 	/**
@@ -63,15 +78,63 @@ public class Hmac {
 	 * @throws     Exception  If unknown options were used for the Mac algorithm
 	 */
 	public byte[] getMac(byte[] message) throws Exception {
+		byte[] mac = new byte[keyType.sizeInBytes()];
+		getMac(message, 0, message.length, mac, 0);
+		return mac;
+	}
+
+	/**
+	 * @brief Gets the mac of part of an array
+	 * 
+	 * Computes the mac of ```length``` bytes of ```message``` starting at
+	 * ```offset```, and writes it to ```output``` at ```outputOffset```.
+	 *
+	 * @param      message       The array containing the message
+	 * @param      offset        The start of the message
+	 * @param      length        The length of the message
+	 * @param      output        The array the mac is written to
+	 * @param      outputOffset  Where the mac is written in ```output```
+	 *
+	 * @return     The length of the mac
+	 *
+	 * @throws     Exception  If unknown options were used for the Mac algorithm,
+	 * or ```output``` is too short.
+	 */
+	public int getMac(byte[] message, int offset, int length, byte[] output, int outputOffset)
+	throws Exception {
+		long start = Metrics.start();
 		try {
-			Mac hmac = Mac.getInstance(keyType.getType());
-			hmac.init(new SecretKeySpec(key, keyType.getType()));
-			return hmac.doFinal(message);
+			Mac hmac = threadMac();
+			hmac.update(message, offset, length);
+			hmac.doFinal(output, outputOffset);
+			return keyType.sizeInBytes();
 		} catch (Exception e) {
 			throw new Exception("Invalid parameters for MAC algorithm.", e);
+		} finally {
+			Metrics.hmac.stop(start, length);
 		}
 	}
 
+	/**
+	 * @brief Gets the Mac of the calling thread
+	 * 
+	 * Creates and initializes the thread's Mac the first time it is needed.
+	 * A Mac is reset after every doFinal, so it can be reused right away.
+	 *
+	 * @return     The initialized Mac
+	 *
+	 * @throws     Exception  If unknown options were used for the Mac algorithm
+	 */
+	private Mac threadMac() throws Exception {
+		Mac hmac = threadMacs.get();
+		if (hmac == null) {
+			hmac = Mac.getInstance(keyType.getType());
+			hmac.init(key);
+			threadMacs.set(hmac);
+		}
+		return hmac;
+	}
+
 	/**
 	 * @brief Unmac a macced message
 	 * 
@@ -86,19 +149,131 @@ public class Hmac {
 	 */
 	public byte[] unmac(byte[] maccedMessage) throws Hmac.IntegrityException,
 	Exception {
-		if (maccedMessage.length <= keyType.sizeInBytes())
+		int messageLength = unmac(maccedMessage, 0, maccedMessage.length);
+		return Arrays.copyOf(maccedMessage, messageLength);
+	}
+
+	/**
+	 * @brief Verify a macced message in place
+	 * 
+	 * Takes as input part of an array holding a message followed by its
+	 * mac, and checks the mac without copying anything. The comparison
+	 * takes the same time wherever the macs differ.
+	 *
+	 * @param      maccedMessage  The array containing the macced message
+	 * @param      offset         The start of the macced message
+	 * @param      length         The length of the message and the mac
+	 *
+	 * @return     The length of the message without the mac
+	 *
+	 * @throws     IntegrityException,Exception If the mac doesn't match the message.
+	 */
+	public int unmac(byte[] maccedMessage, int offset, int length)
+	throws Hmac.IntegrityException, Exception {
+		int macLength = keyType.sizeInBytes();
+		if (length <= macLength)
 			throw new Exception("Corrupted data. Invalid length.");
 
-		byte[] message = new byte[maccedMessage.length - keyType.sizeInBytes()];
-		System.arraycopy(maccedMessage, 0, message, 0, message.length);
+		int messageLength = length - macLength;
+		byte[] expectedMac = threadTag();
+		getMac(maccedMessage, offset, messageLength, expectedMac, 0);
+		if (!constantTimeEquals(expectedMac, 0, maccedMessage, offset + messageLength, macLength))
+			throw new Hmac.IntegrityException();
+
+		return messageLength;
+	}
 
-		byte[] mac = new byte[keyType.sizeInBytes()];
-		System.arraycopy(maccedMessage, message.length, mac, 0, mac.length);
+	/**
+	 * @brief Verify a macced message in a buffer
+	 * 
+	 * Same as unmac(byte[], int, int), for the bytes between the position
+	 * and the limit of ```maccedMessage```. The buffer's position and limit
+	 * are not changed.
+	 *
+	 * @param      maccedMessage  The buffer containing the macced message
+	 *
+	 * @return     The length of the message without the mac
+	 *
+	 * @throws     IntegrityException,Exception If the mac doesn't match the message.
+	 */
+	public int unmac(ByteBuffer maccedMessage) throws Hmac.IntegrityException, Exception {
+		int macLength = keyType.sizeInBytes();
+		if (maccedMessage.remaining() <= macLength)
+			throw new Exception("Corrupted data. Invalid length.");
 
-		if (!isMacCorrect(message, mac))
+		int messageLength = maccedMessage.remaining() - macLength;
+		ByteBuffer message = maccedMessage.duplicate();
+		message.limit(message.position() + messageLength);
+
+		byte[] expectedMac = threadTag();
+		long start = Metrics.start();
+		try {
+			Mac hmac = threadMac();
+			hmac.update(message);
+			hmac.doFinal(expectedMac, 0);
+		} catch (Exception e) {
+			throw new Exception("Invalid parameters for MAC algorithm.", e);
+		} finally {
+			Metrics.hmac.stop(start, messageLength);
+		}
+
+		if (!constantTimeEquals(expectedMac, 0, maccedMessage, maccedMessage.position() + messageLength, macLength))
 			throw new Hmac.IntegrityException();
 
-		return message;
+		return messageLength;
+	}
+
+	/**
+	 * @brief Gets the mac buffer of the calling thread
+	 *
+	 * @return     A buffer the size of a mac
+	 */
+	private static byte[] threadTag() {
+		byte[] tag = threadTags.get();
+		if (tag == null) {
+			tag = new byte[keyType.sizeInBytes()];
+			threadTags.set(tag);
+		}
+		return tag;
+	}
+
+	/**
+	 * @brief Compare parts of two arrays in constant time
+	 * 
+	 * Unlike Arrays.equals, always looks at every byte, so the time taken
+	 * doesn't reveal where the first difference is.
+	 *
+	 * @param      a        The first array
+	 * @param      aOffset  The start of the compared part of ```a```
+	 * @param      b        The second array
+	 * @param      bOffset  The start of the compared part of ```b```
+	 * @param      length   The number of bytes to compare
+	 *
+	 * @return     True if the parts are equal, false otherwise.
+	 */
+	private static boolean constantTimeEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		return constantTimeEquals(a, aOffset, ByteBuffer.wrap(b), bOffset, length);
+	}
+
+	/**
+	 * @brief Compare part of an array with part of a buffer in constant time
+	 * 
+	 * Same as constantTimeEquals(byte[], int, byte[], int, int), reading
+	 * ```b``` at absolute indexes. Its position and limit are not changed.
+	 *
+	 * @param      a        The array
+	 * @param      aOffset  The start of the compared part of ```a```
+	 * @param      b        The buffer
+	 * @param      bIndex   The index of the compared part of ```b```
+	 * @param      length   The number of bytes to compare
+	 *
+	 * @return     True if the parts are equal, false otherwise.
+	 */
+	private static boolean constantTimeEquals(byte[] a, int aOffset, ByteBuffer b, int bIndex, int length) {
+		int difference = 0;
+		for (int i = 0; i < length; ++i)
+			difference |= a[aOffset + i] ^ b.get(bIndex + i);
+		return difference == 0;
 	}
 
 	/**
@@ -116,9 +291,9 @@ public class Hmac {
 	 */
 	private boolean isMacCorrect(byte[] message, byte[] actualMac) throws Exception {
 		byte[] exptectedMac = getMac(message);
-		if (Arrays.equals(exptectedMac, actualMac))
-			return true;
-		return false;
+		if (exptectedMac.length != actualMac.length)
+			return false;
+		return constantTimeEquals(exptectedMac, 0, actualMac, 0, actualMac.length);
 	}
 
 	/**
@@ -0,0 +1,224 @@
+package Password_Manager.Encryption;
+
+import java.nio.*;
+
+/**
+ * @brief Settings of the PBKDF2 derivation of a user's password keys
+ *
+ * The keys protecting the master and mac keys are derived from the master
+ * password with PBKDF2. How many iterations it runs decides both how long
+ * an unlock takes and how expensive it is to guess the password offline,
+ * so the settings are chosen per user when the keys are encrypted, and
+ * stored in the key file next to them.
+ *
+ * calibrate measures the local machine and picks the iterations that make
+ * an unlock spend about a given time in PBKDF2. Key files written before
+ * the settings were stored use ```legacy```.
+ */
+public class KdfParameters {
+	public static final KdfParameters legacy = new KdfParameters(KeyTypes.PBKD_HMACSHA1, 1000); ///< Settings of key files that don't store any
+	public static final long defaultTargetMillis = 500; ///< Time an unlock spends in PBKDF2, unless the ```Password_Manager.kdfMillis``` property says otherwise
+	public static final KeyTypes defaultAlgorithm = KeyTypes.PBKD_HMACSHA256; ///< Algorithm used unless the ```Password_Manager.kdfAlgorithm``` property says otherwise
+	private static final int derivationsPerUnlock = 2; ///< An unlock derives the keys of the master and the mac key
+	private static final int minIterations = 10000; ///< Calibration never picks fewer iterations
+	private static final int maxIterations = 1 << 26; ///< Most iterations accepted, so a corrupted key file can't hang an unlock
+	private static final long minSampleNanos = 20000000; ///< Shortest derivation calibration extrapolates from
+	private static final long calibrationNanos = 2000000000L; ///< Time spent calibrating
+	private static final int encodedSize = 5; ///< Size of the encoded settings
+	private static KdfParameters calibrated; ///< Result of the last calibration, or null. Guarded by the class lock.
+	private final KeyTypes algorithm; ///< The PBKDF2 variant
+	private final int iterations; ///< Iterations of PBKDF2
+
+	/**
+	 * @brief Constructs settings for a PBKDF2 variant
+	 *
+	 * @param      algorithm  The variant, PBKD_HMACSHA1 or PBKD_HMACSHA256
+	 * @param      iterations The number of iterations
+	 *
+	 * @throws     IllegalArgumentException  If ```algorithm``` isn't a PBKDF2
+	 * variant or ```iterations``` is out of range.
+	 */
+	public KdfParameters(KeyTypes algorithm, int iterations) {
+		if (algorithmId(algorithm) == 0)
+			throw new IllegalArgumentException(algorithm + " is not a key derivation algorithm.");
+		if (iterations < 1 || iterations > maxIterations)
+			throw new IllegalArgumentException("Bad number of iterations " + iterations + ".");
+		this.algorithm = algorithm;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * @brief Returns the PBKDF2 variant
+	 *
+	 * @return     The algorithm
+	 */
+	public KeyTypes getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * @brief Returns the number of iterations
+	 *
+	 * @return     The iterations
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @brief Encode the settings for the key file
+	 *
+	 * One byte for the algorithm and the iterations as a 4 byte little
+	 * endian integer.
+	 *
+	 * @return     The encoded settings
+	 */
+	public byte[] encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(algorithmId(algorithm)).putInt(iterations);
+		return buffer.array();
+	}
+
+	/**
+	 * @brief Decode settings written by encode
+	 *
+	 * @param      encoded    The encoded settings
+	 *
+	 * @return     The settings
+	 *
+	 * @throws     Exception  If the data isn't valid settings.
+	 */
+	public static KdfParameters decode(byte[] encoded) throws Exception {
+		if (encoded.length != encodedSize)
+			throw new Exception("Bad key derivation settings.");
+		ByteBuffer buffer = ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN);
+		byte id = buffer.get();
+		int iterations = buffer.getInt();
+		for (KeyTypes algorithm : KeyTypes.values()) {
+			if (id != 0 && algorithmId(algorithm) == id && iterations >= 1 && iterations <= maxIterations)
+				return new KdfParameters(algorithm, iterations);
+		}
+		throw new Exception("Bad key derivation settings.");
+	}
+
+	/**
+	 * @brief Settings calibrated for this machine
+	 *
+	 * Calibrates the first time it is called, for the algorithm named by the
+	 * ```Password_Manager.kdfAlgorithm``` property and the unlock time in
+	 * milliseconds given by ```Password_Manager.kdfMillis```, or the
+	 * defaults. Later calls return the same settings.
+	 *
+	 * @return     The settings
+	 *
+	 * @throws     Exception  If a property is invalid or PBKDF2 failed.
+	 */
+	public static synchronized KdfParameters calibrated() throws Exception {
+		if (calibrated != null)
+			return calibrated;
+		return recalibrated();
+	}
+
+	/**
+	 * @brief Settings calibrated again for this machine
+	 *
+	 * Same as calibrated, but always measures, so the settings follow the
+	 * current load of the machine and the current properties. Later calls
+	 * of calibrated return the new settings.
+	 *
+	 * @return     The settings
+	 *
+	 * @throws     Exception  If a property is invalid or PBKDF2 failed.
+	 */
+	public static synchronized KdfParameters recalibrated() throws Exception {
+		KeyTypes algorithm;
+		long targetMillis;
+		try {
+			algorithm = KeyTypes.valueOf(System.getProperty("Password_Manager.kdfAlgorithm",
+				defaultAlgorithm.name()));
+			targetMillis = Long.parseLong(System.getProperty("Password_Manager.kdfMillis",
+				Long.toString(defaultTargetMillis)));
+		} catch (IllegalArgumentException e) {
+			throw new Exception("Invalid key derivation settings.", e);
+		}
+		calibrated = calibrate(algorithm, targetMillis);
+		return calibrated;
+	}
+
+	/**
+	 * @brief Pick the iterations that make an unlock take a given time
+	 *
+	 * Times test derivations for ```calibrationNanos```, doubling their
+	 * iterations whenever the fastest run is shorter than ```minSampleNanos```.
+	 * The first derivations run before the JIT has compiled PBKDF2 and are
+	 * several times slower, so only the fastest run of the final size
+	 * counts. Its speed is scaled to the time each of the derivations of an
+	 * unlock may take. The result is rounded to a thousand iterations and is
+	 * never below ```minIterations```.
+	 *
+	 * @param      algorithm     The PBKDF2 variant
+	 * @param      targetMillis  The time an unlock should spend in PBKDF2
+	 *
+	 * @return     The settings
+	 *
+	 * @throws     Exception     If PBKDF2 failed.
+	 */
+	public static KdfParameters calibrate(KeyTypes algorithm, long targetMillis) throws Exception {
+		byte[] salt = CipherBuilder.randomData(32);
+		long deadline = System.nanoTime() + calibrationNanos;
+		int iterations = 1000;
+		long fastest = Long.MAX_VALUE;
+		while (true) {
+			long start = System.nanoTime();
+			CipherBuilder.derive("calibration", salt, new KdfParameters(algorithm, iterations));
+			long end = System.nanoTime();
+			fastest = Math.min(fastest, Math.max(1, end - start));
+			if (fastest < minSampleNanos && iterations <= maxIterations / 2) {
+				iterations *= 2;
+				fastest = Long.MAX_VALUE;
+			} else if (end >= deadline) {
+				break;
+			}
+		}
+
+		double targetNanos = targetMillis * 1e6 / derivationsPerUnlock;
+		long scaled = Math.round(iterations * targetNanos / fastest / 1000) * 1000;
+		return new KdfParameters(algorithm, (int)Math.max(minIterations, Math.min(maxIterations, scaled)));
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof KdfParameters))
+			return false;
+		KdfParameters parameters = (KdfParameters)other;
+		return algorithm == parameters.algorithm && iterations == parameters.iterations;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * algorithm.hashCode() + iterations;
+	}
+
+	@Override
+	public String toString() {
+		return algorithm.getType() + " " + iterations;
+	}
+
+	/**
+	 * @brief Id of an algorithm in the encoded settings
+	 *
+	 * @param      algorithm  The algorithm
+	 *
+	 * @return     The id, or 0 if ```algorithm``` isn't a PBKDF2 variant.
+	 */
+	private static byte algorithmId(KeyTypes algorithm) {
+		switch (algorithm) {
+		case PBKD_HMACSHA1:
+			return 1;
+		case PBKD_HMACSHA256:
+			return 2;
+		default:
+			return 0;
+		}
+	}
+}
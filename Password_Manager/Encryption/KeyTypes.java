@@ -4,13 +4,15 @@ package Password_Manager.Encryption;
  * @brief Types of keys used
  * 
  * Enum listing the types of encryption and mac keys used. Currently
- * there are AES-128, Hmac-SHA1, HMAC-SHA-256, PBKDF2 with HMAC SHA1.
+ * there are AES-128, Hmac-SHA1, HMAC-SHA-256, PBKDF2 with HMAC SHA1 and
+ * PBKDF2 with HMAC SHA-256.
  */
 public enum KeyTypes {
 	AES128("AES", 128),
 	HMACSHA1("HmacSHA1", 160),
 	HMACSHA256("HMACSHA256", 256),
-	PBKD_HMACSHA1("PBKDF2WithHmacSHA1", 0);
+	PBKD_HMACSHA1("PBKDF2WithHmacSHA1", 0),
+	PBKD_HMACSHA256("PBKDF2WithHmacSHA256", 0);
 
 	private final String type;
 	private final int keySizeInBits;
@@ -0,0 +1,40 @@
+package Password_Manager.Encryption;
+
+/**
+ * @brief Formats of encrypted entry records
+ *
+ * CBC_HMAC records are the IV followed by the AES-CBC encryption of the
+ * data and its HMAC-SHA-256. They were written before records had a
+ * version, so they don't start with one.
+ *
+ * GCM records start with their version byte, followed by a 12 byte nonce,
+ * the AES-GCM encryption of the data and the 16 byte authentication tag.
+ * They are encrypted and authenticated in one pass, and are 32 bytes
+ * shorter than CBC_HMAC records for short data.
+ */
+public enum RecordFormat {
+	CBC_HMAC((byte)1),
+	GCM((byte)2);
+
+	private final byte version;
+
+	/**
+	 * @brief Constructs a record format
+	 *
+	 * @param      version  The version byte of the format
+	 */
+	RecordFormat(byte version) {
+		this.version = version;
+	}
+
+	/**
+	 * @brief Returns the version of the format
+	 *
+	 * Only GCM records store it, as their first byte.
+	 *
+	 * @return     The version byte
+	 */
+	public byte version() {
+		return version;
+	}
+}
@@ -1,5 +1,7 @@
 package Password_Manager.Encryption;
 
+import java.nio.ByteBuffer;
+
 /**
  * @brief StringCipher interface
  * 
@@ -28,6 +30,32 @@ public interface StringCipher {
      */
 	public byte[] tryEncrypt(byte[] plaintext) throws Exception;
 
+    /**
+     * @brief Encrypt part of an array into a given array
+     *
+     * @param      plaintext     The array containing the plaintext
+     * @param      offset        The start of the plaintext
+     * @param      length        The length of the plaintext
+     * @param      output        The array the encrypted data is written to. It must
+     * have room for encryptedSize(length) bytes after ```outputOffset```.
+     * @param      outputOffset  Where the encrypted data is written in ```output```
+     *
+     * @return     The length of the encrypted data
+     *
+     * @throws     Exception  If the encryption algorithm was given unknown options.
+     */
+	public int tryEncrypt(byte[] plaintext, int offset, int length, byte[] output, int outputOffset)
+	throws Exception;
+
+    /**
+     * @brief Size of encrypted data
+     *
+     * @param      plaintextLength  The length of a plaintext
+     *
+     * @return     The maximum length of the plaintext once encrypted
+     */
+	public int encryptedSize(int plaintextLength);
+
     /**
      * @brief Decrypt a byte array to a string
      *
@@ -49,4 +77,62 @@ public interface StringCipher {
      * @throws     Exception  If the encryption algorithm was given unknown options.
      */
 	public byte[] tryDecrypt(byte[] encrypted) throws Exception;
+
+    /**
+     * @brief Decrypt part of an array into a given array
+     *
+     * @param      encrypted     The array containing the encrypted data
+     * @param      offset        The start of the encrypted data
+     * @param      length        The length of the encrypted data
+     * @param      output        The array the decrypted data is written to. It
+     * must have room for ```length``` bytes after ```outputOffset```.
+     * @param      outputOffset  Where the decrypted data is written in ```output```
+     *
+     * @return     The length of the decrypted data
+     *
+     * @throws     Exception  If the data was corrupted or the encryption
+     * algorithm was given unknown options.
+     */
+	public int tryDecrypt(byte[] encrypted, int offset, int length, byte[] output, int outputOffset)
+	throws Exception;
+
+    /**
+     * @brief Decrypt a buffer into another buffer
+     *
+     * @param      encrypted  The encrypted data, between its position and limit
+     * @param      output     The buffer the decrypted data is written to, starting
+     * at its position. It must have room for ```encrypted.remaining()``` bytes.
+     *
+     * @return     The length of the decrypted data
+     *
+     * @throws     Exception  If the data was corrupted or the encryption
+     * algorithm was given unknown options.
+     */
+	public int tryDecrypt(ByteBuffer encrypted, ByteBuffer output) throws Exception;
+
+    /**
+     * @brief Check if encrypted data is in the format this cipher writes
+     * 
+     * Ciphers that also read older formats use this to find the data
+     * that should be encrypted again.
+     *
+     * @param      encrypted  The encrypted data
+     *
+     * @return     True if the data doesn't need to be encrypted again.
+     *
+     * @throws     Exception  If the encryption algorithm was given unknown options.
+     */
+	public boolean isCurrentFormat(byte[] encrypted) throws Exception;
+
+    /**
+     * @brief Create an independent cipher with the same keys
+     * 
+     * StringCipher objects are not thread safe. Each thread that
+     * encrypts or decrypts concurrently should use its own duplicate.
+     *
+     * @return     A new cipher using the same keys
+     *
+     * @throws     Exception  If the underlying cipher couldn't be created.
+     */
+	public StringCipher duplicate() throws Exception;
 }
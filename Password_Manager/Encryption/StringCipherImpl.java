@@ -1,5 +1,8 @@
 package Password_Manager.Encryption;
 
+import Password_Manager.Metrics;
+
+import java.nio.ByteBuffer;
 import java.nio.charset.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
@@ -13,6 +16,8 @@ class StringCipherImpl implements StringCipher {
 	private final Cipher cipher;
 	private final SecretKey secretKey;
 	private final Hmac hmac;
+	private final byte[] ivBuffer = new byte[CipherBuilder.encryptionKeyType.sizeInBytes()]; ///< Reused for the IV of every encryption
+	private final byte[] macBuffer = new byte[Hmac.keyType.sizeInBytes()]; ///< Reused for the mac of every encryption
 
 	/**
 	 * Constructs a StringCipher object from a java Cipher
@@ -39,6 +44,20 @@ class StringCipherImpl implements StringCipher {
 		this.hmac = hmac;
 	}
 
+	/**
+	 * @brief Create an independent cipher with the same keys
+	 * 
+	 * The new object gets its own javax.crypto.Cipher, so it can be used
+	 * from another thread. The Hmac object only holds the key and is shared.
+	 *
+	 * @return     A new cipher using the same keys
+	 *
+	 * @throws     Exception  If the javax.crypto.Cipher couldn't be created.
+	 */
+	public StringCipher duplicate() throws Exception {
+		return new StringCipherImpl(CipherBuilder.createCipher(), secretKey, hmac);
+	}
+
 	/**
 	 * @brief Encrypt and mac string
 	 * 
@@ -71,37 +90,87 @@ class StringCipherImpl implements StringCipher {
 	 * @throws     Exception  If unknown options were given to the encryption algorithm
 	 */
 	public byte[] tryEncrypt(byte[] plaintext) throws Exception {
-		if (hmac != null)
-			plaintext = hmac.mac(plaintext);
-		return ivAndEncrypt(plaintext);
+		byte[] encrypted = new byte[encryptedSize(plaintext.length)];
+		int length = tryEncrypt(plaintext, 0, plaintext.length, encrypted, 0);
+		if (length != encrypted.length)
+			encrypted = Arrays.copyOf(encrypted, length);
+		return encrypted;
 	}
 
 	/**
-	 * @brief Encrypt a byte array and prepend IV
+	 * @brief Encrypt and mac part of an array into a given array
 	 * 
-	 * Generate IV, encrypt ```plaintext```, prepend IV to the encrypted
-	 * data and return the result. 
+	 * Generate an IV and write it to ```output```, followed by the
+	 * encryption of the plaintext and its mac. The plaintext and the mac
+	 * are fed to the cipher one after the other, so they are never
+	 * concatenated in memory.
 	 *
-	 * @param      plaintext  The plaintext
+	 * @param      plaintext     The array containing the plaintext
+	 * @param      offset        The start of the plaintext
+	 * @param      length        The length of the plaintext
+	 * @param      output        The array the encrypted data is written to
+	 * @param      outputOffset  Where the encrypted data is written in ```output```
 	 *
-	 * @return     The encrypted data
+	 * @return     The length of the encrypted data
 	 *
-	 * @throws     Exception  If unknown options were given to the encryption algorithm
+	 * @throws     Exception  If unknown options were given to the encryption algorithm,
+	 * or ```output``` is too short.
 	 */
-	private byte[] ivAndEncrypt(byte[] plaintext) throws Exception {
+	public int tryEncrypt(byte[] plaintext, int offset, int length, byte[] output, int outputOffset)
+	throws Exception {
+		long start = Metrics.start();
 		try {
-			byte[] ivBytes = CipherBuilder.randomData(CipherBuilder.encryptionKeyType.sizeInBytes());
-			IvParameterSpec iv = new IvParameterSpec(ivBytes);
+			CipherBuilder.randomData(ivBuffer);
+			IvParameterSpec iv = new IvParameterSpec(ivBuffer);
 			cipher.init(Cipher.ENCRYPT_MODE, secretKey, iv);
-			
-			byte[] encrypted = cipher.doFinal(plaintext);
-			byte[] ivAndEncrypted = Utility.concatByteArray(ivBytes, encrypted);
-			return ivAndEncrypted;
+
+			System.arraycopy(ivBuffer, 0, output, outputOffset, ivBuffer.length);
+			int position = outputOffset + ivBuffer.length;
+			if (hmac == null) {
+				position += cipher.doFinal(plaintext, offset, length, output, position);
+			} else {
+				position += cipher.update(plaintext, offset, length, output, position);
+				int macLength = hmac.getMac(plaintext, offset, length, macBuffer, 0);
+				position += cipher.doFinal(macBuffer, 0, macLength, output, position);
+			}
+			return position - outputOffset;
 		} catch (Exception e) {
 			throw new Exception("Problem with encryption algorithm.", e);
+		} finally {
+			Metrics.encrypt.stop(start, length);
 		}
 	}
 
+	/**
+	 * @brief Size of the encrypted data
+	 * 
+	 * Returns how many bytes tryEncrypt writes for a plaintext of
+	 * ```plaintextLength``` bytes: the IV, plus the plaintext and its mac
+	 * padded to a whole number of blocks.
+	 *
+	 * @param      plaintextLength  The length of the plaintext
+	 *
+	 * @return     The length of the encrypted data
+	 */
+	public int encryptedSize(int plaintextLength) {
+		int blockSize = cipher.getBlockSize();
+		int macced = plaintextLength + (hmac == null ? 0 : Hmac.keyType.sizeInBytes());
+		return ivBuffer.length + (macced / blockSize + 1) * blockSize;
+	}
+
+	/**
+	 * @brief Check if encrypted data is in the format this cipher writes
+	 * 
+	 * This cipher reads a single format, so the answer is always yes.
+	 *
+	 * @param      encrypted  The encrypted data
+	 *
+	 * @return     True
+	 */
+	public boolean isCurrentFormat(byte[] encrypted) {
+		return true;
+	}
+
 	/**
 	 * @brief Decrypt and unmac to string
 	 * 
@@ -133,40 +202,97 @@ class StringCipherImpl implements StringCipher {
 	 * @throws     Exception            If unknown options were given to the decryption or unmaccing algorithm.
 	 */
 	public byte[] tryDecrypt(byte[] encrypted) throws BadPaddingException, Exception {
-		byte[] iv = Arrays.copyOfRange(encrypted,0,CipherBuilder.encryptionKeyType.sizeInBytes());
-		byte[] cipherText = Arrays.copyOfRange(encrypted,
-											   CipherBuilder.encryptionKeyType.sizeInBytes(),
-											   encrypted.length);
+		byte[] decrypted = new byte[Math.max(0, encrypted.length - ivBuffer.length)];
+		int length = tryDecrypt(encrypted, 0, encrypted.length, decrypted, 0);
+		return Arrays.copyOf(decrypted, length);
+	}
+
+	/**
+	 * @brief Decrypt and unmac part of an array into a given array
+	 * 
+	 * Reads the IV from the start of the encrypted data and decrypts the rest
+	 * into ```output```. The mac is then checked in place. On success,
+	 * ```output``` holds the plaintext followed by its mac, and only the
+	 * length of the plaintext is returned.
+	 *
+	 * @param      encrypted            The array containing the encrypted data
+	 * @param      offset               The start of the encrypted data
+	 * @param      length               The length of the encrypted data
+	 * @param      output               The array the decrypted data is written to.
+	 * It must have room for ```length``` minus the IV size bytes.
+	 * @param      outputOffset         Where the decrypted data is written in ```output```
+	 *
+	 * @return     The length of the plaintext
+	 *
+	 * @throws     BadPaddingException  If the data was corrupted
+	 * @throws     Exception            If the data was corrupted or ```output``` is too short.
+	 */
+	public int tryDecrypt(byte[] encrypted, int offset, int length, byte[] output, int outputOffset)
+	throws BadPaddingException, Exception {
+		if (length <= ivBuffer.length)
+			throw new Exception("Problem decrypting. Data corrupted.");
+
+		long start = Metrics.start();
 		try {
-			return decrypt(iv, cipherText);
+			IvParameterSpec iv = new IvParameterSpec(encrypted, offset, ivBuffer.length);
+			cipher.init(Cipher.DECRYPT_MODE, secretKey, iv);
+			int decryptedLength = cipher.doFinal(encrypted, offset + ivBuffer.length,
+												 length - ivBuffer.length, output, outputOffset);
+			if (hmac != null)
+				decryptedLength = hmac.unmac(output, outputOffset, decryptedLength);
+			return decryptedLength;
 		} catch (InvalidAlgorithmParameterException | InvalidKeyException |
-				IllegalBlockSizeException e) {
+				IllegalBlockSizeException | ShortBufferException e) {
 			throw new Exception("Problem decrypting. Data corrupted.", e);
+		} finally {
+			Metrics.decrypt.stop(start, length);
 		}
 	}
 
 	/**
-	 * @brief Decrypt and unmac a byte array
+	 * @brief Decrypt and unmac a buffer into another buffer
+	 * 
+	 * Same as tryDecrypt(byte[], int, int, byte[], int), for the bytes between
+	 * the position and the limit of ```encrypted```. This works directly on
+	 * slices returned by MappedEncodedFileReader::readBuffers.
+	 * 
+	 * The position of ```encrypted``` is not changed. The position of
+	 * ```output``` is moved to the end of the plaintext.
 	 *
-	 * @param      iv                                  The extracted IV
-	 * @param      ciphertext                          The ciphertext
+	 * @param      encrypted            The encrypted data
+	 * @param      output               The buffer the decrypted data is written to
 	 *
-	 * @return     The decrypted data
+	 * @return     The length of the plaintext
 	 *
-	 * @throws     InvalidAlgorithmParameterException  If unknown options were given to the algorithms
-	 * @throws     InvalidKeyException                 If the used key is invalid for the algorithm
-	 * @throws     IllegalBlockSizeException           If the data was corrupted
-	 * @throws     BadPaddingException                 If the data was corrupted
-	 * @throws     Exception                           If the data was corrupted
+	 * @throws     BadPaddingException  If the data was corrupted
+	 * @throws     Exception            If the data was corrupted or ```output``` is too short.
 	 */
-	private byte[] decrypt(byte[] iv, byte[] ciphertext)
-	throws InvalidAlgorithmParameterException, InvalidKeyException,
-	IllegalBlockSizeException, BadPaddingException, Exception {
-		IvParameterSpec IV = new IvParameterSpec(iv);
-		cipher.init(Cipher.DECRYPT_MODE, secretKey, IV);
-		byte[] decryptedBytes = cipher.doFinal(ciphertext);
-		if (hmac != null)
-			decryptedBytes = hmac.unmac(decryptedBytes);
-		return decryptedBytes;
+	public int tryDecrypt(ByteBuffer encrypted, ByteBuffer output)
+	throws BadPaddingException, Exception {
+		if (encrypted.remaining() <= ivBuffer.length)
+			throw new Exception("Problem decrypting. Data corrupted.");
+
+		long startTime = Metrics.start();
+		try {
+			ByteBuffer ciphertext = encrypted.duplicate();
+			ciphertext.get(ivBuffer);
+			cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(ivBuffer));
+
+			int start = output.position();
+			int decryptedLength = cipher.doFinal(ciphertext, output);
+			if (hmac != null) {
+				ByteBuffer decrypted = output.duplicate();
+				decrypted.position(start);
+				decrypted.limit(start + decryptedLength);
+				decryptedLength = hmac.unmac(decrypted);
+				output.position(start + decryptedLength);
+			}
+			return decryptedLength;
+		} catch (InvalidAlgorithmParameterException | InvalidKeyException |
+				IllegalBlockSizeException | ShortBufferException e) {
+			throw new Exception("Problem decrypting. Data corrupted.", e);
+		} finally {
+			Metrics.decrypt.stop(startTime, encrypted.remaining());
+		}
 	}
 }
@@ -0,0 +1,289 @@
+package Password_Manager.Encryption;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * @brief In-memory cache of salts and password-derived keys
+ *
+ * Deriving a key from the master password (PBKDF2) and reading the salt
+ * files is the slowest part of unlocking a vault. An UnlockSession keeps
+ * the salts and derived keys of recent unlocks for ```timeoutMillis```
+ * milliseconds, so unlocking again within that window skips both.
+ *
+ * Derived keys are looked up by salt filename and a verifier of the
+ * password: an HMAC of the salt and password under a random key that
+ * only lives in this object. The password itself is never stored. A
+ * newly derived key is only handed out once confirm reports that it
+ * decrypted the key file, so a wrong password is never cached. A salt is
+ * only handed out while its file is the one it was read from, since
+ * another program may have changed the password.
+ *
+ * Cached keys and salts are zeroed when they expire, when they are
+ * invalidated, and when the session is closed. Copies that were already
+ * handed to a cipher are not affected.
+ */
+public class UnlockSession {
+	private static final int verifierKeySize = Hmac.keyType.sizeInBytes(); ///< Size of the key used to compute password verifiers
+	private final long timeoutMillis; ///< How long cached data stays valid
+	private final Hmac verifierHmac; ///< Hmac computing password verifiers
+	private final HashMap<String, CachedBytes> salts; ///< Cached salts by salt filename
+	private final HashMap<String, CachedBytes> keys; ///< Cached keys by salt filename and password verifier
+	private final HashMap<String, CachedBytes> unconfirmed; ///< Derived keys waiting for confirm, by the same ids as ```keys```
+	private final ScheduledExecutorService wiper; ///< Thread wiping data when it expires
+
+	/**
+	 * @brief Bytes kept in the session and the task that will wipe them.
+	 */
+	private static class CachedBytes {
+		final byte[] data;
+		final Object version; ///< Version of the file the data was read from, or null
+		ScheduledFuture<?> expiry;
+
+		CachedBytes(byte[] data, Object version) {
+			this.data = data;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * @brief Create an empty session
+	 *
+	 * @param      timeoutMillis  How long, in milliseconds, salts and keys are
+	 * kept after they are added to the session.
+	 *
+	 * @throws     Exception  If the verifier key couldn't be created.
+	 */
+	public UnlockSession(long timeoutMillis) throws Exception {
+		this.timeoutMillis = timeoutMillis;
+		verifierHmac = new Hmac(CipherBuilder.randomData(verifierKeySize));
+		salts = new HashMap<String, CachedBytes>();
+		keys = new HashMap<String, CachedBytes>();
+		unconfirmed = new HashMap<String, CachedBytes>();
+		wiper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "UnlockSession wiper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @brief Get a cached salt
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 *
+	 * @return     A copy of the salt, or null if it isn't cached or the file
+	 * changed since it was read.
+	 */
+	synchronized byte[] getSalt(String saltFilename) {
+		CachedBytes salt = salts.get(saltFilename);
+		if (salt == null)
+			return null;
+		if (!salt.version.equals(fileVersion(saltFilename))) {
+			wipe(salts, saltFilename);
+			return null;
+		}
+		return salt.data.clone();
+	}
+
+	/**
+	 * @brief Cache a salt read from ```saltFilename```
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 * @param      salt          The salt
+	 * @param      version       The version of the file, from fileVersion,
+	 * taken before reading it. Nothing is cached if it is null.
+	 */
+	synchronized void putSalt(String saltFilename, byte[] salt, Object version) {
+		if (version != null)
+			put(salts, saltFilename, salt, version);
+	}
+
+	/**
+	 * @brief Version of a salt file
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 *
+	 * @return     The file key, modification time and size of the file, or
+	 * null if they couldn't be read.
+	 */
+	static Object fileVersion(String saltFilename) {
+		try {
+			BasicFileAttributes attributes =
+				Files.readAttributes(Paths.get(saltFilename), BasicFileAttributes.class);
+			return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), attributes.size());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @brief Get a cached key derived from a password and a salt
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 * @param      salt          The salt
+	 * @param      password      The password
+	 * @param      kdf           The key derivation settings
+	 *
+	 * @return     A copy of the key, or null if it isn't cached.
+	 *
+	 * @throws     Exception     If the password verifier couldn't be computed.
+	 */
+	synchronized byte[] getKey(String saltFilename, byte[] salt, String password, KdfParameters kdf)
+	throws Exception {
+		CachedBytes key = keys.get(keyId(saltFilename, salt, password, kdf));
+		return key == null ? null : key.data.clone();
+	}
+
+	/**
+	 * @brief Keep a key derived from a password and a salt until confirm
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 * @param      salt          The salt
+	 * @param      password      The password
+	 * @param      kdf           The key derivation settings
+	 * @param      key           The derived key
+	 *
+	 * @throws     Exception     If the password verifier couldn't be computed.
+	 */
+	synchronized void putKey(String saltFilename, byte[] salt, String password, KdfParameters kdf,
+		byte[] key) throws Exception {
+		put(unconfirmed, keyId(saltFilename, salt, password, kdf), key, null);
+	}
+
+	/**
+	 * @brief Cache or drop the key derived for an unlock
+	 *
+	 * Called once the key derived from ```password``` and the salt of
+	 * ```saltFilename``` was used to decrypt the key file. If it was the
+	 * right key, later unlocks with the same password use it; otherwise it
+	 * is wiped.
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 * @param      password      The password
+	 * @param      kdf           The key derivation settings
+	 * @param      right         Whether the key file was decrypted and verified
+	 *
+	 * @throws     Exception     If the password verifier couldn't be computed.
+	 */
+	public synchronized void confirm(String saltFilename, String password, KdfParameters kdf,
+		boolean right) throws Exception {
+		CachedBytes salt = salts.get(saltFilename);
+		if (salt == null)
+			return;
+		String id = keyId(saltFilename, salt.data, password, kdf);
+		CachedBytes key = unconfirmed.get(id);
+		if (key == null)
+			return;
+		if (right)
+			put(keys, id, key.data, null);
+		wipe(unconfirmed, id);
+	}
+
+	/**
+	 * @brief Remove everything cached for a salt file
+	 *
+	 * Must be called when the salt file is rewritten, for example when
+	 * the master password changes.
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 */
+	public synchronized void invalidate(String saltFilename) {
+		wipe(salts, saltFilename);
+		String prefix = saltFilename + "/";
+		for (String id : new ArrayList<String>(keys.keySet()))
+			if (id.startsWith(prefix))
+				wipe(keys, id);
+		for (String id : new ArrayList<String>(unconfirmed.keySet()))
+			if (id.startsWith(prefix))
+				wipe(unconfirmed, id);
+	}
+
+	/**
+	 * @brief Wipe everything and stop the session
+	 *
+	 * After this call the session caches nothing.
+	 */
+	public synchronized void close() {
+		for (String saltFilename : new ArrayList<String>(salts.keySet()))
+			wipe(salts, saltFilename);
+		for (String id : new ArrayList<String>(keys.keySet()))
+			wipe(keys, id);
+		for (String id : new ArrayList<String>(unconfirmed.keySet()))
+			wipe(unconfirmed, id);
+		wiper.shutdownNow();
+	}
+
+	/**
+	 * @brief Add data to a cache and schedule its wiping
+	 *
+	 * @param      cache  The cache
+	 * @param      id     The id of the data in the cache
+	 * @param      data     The data. A copy is stored.
+	 * @param      version  The version of the file the data was read from, or null
+	 */
+	private void put(final HashMap<String, CachedBytes> cache, final String id, byte[] data,
+		Object version) {
+		if (wiper.isShutdown())
+			return;
+
+		wipe(cache, id);
+		final CachedBytes cached = new CachedBytes(data.clone(), version);
+		cache.put(id, cached);
+		cached.expiry = wiper.schedule(new Runnable() {
+			public void run() {
+				synchronized (UnlockSession.this) {
+					if (cache.get(id) == cached)
+						wipe(cache, id);
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @brief Remove data from a cache and zero it
+	 *
+	 * @param      cache  The cache
+	 * @param      id     The id of the data in the cache
+	 */
+	private static void wipe(HashMap<String, CachedBytes> cache, String id) {
+		CachedBytes cached = cache.remove(id);
+		if (cached == null)
+			return;
+		Arrays.fill(cached.data, (byte)0);
+		if (cached.expiry != null)
+			cached.expiry.cancel(false);
+	}
+
+	/**
+	 * @brief Id of a derived key in the cache
+	 *
+	 * Combines the salt filename with the password verifier, so that a
+	 * different password, salt or key derivation setting never finds
+	 * another password's key.
+	 *
+	 * @param      saltFilename  The name of the salt file
+	 * @param      salt          The salt
+	 * @param      password      The password
+	 * @param      kdf           The key derivation settings
+	 *
+	 * @return     The id of the key
+	 *
+	 * @throws     Exception     If the verifier couldn't be computed.
+	 */
+	private String keyId(String saltFilename, byte[] salt, String password, KdfParameters kdf)
+	throws Exception {
+		byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+		byte[] message = Utility.concatByteArray(Utility.concatByteArray(kdf.encode(), salt), passwordBytes);
+		Arrays.fill(passwordBytes, (byte)0);
+		byte[] verifier = verifierHmac.getMac(message);
+		Arrays.fill(message, (byte)0);
+		return saltFilename + "/" + Base64.getEncoder().encodeToString(verifier);
+	}
+}
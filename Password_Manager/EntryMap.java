@@ -0,0 +1,237 @@
+package Password_Manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @brief Map from websites to their encrypted entries, kept in an EntryTable
+ *
+ * A HashMap of a million entries holds a node, a String and two
+ * EncryptedEntry objects with their arrays per entry, several times the
+ * size of the encrypted data itself. This map keeps the entries in an
+ * EntryTable and the changes made since the table was built in a small
+ * overlay. When the overlay grows past an eighth of the table, the two are
+ * merged into a new table.
+ *
+ * get returns a new EncryptedEntry each time, equal to the one put but
+ * not the same object. Reads may run in any thread; writes must be
+ * serialized by the caller, as EncryptedMap does with its write lock.
+ * Iterators are weakly consistent, like those of ConcurrentHashMap, and
+ * read only: they copy the overlay when created, so every entry present
+ * during the whole iteration is returned exactly once.
+ */
+class EntryMap extends AbstractMap<String, EncryptedEntry> {
+	private static final int minOverlay = 4096; ///< Changes always kept in the overlay before merging
+	private static final EncryptedEntry removed = new EncryptedEntry(new ByteArray(new byte[0]), new ByteArray(new byte[0])); ///< Overlay value of an entry removed from the table
+	private volatile State state = new State(EntryTable.empty); ///< The table and the overlay
+	private volatile int size; ///< Number of entries
+
+	/**
+	 * @brief A table and the changes made since it was built
+	 */
+	private static class State {
+		final EntryTable table; ///< The entries when the table was built
+		final ConcurrentHashMap<String, EncryptedEntry> overlay = new ConcurrentHashMap<String, EncryptedEntry>(); ///< The changed entries, or ```removed```
+
+		/**
+		 * Constructs a state without changes.
+		 *
+		 * @param      table  The table
+		 */
+		State(EntryTable table) {
+			this.table = table;
+		}
+	}
+
+	/**
+	 * @brief Replace the contents of the map
+	 *
+	 * Builds the table directly, without going through the overlay.
+	 *
+	 * @param      websites  The website of each entry
+	 * @param      entries   The entries
+	 */
+	void load(String[] websites, List<EncryptedEntry> entries) {
+		EntryTable table = EntryTable.build(websites, entries);
+		state = new State(table);
+		size = table.size();
+	}
+
+	@Override
+	public EncryptedEntry get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		return get(state, (String)key);
+	}
+
+	/**
+	 * @brief Get an entry from a state
+	 *
+	 * @param      state    The state
+	 * @param      website  The website
+	 *
+	 * @return     The entry, or null if there is none.
+	 */
+	private static EncryptedEntry get(State state, String website) {
+		EncryptedEntry changed = state.overlay.get(website);
+		if (changed != null)
+			return changed == removed ? null : changed;
+		int index = state.table.find(website.getBytes(StandardCharsets.UTF_8));
+		return index < 0 ? null : state.table.entry(index);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public EncryptedEntry put(String website, EncryptedEntry entry) {
+		if (website == null || entry == null)
+			throw new NullPointerException();
+		State current = state;
+		EncryptedEntry previous = get(current, website);
+		current.overlay.put(website, entry);
+		if (previous == null)
+			++size;
+		compact(current);
+		return previous;
+	}
+
+	@Override
+	public EncryptedEntry remove(Object key) {
+		if (!(key instanceof String))
+			return null;
+		String website = (String)key;
+		State current = state;
+		EncryptedEntry previous = get(current, website);
+		if (previous == null)
+			return null;
+		if (current.table.find(website.getBytes(StandardCharsets.UTF_8)) >= 0)
+			current.overlay.put(website, removed);
+		else
+			current.overlay.remove(website);
+		--size;
+		compact(current);
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		state = new State(EntryTable.empty);
+		size = 0;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @brief Merge the overlay into a new table if it got too big
+	 *
+	 * Readers keep using the old state until the new one is published.
+	 *
+	 * @param      current  The current state
+	 */
+	private void compact(State current) {
+		if (current.overlay.size() <= Math.max(minOverlay, current.table.size() / 8))
+			return;
+		state = new State(current.table.merge(current.overlay, removed));
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			public Iterator<String> iterator() {
+				final Iterator<Map.Entry<String, EncryptedEntry>> entries = new EntryIterator(state, false);
+				return new Iterator<String>() {
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					public String next() {
+						return entries.next().getKey();
+					}
+				};
+			}
+
+			public int size() {
+				return EntryMap.this.size();
+			}
+
+			public boolean contains(Object key) {
+				return containsKey(key);
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<String, EncryptedEntry>> entrySet() {
+		return new AbstractSet<Map.Entry<String, EncryptedEntry>>() {
+			public Iterator<Map.Entry<String, EncryptedEntry>> iterator() {
+				return new EntryIterator(state, true);
+			}
+
+			public int size() {
+				return EntryMap.this.size();
+			}
+		};
+	}
+
+	/**
+	 * @brief Iterator over the changed entries, then the unchanged entries of the table
+	 *
+	 * Table rows are skipped only if their website was in the copy of the
+	 * overlay, so an entry changed while the iterator is between the two
+	 * phases is still returned once.
+	 */
+	private static class EntryIterator implements Iterator<Map.Entry<String, EncryptedEntry>> {
+		private final State state; ///< The state iterated
+		private final boolean withValues; ///< Whether the entries of the table are copied out
+		private final HashMap<String, EncryptedEntry> overlay; ///< Copy of the overlay when the iterator was created
+		private final Iterator<Map.Entry<String, EncryptedEntry>> changes; ///< Iterator over ```overlay```
+		private final EntryTable.Cursor cursor; ///< Cursor over the table
+		private Map.Entry<String, EncryptedEntry> next; ///< The next entry, or null if not found yet
+
+		/**
+		 * Constructs an iterator.
+		 *
+		 * @param      state       The state
+		 * @param      withValues  Whether the values will be used
+		 */
+		EntryIterator(State state, boolean withValues) {
+			this.state = state;
+			this.withValues = withValues;
+			overlay = new HashMap<String, EncryptedEntry>(state.overlay);
+			changes = overlay.entrySet().iterator();
+			cursor = state.table.cursor();
+		}
+
+		public boolean hasNext() {
+			while (next == null) {
+				if (changes.hasNext()) {
+					Map.Entry<String, EncryptedEntry> change = changes.next();
+					if (change.getValue() != removed)
+						next = new AbstractMap.SimpleImmutableEntry<String, EncryptedEntry>(change);
+				} else if (cursor.next()) {
+					String website = cursor.name();
+					if (!overlay.containsKey(website))
+						next = new AbstractMap.SimpleImmutableEntry<String, EncryptedEntry>(website,
+							withValues ? state.table.entry(cursor.index()) : null);
+				} else
+					return false;
+			}
+			return true;
+		}
+
+		public Map.Entry<String, EncryptedEntry> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Map.Entry<String, EncryptedEntry> entry = next;
+			next = null;
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,440 @@
+package Password_Manager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @brief Immutable, compact table of encrypted entries sorted by website
+ *
+ * Holds the entries of a vault without an object per entry. The website
+ * names are stored as UTF-8 in one byte array, sorted and front coded:
+ * names are grouped in blocks of ```blockSize```, the first name of each
+ * block is stored whole and the others as the length of the prefix they
+ * share with the previous name followed by the rest of their bytes. The
+ * encrypted records of the entries are stored in a second byte array, in
+ * the same order, with their offsets in an int[].
+ *
+ * find does a binary search over the first names of the blocks and then
+ * scans one block. entry copies the records of an entry out of the
+ * table. Tables are built once, by build or merge, and never change, so
+ * they can be read by any number of threads.
+ */
+class EntryTable {
+	private static final int blockSize = 16; ///< Names per front coded block
+	static final EntryTable empty = new EntryTable(new byte[0], new int[0], new byte[0], new int[] {0}, 0, 0); ///< Table without entries
+	private final byte[] names; ///< The front coded names
+	private final int[] blocks; ///< Position of the first name of each block in ```names```
+	private final byte[] records; ///< The encrypted website and password of each entry
+	private final int[] recordOffsets; ///< Start of the website and of the password of each entry in ```records```, and the end of the last password
+	private final int size; ///< Number of entries
+	private final int maxNameLength; ///< Length of the longest name in bytes
+
+	/**
+	 * Constructs a table from its arrays.
+	 *
+	 * @param      names          The front coded names
+	 * @param      blocks         The position of each block
+	 * @param      records        The records
+	 * @param      recordOffsets  The position of each record
+	 * @param      size           The number of entries
+	 * @param      maxNameLength  The length of the longest name
+	 */
+	private EntryTable(byte[] names, int[] blocks, byte[] records, int[] recordOffsets,
+		int size, int maxNameLength) {
+		this.names = names;
+		this.blocks = blocks;
+		this.records = records;
+		this.recordOffsets = recordOffsets;
+		this.size = size;
+		this.maxNameLength = maxNameLength;
+	}
+
+	/**
+	 * @brief Build a table from unsorted entries
+	 *
+	 * If a website appears more than once, its last entry is kept.
+	 *
+	 * @param      websites  The website of each entry
+	 * @param      entries   The entries
+	 *
+	 * @return     The table
+	 */
+	static EntryTable build(String[] websites, List<EncryptedEntry> entries) {
+		final byte[][] encoded = new byte[websites.length][];
+		Integer[] order = new Integer[websites.length];
+		for (int i = 0; i < websites.length; ++i) {
+			encoded[i] = websites[i].getBytes(StandardCharsets.UTF_8);
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Arrays.compareUnsigned(encoded[a], encoded[b]);
+			}
+		});
+
+		Writer writer = new Writer(websites.length);
+		for (int i = 0; i < order.length; ++i) {
+			int index = order[i];
+			if (i + 1 < order.length && Arrays.equals(encoded[index], encoded[order[i+1]]))
+				continue;
+			writer.add(encoded[index], entries.get(index));
+		}
+		return writer.finish();
+	}
+
+	/**
+	 * @brief Build a table with changes applied to this one
+	 *
+	 * @param      changes  The new entry of each changed website, or
+	 * ```removed``` for websites whose entry was removed
+	 * @param      removed  The value marking removed entries
+	 *
+	 * @return     The new table
+	 */
+	EntryTable merge(Map<String, EncryptedEntry> changes, EncryptedEntry removed) {
+		final ArrayList<byte[]> changedNames = new ArrayList<byte[]>(changes.size());
+		final ArrayList<EncryptedEntry> changedEntries = new ArrayList<EncryptedEntry>(changes.size());
+		for (Map.Entry<String, EncryptedEntry> change : changes.entrySet()) {
+			changedNames.add(change.getKey().getBytes(StandardCharsets.UTF_8));
+			changedEntries.add(change.getValue());
+		}
+		Integer[] order = new Integer[changedNames.size()];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Arrays.compareUnsigned(changedNames.get(a), changedNames.get(b));
+			}
+		});
+
+		Writer writer = new Writer(size + order.length);
+		Cursor cursor = new Cursor();
+		boolean hasEntry = cursor.next();
+		int change = 0;
+		while (hasEntry || change < order.length) {
+			int comparison;
+			if (!hasEntry)
+				comparison = 1;
+			else if (change == order.length)
+				comparison = -1;
+			else
+				comparison = Arrays.compareUnsigned(cursor.buffer, 0, cursor.length,
+					changedNames.get(order[change]), 0, changedNames.get(order[change]).length);
+
+			if (comparison < 0) {
+				writer.add(Arrays.copyOf(cursor.buffer, cursor.length), cursor.index, this);
+				hasEntry = cursor.next();
+				continue;
+			}
+			EncryptedEntry entry = changedEntries.get(order[change]);
+			if (entry != removed)
+				writer.add(changedNames.get(order[change]), entry);
+			++change;
+			if (comparison == 0)
+				hasEntry = cursor.next();
+		}
+		return writer.finish();
+	}
+
+	/**
+	 * @brief Returns the number of entries
+	 *
+	 * @return     The size
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @brief Find the entry of a website
+	 *
+	 * @param      website  The website as UTF-8
+	 *
+	 * @return     The index of its entry, or -1 if it has none.
+	 */
+	int find(byte[] website) {
+		int low = 0;
+		int high = blocks.length - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int position = blocks[middle];
+			int length = readVarint(names, position);
+			position += varintSize(length);
+			int comparison = Arrays.compareUnsigned(names, position, position + length,
+				website, 0, website.length);
+			if (comparison == 0)
+				return middle * blockSize;
+			if (comparison < 0)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		if (high < 0)
+			return -1;
+
+		Cursor cursor = new Cursor();
+		cursor.seek(high);
+		int end = Math.min(size, (high + 1) * blockSize);
+		while (cursor.next() && cursor.index < end) {
+			int comparison = Arrays.compareUnsigned(cursor.buffer, 0, cursor.length,
+				website, 0, website.length);
+			if (comparison == 0)
+				return cursor.index;
+			if (comparison > 0)
+				break;
+		}
+		return -1;
+	}
+
+	/**
+	 * @brief Copy an entry out of the table
+	 *
+	 * @param      index  The index of the entry
+	 *
+	 * @return     The entry
+	 */
+	EncryptedEntry entry(int index) {
+		byte[] website = Arrays.copyOfRange(records, recordOffsets[2*index], recordOffsets[2*index + 1]);
+		byte[] password = Arrays.copyOfRange(records, recordOffsets[2*index + 1], recordOffsets[2*index + 2]);
+		return new EncryptedEntry(new ByteArray(website), new ByteArray(password));
+	}
+
+	/**
+	 * @brief Create a cursor over the names, in order
+	 *
+	 * @return     A cursor placed before the first entry
+	 */
+	Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * @brief Sequential reader of the names of a table
+	 */
+	class Cursor {
+		private byte[] buffer = new byte[maxNameLength]; ///< The current name
+		private int length; ///< Length of the current name
+		private int index = -1; ///< Index of the current entry
+		private int position; ///< Position of the next name in ```names```
+
+		/**
+		 * @brief Place the cursor before the first entry of a block
+		 *
+		 * @param      block  The block
+		 */
+		private void seek(int block) {
+			index = block * blockSize - 1;
+			position = blocks[block];
+		}
+
+		/**
+		 * @brief Move to the next entry
+		 *
+		 * @return     False if there are no more entries.
+		 */
+		boolean next() {
+			if (index + 1 >= size)
+				return false;
+			++index;
+			int shared = 0;
+			if (index % blockSize != 0) {
+				shared = readVarint(names, position);
+				position += varintSize(shared);
+			}
+			int suffix = readVarint(names, position);
+			position += varintSize(suffix);
+			System.arraycopy(names, position, buffer, shared, suffix);
+			position += suffix;
+			length = shared + suffix;
+			return true;
+		}
+
+		/**
+		 * @brief Returns the index of the current entry
+		 *
+		 * @return     The index
+		 */
+		int index() {
+			return index;
+		}
+
+		/**
+		 * @brief Returns the website of the current entry
+		 *
+		 * @return     The website
+		 */
+		String name() {
+			return new String(buffer, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * @brief Encoder of a table from entries given in order
+	 */
+	private static class Writer {
+		private byte[] names; ///< The front coded names so far
+		private int namesLength; ///< Bytes used in ```names```
+		private int[] blocks; ///< Position of each block so far
+		private byte[] records; ///< The records so far
+		private int recordsLength; ///< Bytes used in ```records```
+		private int[] recordOffsets; ///< Position of each record so far
+		private int size; ///< Number of entries so far
+		private int maxNameLength; ///< Length of the longest name so far
+		private byte[] previous = new byte[0]; ///< The last name added
+
+		/**
+		 * Constructs a writer.
+		 *
+		 * @param      capacity  The expected number of entries
+		 */
+		Writer(int capacity) {
+			names = new byte[Math.max(16, 8*capacity)];
+			blocks = new int[(capacity + blockSize - 1) / blockSize + 1];
+			records = new byte[Math.max(16, 64*capacity)];
+			recordOffsets = new int[2*capacity + 1];
+		}
+
+		/**
+		 * @brief Add an entry
+		 *
+		 * @param      name   The website as UTF-8, greater than the last one
+		 * @param      entry  The entry
+		 */
+		void add(byte[] name, EncryptedEntry entry) {
+			addName(name);
+			addRecord(2*size, entry.getWebsite().getRawBytes(), 0, entry.getWebsite().length());
+			addRecord(2*size + 1, entry.getPassword().getRawBytes(), 0, entry.getPassword().length());
+			++size;
+		}
+
+		/**
+		 * @brief Add an entry of another table without copying it to an EncryptedEntry
+		 *
+		 * @param      name   The website as UTF-8, greater than the last one
+		 * @param      index  The index of the entry in ```table```
+		 * @param      table  The table
+		 */
+		void add(byte[] name, int index, EntryTable table) {
+			addName(name);
+			int[] offsets = table.recordOffsets;
+			addRecord(2*size, table.records, offsets[2*index], offsets[2*index + 1] - offsets[2*index]);
+			addRecord(2*size + 1, table.records, offsets[2*index + 1], offsets[2*index + 2] - offsets[2*index + 1]);
+			++size;
+		}
+
+		/**
+		 * @brief Front code a name
+		 *
+		 * @param      name  The name
+		 */
+		private void addName(byte[] name) {
+			int shared = 0;
+			if (size % blockSize == 0) {
+				if (size / blockSize == blocks.length)
+					blocks = Arrays.copyOf(blocks, 2*blocks.length);
+				blocks[size / blockSize] = namesLength;
+			} else {
+				int limit = Math.min(previous.length, name.length);
+				while (shared < limit && previous[shared] == name[shared])
+					++shared;
+				putVarint(shared);
+			}
+			putVarint(name.length - shared);
+			ensureNames(name.length - shared);
+			System.arraycopy(name, shared, names, namesLength, name.length - shared);
+			namesLength += name.length - shared;
+			maxNameLength = Math.max(maxNameLength, name.length);
+			previous = name;
+		}
+
+		/**
+		 * @brief Append a record
+		 *
+		 * @param      slot    The number of the record, twice the entry index for websites, plus one for passwords
+		 * @param      data    The array holding the record
+		 * @param      offset  The start of the record
+		 * @param      length  The length of the record
+		 */
+		private void addRecord(int slot, byte[] data, int offset, int length) {
+			if (slot + 1 >= recordOffsets.length)
+				recordOffsets = Arrays.copyOf(recordOffsets, 2*recordOffsets.length + 1);
+			if (recordsLength + length > records.length)
+				records = Arrays.copyOf(records, Math.max(2*records.length, recordsLength + length));
+			System.arraycopy(data, offset, records, recordsLength, length);
+			recordsLength += length;
+			recordOffsets[slot + 1] = recordsLength;
+		}
+
+		/**
+		 * @brief Append a variable length integer to the names
+		 *
+		 * @param      value  The non negative integer
+		 */
+		private void putVarint(int value) {
+			ensureNames(5);
+			while (value >= 0x80) {
+				names[namesLength++] = (byte)(value | 0x80);
+				value >>>= 7;
+			}
+			names[namesLength++] = (byte)value;
+		}
+
+		/**
+		 * @brief Make room in the names array
+		 *
+		 * @param      extra  The number of bytes to be added
+		 */
+		private void ensureNames(int extra) {
+			if (namesLength + extra > names.length)
+				names = Arrays.copyOf(names, Math.max(2*names.length, namesLength + extra));
+		}
+
+		/**
+		 * @brief Create the table, trimming the arrays
+		 *
+		 * @return     The table
+		 */
+		EntryTable finish() {
+			return new EntryTable(Arrays.copyOf(names, namesLength),
+				Arrays.copyOf(blocks, (size + blockSize - 1) / blockSize),
+				Arrays.copyOf(records, recordsLength), Arrays.copyOf(recordOffsets, 2*size + 1),
+				size, maxNameLength);
+		}
+	}
+
+	/**
+	 * @brief Read a variable length integer
+	 *
+	 * @param      data      The array
+	 * @param      position  The position of the integer
+	 *
+	 * @return     The integer
+	 */
+	private static int readVarint(byte[] data, int position) {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			byte b = data[position++];
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+			shift += 7;
+		}
+	}
+
+	/**
+	 * @brief Size of an encoded variable length integer
+	 *
+	 * @param      value  The integer
+	 *
+	 * @return     The number of bytes
+	 */
+	private static int varintSize(int value) {
+		int size = 1;
+		while (value >= 0x80) {
+			value >>>= 7;
+			++size;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,160 @@
+package Password_Manager;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @brief fsync shared by the threads writing the same file or directory
+ *
+ * Forcing a file to the storage device takes milliseconds, much longer
+ * than writing to it. When several threads write the same file and each
+ * of them needs its data to be durable, one fsync started after all their
+ * writes covers them all.
+ *
+ * A writer calls written after its write returns, and later sync with the
+ * ticket it got, usually after releasing its locks. The first thread in
+ * sync forces the file, covering every write registered so far. Threads
+ * arriving meanwhile wait for it, and if their write came too late for
+ * that fsync, one of them runs the next one for all of them.
+ *
+ * Directories are synced the same way, after files are created, renamed
+ * or deleted in them. Some systems can't sync a directory; errors are
+ * ignored for directories.
+ */
+public class GroupCommit {
+	private static final ConcurrentHashMap<Path, GroupCommit> commits = new ConcurrentHashMap<Path, GroupCommit>(); ///< The commit of each file and directory
+	private final Path path; ///< The file or directory
+	private final boolean directory; ///< Whether ```path``` is a directory
+	private long written; ///< Number of writes registered. Guarded by ```this```.
+	private long synced; ///< Number of writes known to be on the storage device. Guarded by ```this```.
+	private boolean syncing; ///< Whether a thread is forcing the file. Guarded by ```this```.
+
+	/**
+	 * Constructs the commit of a file or directory.
+	 *
+	 * @param      path       The file or directory
+	 * @param      directory  Whether ```path``` is a directory
+	 */
+	private GroupCommit(Path path, boolean directory) {
+		this.path = path;
+		this.directory = directory;
+	}
+
+	/**
+	 * @brief Get the commit of a file
+	 *
+	 * @param      filename  The file
+	 *
+	 * @return     The commit shared by all writers of the file
+	 */
+	public static GroupCommit ofFile(String filename) {
+		return of(Paths.get(filename).toAbsolutePath().normalize(), false);
+	}
+
+	/**
+	 * @brief Get the commit of the directory holding a file
+	 *
+	 * @param      filename  The file
+	 *
+	 * @return     The commit shared by all writers of the directory
+	 */
+	public static GroupCommit ofDirectory(String filename) {
+		Path parent = Paths.get(filename).toAbsolutePath().normalize().getParent();
+		return of(parent == null ? Paths.get("").toAbsolutePath() : parent, true);
+	}
+
+	/**
+	 * @brief Get or create a commit
+	 *
+	 * @param      path       The absolute file or directory
+	 * @param      directory  Whether ```path``` is a directory
+	 *
+	 * @return     The commit
+	 */
+	private static GroupCommit of(Path path, boolean directory) {
+		GroupCommit commit = commits.get(path);
+		if (commit != null)
+			return commit;
+		GroupCommit created = new GroupCommit(path, directory);
+		commit = commits.putIfAbsent(path, created);
+		return commit == null ? created : commit;
+	}
+
+	/**
+	 * @brief Register a finished write
+	 *
+	 * @return     The ticket to pass to sync
+	 */
+	public synchronized long written() {
+		return ++written;
+	}
+
+	/**
+	 * @brief Register a write and wait until it is on the storage device
+	 *
+	 * @throws     IOException  If the file couldn't be synced.
+	 */
+	public void sync() throws IOException {
+		sync(written());
+	}
+
+	/**
+	 * @brief Wait until a write is on the storage device
+	 *
+	 * @param      ticket       The value returned by written after the write
+	 *
+	 * @throws     IOException  If the file couldn't be synced. Another
+	 * thread will try again when it calls sync.
+	 */
+	public void sync(long ticket) throws IOException {
+		long target;
+		synchronized (this) {
+			while (true) {
+				if (synced >= ticket)
+					return;
+				if (!syncing)
+					break;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for " + path + " to be synced.");
+				}
+			}
+			syncing = true;
+			target = written;
+		}
+
+		boolean done = false;
+		try {
+			force();
+			done = true;
+		} finally {
+			synchronized (this) {
+				syncing = false;
+				if (done)
+					synced = Math.max(synced, target);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @brief Force the file or directory to the storage device
+	 *
+	 * @throws     IOException  If a file couldn't be synced.
+	 */
+	private void force() throws IOException {
+		try (FileChannel channel = FileChannel.open(path,
+				directory ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+			channel.force(true);
+		} catch (NoSuchFileException e) {
+			// deleted since it was written, nothing left to sync
+		} catch (IOException e) {
+			if (!directory)
+				throw e;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package Password_Manager;
+
+import Password_Manager.Encryption.KdfParameters;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * @brief Files of a master key rotation
+ *
+ * A rotation replaces the vault, the key file and the two salt files of a
+ * user at once. The new files are first written next to the old ones with
+ * ```stagingSuffix``` appended to their names. Then a marker file is
+ * created, which commits the rotation, the staged files are moved over
+ * the old ones, the journal is deleted (its changes are in the new vault),
+ * and the marker is removed. The directory is synced after each of these
+ * steps, so they reach the storage device in that order.
+ *
+ * A master password change replaces only the key file and the two salt
+ * files, the same way but under its own marker, since the journal still
+ * applies to the vault.
+ *
+ * recover is called before reading the keys at login. If the program
+ * stopped after a marker was created, it finishes moving the files;
+ * the moves are atomic and a file already moved has no staged copy, so
+ * finishing twice is harmless. Without a marker, staged files are left
+ * over from an unfinished rotation or password change and are deleted,
+ * so the old keys, password and vault stay in use.
+ */
+public class KeyRotation {
+	private static final String stagingSuffix = ".rotate"; ///< Suffix of the files written by a rotation
+
+	/**
+	 * @brief Encrypt keys with a password for staging
+	 *
+	 * Calibrates the key derivation again and wraps the keys with
+	 * ```password```. Both take seconds, so this is called before taking any
+	 * lock, and only the files are written under the locks.
+	 *
+	 * @param      user       The username
+	 * @param      password   The master password
+	 * @param      masterKey  The master key
+	 * @param      macKey     The mac key
+	 *
+	 * @return     The wrapped keys, passed to stage or stageKeys
+	 *
+	 * @throws     Exception  If the keys couldn't be encrypted.
+	 */
+	static Registration wrapKeys(String user, String password, byte[] masterKey, byte[] macKey)
+	throws Exception {
+		return new Registration(user, password, masterKey.clone(), macKey.clone(),
+			KdfParameters.recalibrated());
+	}
+
+	/**
+	 * @brief Write the new files of a rotation
+	 *
+	 * Writes the entries to a staged vault, and the wrapped keys to staged
+	 * key and salt files. EncodedFileWriter forces them to the storage
+	 * device. The current files are not touched.
+	 *
+	 * @param      user       The username
+	 * @param      keys       The new keys, from wrapKeys
+	 * @param      entries    The entries, encrypted with the new keys
+	 *
+	 * @throws     Exception  If a file couldn't be written.
+	 */
+	static void stage(String user, Registration keys, Collection<EncryptedEntry> entries)
+	throws Exception {
+		discard(user);
+		VaultFile.write(staged(Naming.vaultFilename(user)), entries);
+		keys.writeFiles(stagingSuffix);
+	}
+
+	/**
+	 * @brief Write the new key files of a password change
+	 *
+	 * Writes the wrapped keys to staged key and salt files. A password
+	 * change committed earlier but not finished is finished first, so its
+	 * staged files aren't lost.
+	 *
+	 * @param      user       The username
+	 * @param      keys       The keys wrapped with the new password, from wrapKeys
+	 *
+	 * @throws     Exception  If a file couldn't be written.
+	 */
+	static void stageKeys(String user, Registration keys) throws Exception {
+		recover(user);
+		keys.writeFiles(stagingSuffix);
+	}
+
+	/**
+	 * @brief Commit a staged rotation and replace the files
+	 *
+	 * @param      user         The username
+	 *
+	 * @throws     IOException  If the marker couldn't be created or a file
+	 * couldn't be replaced. If the marker exists, the rotation is finished
+	 * at the next login.
+	 */
+	static void commit(String user) throws IOException {
+		commit(user, Naming.rotationFilename(user), rotatedFiles(user));
+	}
+
+	/**
+	 * @brief Commit staged key files and replace the current ones
+	 *
+	 * @param      user         The username
+	 *
+	 * @throws     IOException  If the marker couldn't be created or a file
+	 * couldn't be replaced. If the marker exists, the password change is
+	 * finished at the next login.
+	 */
+	static void commitKeys(String user) throws IOException {
+		commit(user, Naming.passwordChangeFilename(user), keyFiles(user));
+	}
+
+	/**
+	 * @brief Create a marker and replace the files
+	 *
+	 * @param      user         The username
+	 * @param      marker       The marker filename
+	 * @param      filenames    The files to replace with their staged copies
+	 *
+	 * @throws     IOException  If the marker couldn't be created or a file
+	 * couldn't be replaced.
+	 */
+	private static void commit(String user, String marker, List<String> filenames)
+	throws IOException {
+		Path markerPath = Paths.get(marker);
+		Files.deleteIfExists(markerPath);
+		Files.createFile(markerPath);
+		EncodedFileWriter.syncDirectory(marker);
+		finish(user, marker, filenames);
+	}
+
+	/**
+	 * @brief Finish or undo a rotation interrupted by a crash
+	 *
+	 * @param      user       The username
+	 *
+	 * @throws     Exception  If the files couldn't be moved or deleted.
+	 */
+	public static void recover(String user) throws Exception {
+		try {
+			if (new File(Naming.rotationFilename(user)).exists())
+				finish(user, Naming.rotationFilename(user), rotatedFiles(user));
+			if (new File(Naming.passwordChangeFilename(user)).exists())
+				finish(user, Naming.passwordChangeFilename(user), keyFiles(user));
+			discard(user);
+		} catch (IOException e) {
+			throw new Exception("Couldn't recover from the interrupted key rotation of " + user + ".", e);
+		}
+	}
+
+	/**
+	 * @brief Move the staged files over the current ones
+	 *
+	 * The marker must exist. If the vault is replaced, the journal is
+	 * deleted. The marker is removed last, and its removal is synced too,
+	 * so a marker left over can't make a later login delete a newer journal
+	 * or older key files.
+	 *
+	 * @param      user         The username
+	 * @param      marker       The marker filename
+	 * @param      filenames    The files to replace with their staged copies
+	 *
+	 * @throws     IOException  If a file couldn't be moved or deleted.
+	 */
+	private static void finish(String user, String marker, List<String> filenames)
+	throws IOException {
+		for (String filename : filenames) {
+			Path source = Paths.get(staged(filename));
+			if (Files.exists(source))
+				Files.move(source, Paths.get(filename),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		if (filenames.contains(Naming.vaultFilename(user)))
+			Files.deleteIfExists(Paths.get(Naming.journalFilename(user)));
+		EncodedFileWriter.syncDirectory(Naming.vaultFilename(user));
+		Files.delete(Paths.get(marker));
+		EncodedFileWriter.syncDirectory(marker);
+	}
+
+	/**
+	 * @brief Delete the staged files of an uncommitted rotation
+	 *
+	 * @param      user         The username
+	 *
+	 * @throws     IOException  If a file couldn't be deleted.
+	 */
+	private static void discard(String user) throws IOException {
+		for (String filename : rotatedFiles(user))
+			Files.deleteIfExists(Paths.get(staged(filename)));
+		VaultFile.deleteTemporary(staged(Naming.vaultFilename(user)));
+	}
+
+	/**
+	 * @brief The files a rotation replaces
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     The filenames
+	 */
+	private static List<String> rotatedFiles(String user) {
+		ArrayList<String> filenames = new ArrayList<String>(keyFiles(user));
+		filenames.add(Naming.vaultFilename(user));
+		return filenames;
+	}
+
+	/**
+	 * @brief The files a password change replaces
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     The filenames
+	 */
+	private static List<String> keyFiles(String user) {
+		return Arrays.asList(Naming.masterSaltFilename(user), Naming.macSaltFilename(user),
+			Naming.keyFileName(user));
+	}
+
+	/**
+	 * @brief Name of the staged copy of a file
+	 *
+	 * @param      filename  The filename
+	 *
+	 * @return     The staged filename
+	 */
+	private static String staged(String filename) {
+		return filename + stagingSuffix;
+	}
+}
@@ -0,0 +1,124 @@
+package Password_Manager;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * @brief Class for reading encoded data from files through NIO.
+ *
+ * Reads the same format as EncodedFileReader: contiguous data entries,
+ * each one a four byte length followed by the data itself.
+ *
+ * The whole file is read with a single call, or memory-mapped if it is
+ * at least ```minMappedSize``` bytes long, and the entries are parsed
+ * from that buffer. Small files are not mapped because a mapping keeps
+ * the file open until it is garbage collected, which on some systems
+ * prevents the file from being replaced.
+ */
+public class MappedEncodedFileReader {
+	private static final int minMappedSize = 1 << 16; ///< Files at least this big are memory-mapped
+	private final String filename; ///< The file we are reading from
+	private ByteBuffer buffer; ///< The contents of the file
+
+	/**
+	 * Constructs an object to read from the file ```filename```.
+	 *
+	 * @param      filename  The name of the file we want to read from.
+	 *
+	 * @throws     FileNotFoundException  if the file does not exist.
+	 * @throws     IOException            if an error occurred reading the file.
+	 */
+	public MappedEncodedFileReader(String filename) throws FileNotFoundException, IOException {
+		this.filename = filename;
+		long start = Metrics.start();
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException(filename);
+		}
+
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("File " + filename + " is too large.");
+
+			if (size >= minMappedSize) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				buffer = ByteBuffer.allocate((int)size);
+				while (buffer.hasRemaining())
+					if (channel.read(buffer) == -1)
+						throw new EOFException();
+				buffer.flip();
+			}
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			channel.close();
+			Metrics.fileRead.stop(start, buffer == null ? 0 : buffer.capacity());
+		}
+	}
+
+	/**
+	 * @brief Releases the file contents.
+	 *
+	 * The file itself is already closed by the constructor. A mapping is
+	 * released when it is garbage collected.
+	 */
+	public void close() {
+		buffer = null;
+	}
+
+	/**
+	 * @brief Reads all the data from a file.
+	 *
+	 * Returns all the data entries in the file, copied to ```ByteArray```
+	 * objects. This is a drop-in replacement for EncodedFileReader::readData.
+	 *
+	 * @return     A list of data entries as ```ByteArray``` objects.
+	 *
+	 * @throws     EOFException  if the last entry is shorter than its length says.
+	 */
+	public ArrayList<ByteArray> readData() throws EOFException {
+		ArrayList<ByteBuffer> records = readBuffers();
+		ArrayList<ByteArray> dataEntries = new ArrayList<ByteArray>(records.size());
+		for (ByteBuffer record : records) {
+			byte[] rawBytes = new byte[record.remaining()];
+			record.get(rawBytes);
+			dataEntries.add(new ByteArray(rawBytes));
+		}
+		return dataEntries;
+	}
+
+	/**
+	 * @brief Reads all the data from a file without copying it.
+	 *
+	 * Returns all the data entries in the file as read-only views of the
+	 * file contents. The views are valid until the reader is closed.
+	 *
+	 * @return     A list of data entries as ```ByteBuffer``` slices.
+	 *
+	 * @throws     EOFException  if the last entry is shorter than its length says.
+	 */
+	public ArrayList<ByteBuffer> readBuffers() throws EOFException {
+		ArrayList<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		while (data.hasRemaining()) {
+			if (data.remaining() < 4)
+				throw new EOFException("Incomplete length in " + filename + ".");
+
+			int length = data.getInt();
+			if (length < 0 || length > data.remaining())
+				throw new EOFException("Incomplete entry in " + filename + ".");
+
+			ByteBuffer record = data.slice();
+			record.limit(length);
+			records.add(record.asReadOnlyBuffer());
+			data.position(data.position() + length);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,310 @@
+package Password_Manager;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * @brief Counters and latency histograms of the crypto and storage code
+ *
+ * Each Timer counts the calls of one operation, their total and largest
+ * duration, the amount of data they handled, and a histogram of their
+ * durations with one bucket per power of two nanoseconds. Percentiles are
+ * read from the histogram, so they are upper bounds within a factor of two.
+ *
+ * Timing a call looks like this:
+ *
+ *     long start = Metrics.start();
+ *     try {
+ *         ...
+ *     } finally {
+ *         Metrics.kdf.stop(start);
+ *     }
+ *
+ * Metrics are disabled unless the ```Password_Manager.metrics``` system
+ * property is true, or they are enabled with setEnabled or through JMX.
+ * While disabled, start only reads a volatile flag and stop returns right
+ * away. Failed calls are counted like successful ones.
+ *
+ * The timers are exported as MBeans named ```Password_Manager:type=Metrics,name=<timer>```,
+ * next to a ```Password_Manager:type=Metrics``` MBean that can enable them,
+ * reset them and print the text report.
+ */
+public class Metrics {
+	private static final String domain = "Password_Manager"; ///< JMX domain of the MBeans
+	private static volatile boolean enabled = Boolean.getBoolean("Password_Manager.metrics"); ///< Whether calls are timed
+	private static boolean registered; ///< Whether the MBeans are registered. Guarded by the class lock.
+
+	public static final Timer kdf = new Timer("kdf", "PBKDF2 key derivations"); ///< CipherBuilder key derivation
+	public static final Timer hmac = new Timer("hmac", "HMAC computations"); ///< Hmac macs, also part of encrypt and decrypt
+	public static final Timer encrypt = new Timer("encrypt", "AES encryptions, with their HMAC"); ///< StringCipherImpl encryption
+	public static final Timer decrypt = new Timer("decrypt", "AES decryptions, with their HMAC check"); ///< StringCipherImpl decryption
+	public static final Timer fileRead = new Timer("fileRead", "Encoded file reads"); ///< EncodedFileReader and MappedEncodedFileReader reads
+	public static final Timer fileWrite = new Timer("fileWrite", "Encoded file writes"); ///< EncodedFileWriter writes
+	public static final Timer load = new Timer("load", "Whole EncryptedMap loads"); ///< EncryptedMap construction
+	public static final Timer loadKeys = new Timer("loadKeys", "Load phase: reading and unwrapping the keys"); ///< Key phase of a load
+	public static final Timer loadVault = new Timer("loadVault", "Load phase: reading the vault"); ///< Vault reading phase of a load
+	public static final Timer loadDecrypt = new Timer("loadDecrypt", "Load phase: decrypting the vault"); ///< Decryption phase of a load
+	public static final Timer loadJournal = new Timer("loadJournal", "Load phase: replaying the journal"); ///< Journal phase of a load
+	private static final Timer[] timers = {
+		kdf, hmac, encrypt, decrypt, fileRead, fileWrite,
+		load, loadKeys, loadVault, loadDecrypt, loadJournal
+	}; ///< All the timers, in report order
+
+	/**
+	 * @brief JMX view of a Timer
+	 */
+	public interface TimerMBean {
+		public String getDescription();
+		public long getCount();
+		public long getAmount();
+		public double getTotalMillis();
+		public double getMeanMicros();
+		public double getP50Micros();
+		public double getP99Micros();
+		public double getMaxMicros();
+		public void reset();
+	}
+
+	/**
+	 * @brief JMX view of the whole metrics
+	 */
+	public interface ControlMBean {
+		public boolean isEnabled();
+		public void setEnabled(boolean enabled);
+		public String getReport();
+		public void reset();
+	}
+
+	/**
+	 * @brief Statistics of one operation
+	 *
+	 * Thread safe. Updates from many threads don't contend on a single
+	 * counter.
+	 */
+	public static class Timer implements TimerMBean {
+		private static final int bucketCount = 64; ///< One bucket per bit of a nanosecond duration
+		private final String name; ///< Short name, used in the report and the MBean name
+		private final String description; ///< What is timed
+		private final LongAdder count = new LongAdder(); ///< Number of timed calls
+		private final LongAdder nanos = new LongAdder(); ///< Total duration of the calls
+		private final LongAdder amount = new LongAdder(); ///< Total amount of data handled by the calls
+		private final LongAccumulator max = new LongAccumulator(new java.util.function.LongBinaryOperator() {
+			public long applyAsLong(long a, long b) {
+				return Math.max(a, b);
+			}
+		}, 0); ///< Longest call
+		private final LongAdder[] buckets = new LongAdder[bucketCount]; ///< Bucket i counts calls of 2^i to 2^(i+1) nanoseconds
+
+		Timer(String name, String description) {
+			this.name = name;
+			this.description = description;
+			for (int i = 0; i < bucketCount; ++i)
+				buckets[i] = new LongAdder();
+		}
+
+		/**
+		 * @brief Record a call
+		 *
+		 * @param      start  The value returned by Metrics::start before the call
+		 */
+		public void stop(long start) {
+			stop(start, 0);
+		}
+
+		/**
+		 * @brief Record a call and the amount of data it handled
+		 *
+		 * @param      start      The value returned by Metrics::start before the call
+		 * @param      handled    The number of bytes read, written or processed,
+		 * or of entries for the load timers
+		 */
+		public void stop(long start, long handled) {
+			if (start == 0)
+				return;
+			long elapsed = Math.max(1, System.nanoTime() - start);
+			count.increment();
+			nanos.add(elapsed);
+			if (handled > 0)
+				amount.add(handled);
+			max.accumulate(elapsed);
+			buckets[63 - Long.numberOfLeadingZeros(elapsed)].increment();
+		}
+
+		/**
+		 * @return     The short name of the timer
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getAmount() {
+			return amount.sum();
+		}
+
+		public double getTotalMillis() {
+			return nanos.sum() / 1e6;
+		}
+
+		public double getMeanMicros() {
+			long calls = count.sum();
+			return calls == 0 ? 0 : nanos.sum() / 1e3 / calls;
+		}
+
+		public double getP50Micros() {
+			return percentileMicros(0.5);
+		}
+
+		public double getP99Micros() {
+			return percentileMicros(0.99);
+		}
+
+		public double getMaxMicros() {
+			return max.get() / 1e3;
+		}
+
+		public void reset() {
+			count.reset();
+			nanos.reset();
+			amount.reset();
+			max.reset();
+			for (LongAdder bucket : buckets)
+				bucket.reset();
+		}
+
+		/**
+		 * @brief Estimate a percentile of the durations
+		 *
+		 * @param      fraction  The fraction of calls, between 0 and 1
+		 *
+		 * @return     The upper bound of the histogram bucket holding that
+		 * percentile, in microseconds. 0 if nothing was timed.
+		 */
+		private double percentileMicros(double fraction) {
+			long[] counts = new long[bucketCount];
+			long total = 0;
+			for (int i = 0; i < bucketCount; ++i)
+				total += counts[i] = buckets[i].sum();
+			if (total == 0)
+				return 0;
+
+			long rank = (long)Math.ceil(fraction * total);
+			long seen = 0;
+			for (int i = 0; i < bucketCount; ++i) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(Math.pow(2, i + 1), max.get()) / 1e3;
+			}
+			return getMaxMicros();
+		}
+	}
+
+	/**
+	 * @brief MBean controlling all the timers
+	 */
+	private static class Control implements ControlMBean {
+		public boolean isEnabled() {
+			return Metrics.isEnabled();
+		}
+
+		public void setEnabled(boolean enabled) {
+			Metrics.setEnabled(enabled);
+		}
+
+		public String getReport() {
+			return Metrics.report();
+		}
+
+		public void reset() {
+			Metrics.reset();
+		}
+	}
+
+	/**
+	 * @brief Start timing a call
+	 *
+	 * @return     The start time to pass to Timer::stop, or 0 if metrics are disabled
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * @return     True if calls are being timed.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @brief Start or stop timing calls
+	 *
+	 * The collected statistics are kept either way.
+	 *
+	 * @param      enabled  Whether to time calls
+	 */
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	/**
+	 * @brief Clear all the timers
+	 */
+	public static void reset() {
+		for (Timer timer : timers)
+			timer.reset();
+	}
+
+	/**
+	 * @brief Export the timers through JMX
+	 *
+	 * Registers the MBeans in the platform MBean server, so tools like
+	 * jconsole can read them. Does nothing the second time.
+	 *
+	 * @throws     Exception  If the MBeans couldn't be registered.
+	 */
+	public static synchronized void register() throws Exception {
+		if (registered)
+			return;
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(new StandardMBean(new Control(), ControlMBean.class),
+			new ObjectName(domain + ":type=Metrics"));
+		for (Timer timer : timers)
+			server.registerMBean(new StandardMBean(timer, TimerMBean.class),
+				new ObjectName(domain + ":type=Metrics,name=" + timer.getName()));
+		registered = true;
+	}
+
+	/**
+	 * @brief Text dump of all the timers
+	 *
+	 * One line per timer that has been called, with the number of calls,
+	 * the total time and the mean, median, 99th percentile and longest
+	 * durations, and the amount of data handled.
+	 *
+	 * @return     The report
+	 */
+	public static String report() {
+		StringBuilder report = new StringBuilder();
+		report.append("Metrics ").append(enabled ? "enabled" : "disabled").append('\n');
+		report.append(String.format("%-12s %10s %12s %10s %10s %10s %10s %12s%n",
+			"timer", "count", "total ms", "mean us", "p50 us", "p99 us", "max us", "amount"));
+		for (Timer timer : timers) {
+			if (timer.getCount() == 0)
+				continue;
+			report.append(String.format("%-12s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %12d%n",
+				timer.getName(), timer.getCount(), timer.getTotalMillis(), timer.getMeanMicros(),
+				timer.getP50Micros(), timer.getP99Micros(), timer.getMaxMicros(), timer.getAmount()));
+		}
+		return report.toString();
+	}
+}
@@ -1,5 +1,7 @@
 package Password_Manager;
 
+import java.util.regex.Pattern;
+
 /**
  * @brief Class for generating file names
  */
@@ -11,6 +13,12 @@ public class Naming {
 	private static final String macSaltFileSuffix = "_macsalt";
 	private static final String directorySuffix = "_dir";
 	private static final String keyFileSuffix = "keys";
+	private static final String vaultSuffix = "_vault";
+	private static final String journalSuffix = "_journal";
+	private static final String rotationSuffix = "_rotation";
+	private static final String passwordChangeSuffix = "_passwordchange";
+	private static final String lockSuffix = "_lock";
+	private static final Pattern websitePattern = Pattern.compile("[a-zA-Z0-9_.-]+"); ///< Allowed website names
 
 	/**
 	 * @brief generate filename for master key salt
@@ -46,15 +54,77 @@ public class Naming {
 	}
 
 	/**
-	 * @brief generate name of password entry
+	 * @brief generate name of the vault file
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     Name of the file storing all password entries
+	 */
+	public static String vaultFilename(String user) {
+		return user + vaultSuffix;
+	}
+
+	/**
+	 * @brief generate name of the vault journal
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     Name of the file storing changes not yet compacted into the vault
+	 */
+	public static String journalFilename(String user) {
+		return user + journalSuffix;
+	}
+
+	/**
+	 * @brief generate name of the key rotation marker
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     Name of the file that exists while a committed key
+	 * rotation is being finished
+	 */
+	public static String rotationFilename(String user) {
+		return user + rotationSuffix;
+	}
+
+	/**
+	 * @brief generate name of the password change marker
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     Name of the file that exists while a committed password
+	 * change is being finished
+	 */
+	public static String passwordChangeFilename(String user) {
+		return user + passwordChangeSuffix;
+	}
+
+	/**
+	 * @brief generate name of the lock file
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     Name of the file locked by programs changing the vault
+	 */
+	public static String lockFilename(String user) {
+		return user + lockSuffix;
+	}
+
+	/**
+	 * @brief Checks validity of a website name
+	 * 
+	 * The only website names allowed are those containing english alphabet
+	 * letters, numbers, dashes, underscores and dots, so that they can be
+	 * used in file names.
 	 *
-	 * @param      user     The username
-	 * @param      website  The entry's website
+	 * @param      website    The website
 	 *
-	 * @return     entry filename
+	 * @throws     Exception  If the website name is invalid.
 	 */
-	public static String entryFilename(String user, String website) {
-		return user + "_" + website;
+	public static void checkWebsite(String website) throws Exception {
+		if (!websitePattern.matcher(website).matches())
+			throw new Exception("Invalid characters in website." +
+				" Use only english letters, numbers, dot, dash or underscore.");
 	}
 
 	/**
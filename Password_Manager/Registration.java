@@ -2,6 +2,7 @@ package Password_Manager;
 import Password_Manager.Encryption.StringCipher;
 import Password_Manager.Encryption.CipherBuilder;
 import Password_Manager.Encryption.Hmac;
+import Password_Manager.Encryption.KdfParameters;
 import java.nio.file.*;
 import java.io.*;
 import java.util.*;
@@ -16,13 +17,18 @@ public class Registration {
 	private byte[] masterKey; ///< generated master key (unencrypted)
 	private byte[] macKey; ///< generated mac key (unencrypted)
 	private String user; ///< username
+	private KdfParameters kdf; ///< Settings deriving the keys that encrypt the master and mac keys
+	private byte[] masterKeySalt; ///< Salt of the key encrypting the master key
+	private byte[] macKeySalt; ///< Salt of the key encrypting the mac key
 
 	/**
 	 * @brief Registers a new user
 	 * 
 	 * Register a new user with username ```usr``` and password
 	 * ```password```. This generates the master and mac keys, the salts 
-	 * for each, and creates the necessary files and directories.
+	 * for each, and creates the necessary files and directories. The
+	 * password keys are derived with the settings calibrated for this
+	 * machine.
 	 *
 	 * @param      usr       The username
 	 * @param      password  The user's password
@@ -31,17 +37,21 @@ public class Registration {
 	throws FileAlreadyExistsException, Exception {
 		user = usr;
 		assertValidPassword(password);
+		kdf = KdfParameters.calibrated();
 		createKeys();
 		createPasswordDirectory();
-		encryptAndStoreKeys(password);
+		encryptKeys(password);
+		tryCreateFiles("");
 	}
 
 	/**
 	 * @brief Registers a user with preset keys
 	 * 
-	 * Registers a user with preset master and mac keys. This function is called
-	 * when the user wants to change the password, so it uses the existing keys
-	 * and just re-encrypts them with a different password and salt.
+	 * Registers a user with preset master and mac keys, encrypted with a
+	 * new salt and the key derivation settings calibrated for this machine.
+	 * The salt and key files are replaced one at a time, so a password
+	 * change goes through KeyRotation instead, which stages them with the
+	 * constructor below and writeFiles.
 	 *
 	 * @param      usr        The username
 	 * @param      password   The new password
@@ -50,11 +60,48 @@ public class Registration {
 	 */
 	public Registration(String usr, String password, byte[] masterKey, byte[] macKey)
 	throws FileAlreadyExistsException, Exception {
+		this(usr, password, masterKey, macKey, KdfParameters.calibrated());
+		writeFiles("");
+	}
+
+	/**
+	 * @brief Encrypts preset keys without storing them
+	 * 
+	 * Same as Registration(usr, password, masterKey, macKey), but with
+	 * given key derivation settings, and no files are written until
+	 * writeFiles is called. Used by KeyRotation, so the key derivation
+	 * runs before it takes any lock.
+	 *
+	 * @param      usr             The username
+	 * @param      password        The password
+	 * @param      masterKey       The master key
+	 * @param      macKey          The mac key
+	 * @param      kdf             The key derivation settings
+	 */
+	Registration(String usr, String password, byte[] masterKey, byte[] macKey,
+		KdfParameters kdf) throws Exception {
 		user = usr;
 		this.masterKey = masterKey;
 		this.macKey = macKey;
+		this.kdf = kdf;
+
+		encryptKeys(password);
+	}
 
-		encryptAndStoreKeys(password);
+	/**
+	 * @brief Stores the encrypted keys
+	 * 
+	 * Writes the salt and key files, with ```filenameSuffix``` appended to
+	 * their names. KeyRotation uses a suffix to stage the files of new keys
+	 * or a new password.
+	 *
+	 * @param      filenameSuffix              The suffix of the file names
+	 *
+	 * @throws     FileAlreadyExistsException  If the salt or key files already exist.
+	 * @throws     Exception                   If an error occurred writing the files.
+	 */
+	void writeFiles(String filenameSuffix) throws FileAlreadyExistsException, Exception {
+		tryCreateFiles(filenameSuffix);
 	}
 
 	/**
@@ -106,30 +153,28 @@ public class Registration {
 	}
 
 	/**
-	 * @brief Encrypts and stores the keys
+	 * @brief Encrypts the keys
 	 * 
 	 * This function encrypts the master and mac keys with a master
-	 * password derived key and a randomly generated salt, and stores
-	 * them to a file generated based on the username.
+	 * password derived key and a randomly generated salt, ready to be
+	 * stored by tryCreateFiles.
 	 *
 	 * @param      password   The master password
 	 *
-	 * @throws     Exception  If an error occurred writing storing the keys.
+	 * @throws     Exception  If an error occurred encrypting the keys.
 	 */
-	private void encryptAndStoreKeys(String password) throws Exception {
-		byte[] masterKeySalt = CipherBuilder.randomData(SALT_LENGTH);
-		byte[] macKeySalt = CipherBuilder.randomData(SALT_LENGTH);
+	private void encryptKeys(String password) throws Exception {
+		masterKeySalt = CipherBuilder.randomData(SALT_LENGTH);
+		macKeySalt = CipherBuilder.randomData(SALT_LENGTH);
 
 		Hmac hmac = new Hmac(macKey);
 		masterKey = hmac.mac(masterKey);
 		macKey = hmac.mac(macKey);
 
-		StringCipher masterKeyCipher = CipherBuilder.build(password, masterKeySalt);
+		StringCipher masterKeyCipher = CipherBuilder.build(password, masterKeySalt, kdf);
 		encryptedMasterKey = masterKeyCipher.tryEncrypt(masterKey);
-		StringCipher macKeyCipher = CipherBuilder.build(password, macKeySalt);
+		StringCipher macKeyCipher = CipherBuilder.build(password, macKeySalt, kdf);
 		encryptedMacKey = macKeyCipher.tryEncrypt(macKey);
-
-		tryCreateFiles(masterKeySalt, macKeySalt);
 	}
 
 	/**
@@ -137,15 +182,14 @@ public class Registration {
 	 * 
 	 * Calls createFiles and handles the exceptions that it might throw.
 	 *
-	 * @param      masterKeySalt               The master key salt
-	 * @param      macKeySalt                  The mac key salt
+	 * @param      filenameSuffix              The suffix of the file names
 	 *
 	 * @throws     FileAlreadyExistsException  If the salt or key files already exist.
 	 */
-	private void tryCreateFiles(byte[] masterKeySalt, byte[] macKeySalt)
+	private void tryCreateFiles(String filenameSuffix)
 	throws FileAlreadyExistsException, Exception {
 		try {
-			createFiles(masterKeySalt, macKeySalt);
+			createFiles(filenameSuffix);
 		} catch (FileAlreadyExistsException e) {
 			throw e;
 		} catch (Exception e) {
@@ -156,32 +200,37 @@ public class Registration {
 	/**
 	 * @brief Creates the salt and key files
 	 * 
-	 * Create files and store the two salts (unencrypted) and the
-	 * two keys (macced and encrypted).
+	 * Create files and store the two salts (unencrypted), the two keys
+	 * (macced and encrypted), and the key derivation settings after them.
+	 * Each file is written to a temporary file and moved in place, and the
+	 * directory is synced once after the three of them.
 	 *
-	 * @param      masterKeySalt               The master key salt
-	 * @param      macKeySalt                  The mac key salt
+	 * @param      filenameSuffix              The suffix of the file names
 	 *
 	 * @throws     FileAlreadyExistsException  If one of the files already exists
 	 * @throws     Exception                   If an error occurs when writing to file
 	 */
-	private void createFiles(byte[] masterKeySalt, byte[] macKeySalt)
+	private void createFiles(String filenameSuffix)
 	throws FileAlreadyExistsException, Exception {
-		saveDataToFile(masterKeySalt, Naming.masterSaltFilename(user));
-		saveDataToFile(macKeySalt, Naming.macSaltFilename(user));
+		saveDataToFile(masterKeySalt, Naming.masterSaltFilename(user) + filenameSuffix);
+		saveDataToFile(macKeySalt, Naming.macSaltFilename(user) + filenameSuffix);
 
-		EncodedFileWriter fileWriter = new EncodedFileWriter(Naming.keyFileName(user));
+		EncodedFileWriter fileWriter = new EncodedFileWriter(Naming.keyFileName(user) + filenameSuffix);
 		ArrayList<ByteArray> keys = new ArrayList<ByteArray>();
 		keys.add(new ByteArray(encryptedMacKey));
 		keys.add(new ByteArray(encryptedMasterKey));
+		keys.add(new ByteArray(kdf.encode()));
 		fileWriter.writeData(keys);
-		fileWriter.close();
+		fileWriter.close(false);
+
+		EncodedFileWriter.syncDirectory(Naming.keyFileName(user));
 	}
 
 	/**
 	 * @brief Write a byte array to a file
 	 *
-	 * Writes the byte array ```data``` to the file ```filename```.
+	 * Writes the byte array ```data``` to the file ```filename```. The
+	 * directory is not synced.
 	 *
 	 * @param      data       The data to write to file
 	 * @param      filename   The filename
@@ -196,7 +245,7 @@ public class Registration {
 			dataToWrite.add(new ByteArray(data));
 			fileWriter.writeData(dataToWrite);
 
-			fileWriter.close();
+			fileWriter.close(false);
 		} catch (IOException e) {
 			throw new Exception("Couldn't write to " + filename + " file.", e);
 		}
@@ -0,0 +1,376 @@
+package Password_Manager;
+
+import java.lang.ref.Cleaner;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * @brief Off-heap storage for decrypted passwords
+ *
+ * Strings can't be wiped, and the garbage collector may leave copies of
+ * them anywhere in the heap. Passwords kept by the store are written to
+ * direct buffers instead, as UTF-16 characters, and zeroed as soon as
+ * they are freed. The Java heap only holds a small Secret handle for
+ * each password, so it doesn't grow with the length of the passwords.
+ *
+ * The buffers are split in ```chunkSize``` byte chunks, which are cut
+ * into slots of a power of two characters. Freed slots are zeroed and
+ * reused for passwords of the same size class. Passwords too long for a
+ * chunk get a chunk of their own.
+ *
+ * chars hands out a copy of a password that the caller zeroes once it is
+ * done with it. wipe zeroes every chunk at once, making every Secret
+ * invalid, and is also run if the store is collected without being wiped.
+ *
+ * The store is thread safe. A Secret freed or wiped by another thread
+ * is never read; chars returns null for it.
+ */
+public class SecretStore {
+	private static final int chunkSize = 1 << 16; ///< Size of the shared chunks in bytes
+	private static final int minSlotChars = 8; ///< Characters in the smallest slot
+	private static final Cleaner cleaner = Cleaner.create(); ///< Wipes stores that were never wiped once they are unreachable
+	private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>(); ///< The direct buffers. Guarded by ```this```.
+	private final ArrayList<long[]> freeSlots = new ArrayList<long[]>(); ///< Free slots of each size class, as chunk and offset. Guarded by ```this```.
+	private final ArrayList<Integer> freeCounts = new ArrayList<Integer>(); ///< Number of free slots of each size class. Guarded by ```this```.
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE); ///< Decodes passwords straight into the slots. Guarded by ```this```.
+	private final ArrayList<Integer> spareChunks = new ArrayList<Integer>(); ///< Shared chunks emptied by wipe. Guarded by ```this```.
+	private int position = chunkSize; ///< Where the next slot is cut in the last shared chunk. Guarded by ```this```.
+	private int sharedChunk = -1; ///< Index of the shared chunk slots are cut from, or -1. Guarded by ```this```.
+	private int epoch; ///< Incremented by wipe, invalidating older secrets. Guarded by ```this```.
+	private long storedBytes; ///< Bytes of the slots in use. Guarded by ```this```.
+
+	/**
+	 * @brief Handle of a password in the store
+	 */
+	public static final class Secret {
+		private final int chunk; ///< Index of the chunk holding the password
+		private final int offset; ///< Position of the slot in the chunk, in bytes
+		private final int sizeClass; ///< Size class of the slot
+		private final int length; ///< Number of characters
+		private final int epoch; ///< Epoch of the store when the password was stored
+		private boolean freed; ///< Whether the slot was freed. Guarded by the store.
+
+		/**
+		 * Constructs a handle.
+		 *
+		 * @param      chunk      The chunk
+		 * @param      offset     The offset of the slot
+		 * @param      sizeClass  The size class of the slot
+		 * @param      length     The number of characters
+		 * @param      epoch      The epoch of the store
+		 */
+		private Secret(int chunk, int offset, int sizeClass, int length, int epoch) {
+			this.chunk = chunk;
+			this.offset = offset;
+			this.sizeClass = sizeClass;
+			this.length = length;
+			this.epoch = epoch;
+		}
+
+		/**
+		 * @brief Returns the length of the password
+		 *
+		 * @return     The number of characters
+		 */
+		public int length() {
+			return length;
+		}
+	}
+
+	/**
+	 * @brief Zeroes the chunks of a store
+	 *
+	 * Kept apart from the store, so that it can run once the store is
+	 * unreachable.
+	 */
+	private static class Wiper implements Runnable {
+		private final ArrayList<ByteBuffer> chunks; ///< The chunks of the store
+
+		/**
+		 * Constructs a wiper for the chunks of a store.
+		 *
+		 * @param      chunks  The chunks
+		 */
+		Wiper(ArrayList<ByteBuffer> chunks) {
+			this.chunks = chunks;
+		}
+
+		public void run() {
+			synchronized (chunks) {
+				for (ByteBuffer chunk : chunks)
+					zero(chunk, 0, chunk.capacity());
+			}
+		}
+	}
+
+	/**
+	 * Constructs an empty store. No memory is allocated until a password is stored.
+	 */
+	public SecretStore() {
+		cleaner.register(this, new Wiper(chunks));
+	}
+
+	/**
+	 * @brief Store a password
+	 *
+	 * @param      password  The password
+	 *
+	 * @return     The handle of the stored copy
+	 */
+	public synchronized Secret put(CharSequence password) {
+		Secret secret = allocate(password.length());
+		CharBuffer slot = slot(secret, password.length());
+		for (int i = 0; i < password.length(); ++i)
+			slot.put(password.charAt(i));
+		return secret;
+	}
+
+	/**
+	 * @brief Store a password given as UTF-8
+	 *
+	 * Decodes the bytes straight into the store, without creating a String.
+	 * Malformed bytes are replaced like new String would.
+	 *
+	 * @param      utf8    The array containing the encoded password
+	 * @param      offset  The start of the password
+	 * @param      length  The length of the password in bytes
+	 *
+	 * @return     The handle of the stored password
+	 */
+	public synchronized Secret put(byte[] utf8, int offset, int length) {
+		// UTF-8 never needs more UTF-16 characters than bytes
+		Secret reserved = allocate(length);
+		CharBuffer slot = slot(reserved, length);
+		decoder.reset();
+		decoder.decode(ByteBuffer.wrap(utf8, offset, length), slot, true);
+		decoder.flush(slot);
+		return new Secret(reserved.chunk, reserved.offset, reserved.sizeClass, slot.position(), epoch);
+	}
+
+	/**
+	 * @brief Get a copy of a password
+	 *
+	 * The caller should zero the copy with Arrays.fill once it is done with it.
+	 *
+	 * @param      secret  The handle of the password
+	 *
+	 * @return     The characters of the password, or null if it has been
+	 * freed or wiped.
+	 */
+	public synchronized char[] chars(Secret secret) {
+		if (!isValid(secret))
+			return null;
+		char[] password = new char[secret.length];
+		slot(secret, secret.length).get(password);
+		return password;
+	}
+
+	/**
+	 * @brief Zero a password and free its slot
+	 *
+	 * Freeing a password twice, or after a wipe, does nothing.
+	 *
+	 * @param      secret  The handle of the password, or null
+	 */
+	public synchronized void free(Secret secret) {
+		if (secret == null || !isValid(secret))
+			return;
+		secret.freed = true;
+		storedBytes -= slotBytes(secret.sizeClass);
+		zero(chunks.get(secret.chunk), secret.offset, slotBytes(secret.sizeClass));
+		pushFreeSlot(secret.sizeClass, ((long)secret.chunk << 32) | secret.offset);
+	}
+
+	/**
+	 * @brief Zero every password
+	 *
+	 * Every Secret handed out so far becomes invalid. The store can be
+	 * used again afterwards; its memory is reused.
+	 */
+	public synchronized void wipe() {
+		synchronized (chunks) {
+			for (ByteBuffer chunk : chunks)
+				zero(chunk, 0, chunk.capacity());
+		}
+		++epoch;
+		storedBytes = 0;
+		freeCounts.clear();
+		freeSlots.clear();
+		spareChunks.clear();
+		for (int chunk = 0; chunk < chunks.size(); ++chunk) {
+			int capacity = chunks.get(chunk).capacity();
+			if (capacity == chunkSize)
+				spareChunks.add(chunk);
+			else
+				pushFreeSlot(Integer.numberOfTrailingZeros(capacity / slotBytes(0)), (long)chunk << 32);
+		}
+		position = chunkSize;
+		sharedChunk = -1;
+	}
+
+	/**
+	 * @brief Returns the memory used by stored passwords
+	 *
+	 * @return     The size of the slots in use, in bytes
+	 */
+	public synchronized long storedBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * @brief Check that a secret can still be read
+	 *
+	 * @param      secret  The handle
+	 *
+	 * @return     True if it was neither freed nor wiped.
+	 */
+	private boolean isValid(Secret secret) {
+		return !secret.freed && secret.epoch == epoch;
+	}
+
+	/**
+	 * @brief Find a slot for a password
+	 *
+	 * Reuses a free slot of the size class if there is one, and otherwise
+	 * cuts a new one from the shared chunk, or allocates a chunk for
+	 * passwords bigger than a chunk. When the shared chunk is full, the
+	 * next one is a spare chunk left by wipe or a new one; the end of the
+	 * full chunk is left unused.
+	 *
+	 * @param      length  The number of characters
+	 *
+	 * @return     The handle of the slot, holding ```length``` characters
+	 */
+	private Secret allocate(int length) {
+		int sizeClass = sizeClass(length);
+		int bytes = slotBytes(sizeClass);
+		long free = popFreeSlot(sizeClass);
+		int chunk;
+		int offset;
+		if (free >= 0) {
+			chunk = (int)(free >>> 32);
+			offset = (int)free;
+		} else if (bytes > chunkSize) {
+			chunk = addChunk(bytes);
+			offset = 0;
+		} else {
+			if (position + bytes > chunkSize) {
+				sharedChunk = spareChunks.isEmpty() ? addChunk(chunkSize) :
+					spareChunks.remove(spareChunks.size() - 1);
+				position = 0;
+			}
+			chunk = sharedChunk;
+			offset = position;
+			position += bytes;
+		}
+		Secret secret = new Secret(chunk, offset, sizeClass, length, epoch);
+		storedBytes += bytes;
+		return secret;
+	}
+
+	/**
+	 * @brief Add a direct buffer
+	 *
+	 * @param      size  The size in bytes
+	 *
+	 * @return     The index of the chunk
+	 */
+	private int addChunk(int size) {
+		synchronized (chunks) {
+			chunks.add(ByteBuffer.allocateDirect(size));
+			return chunks.size() - 1;
+		}
+	}
+
+	/**
+	 * @brief View the slot of a secret as characters
+	 *
+	 * @param      secret  The handle
+	 * @param      length  The number of characters viewed
+	 *
+	 * @return     A buffer starting at the slot, with room for ```length``` characters
+	 */
+	private CharBuffer slot(Secret secret, int length) {
+		ByteBuffer view = chunks.get(secret.chunk).duplicate();
+		view.limit(secret.offset + 2*length).position(secret.offset);
+		return view.slice().asCharBuffer();
+	}
+
+	/**
+	 * @brief Take a free slot of a size class
+	 *
+	 * @param      sizeClass  The size class
+	 *
+	 * @return     The slot as chunk and offset, or -1 if there is none.
+	 */
+	private long popFreeSlot(int sizeClass) {
+		if (sizeClass >= freeCounts.size() || freeCounts.get(sizeClass) == 0)
+			return -1;
+		int count = freeCounts.get(sizeClass) - 1;
+		freeCounts.set(sizeClass, count);
+		return freeSlots.get(sizeClass)[count];
+	}
+
+	/**
+	 * @brief Make a slot available again
+	 *
+	 * @param      sizeClass  The size class of the slot
+	 * @param      slot       The slot as chunk and offset
+	 */
+	private void pushFreeSlot(int sizeClass, long slot) {
+		while (freeCounts.size() <= sizeClass) {
+			freeCounts.add(0);
+			freeSlots.add(new long[16]);
+		}
+		int count = freeCounts.get(sizeClass);
+		long[] slots = freeSlots.get(sizeClass);
+		if (count == slots.length) {
+			slots = Arrays.copyOf(slots, 2*count);
+			freeSlots.set(sizeClass, slots);
+		}
+		slots[count] = slot;
+		freeCounts.set(sizeClass, count + 1);
+	}
+
+	/**
+	 * @brief Size class of a password
+	 *
+	 * Class n holds up to ```minSlotChars``` times 2 to the n characters.
+	 *
+	 * @param      length  The number of characters
+	 *
+	 * @return     The smallest class the password fits in
+	 */
+	private static int sizeClass(int length) {
+		int sizeClass = 0;
+		while ((long)minSlotChars << sizeClass < length)
+			++sizeClass;
+		return sizeClass;
+	}
+
+	/**
+	 * @brief Size of the slots of a class
+	 *
+	 * @param      sizeClass  The size class
+	 *
+	 * @return     The size in bytes
+	 */
+	private static int slotBytes(int sizeClass) {
+		return 2 * minSlotChars << sizeClass;
+	}
+
+	/**
+	 * @brief Zero part of a buffer
+	 *
+	 * @param      buffer  The buffer
+	 * @param      offset  The first byte
+	 * @param      length  The number of bytes
+	 */
+	private static void zero(ByteBuffer buffer, int offset, int length) {
+		for (int i = 0; i < length; ++i)
+			buffer.put(offset + i, (byte)0);
+	}
+}
@@ -7,6 +7,7 @@ import org.eclipse.swt.*;
 import org.eclipse.swt.widgets.*;
 import org.eclipse.swt.layout.*;
 import java.nio.file.*;
+import java.util.concurrent.CancellationException;
 
 /**
  * @brief Initial Login/Register screen
@@ -131,7 +132,12 @@ public class AuthenticationUI {
      * 
      * Try to login with the username and password that the user
      * provided. If the login is successful, the password entries
-     * are loaded.
+     * are loaded. Only the website names are decrypted; passwords are
+     * decrypted when the user copies them.
+     * 
+     * The vault is loaded in the background, and the user can cancel
+     * the login while it loads. A vault unlocked after the user cancelled
+     * is locked right away, wiping its decrypted passwords.
      * 
      * Shows an error message if the login was unsuccessful.
      *
@@ -140,10 +146,22 @@ public class AuthenticationUI {
      *
      * @return     True if login was successful, false otherwise.
      */
-    private boolean tryLogin(String user, String password) {
+    private boolean tryLogin(final String user, final String password) {
         try {
-            passwords = new EncryptedMap(user, password);
+            passwords = BackgroundTask.run("Login", "Unlocking the vault of " + user + "...", true,
+                new BackgroundTask.DiscardableOperation<EncryptedMap>() {
+                public EncryptedMap run(BackgroundTask.Progress progress) throws Exception {
+                    return new EncryptedMap(user, password,
+                                            EncryptedMap.defaultLoadThreads, true);
+                }
+
+                public void discard(EncryptedMap map) throws Exception {
+                    map.lock();
+                }
+            });
             return true;
+        } catch (CancellationException e) {
+            return false;
         } catch (Hmac.IntegrityException e) {
             UIUtility.errorMessage("Login", "Wrong Password or corrupted files.");
             return false;
@@ -157,7 +175,7 @@ public class AuthenticationUI {
      * @brief Try to register a user
      * 
      * Try to register a user with username ```user``` and
-     * password ```password```.
+     * password ```password```. The keys are derived in the background.
      * 
      * Shows an error message if the registration was unsuccessful.
      *
@@ -166,9 +184,15 @@ public class AuthenticationUI {
      *
      * @return     True if registration was successful, false otherwise.
      */
-    private boolean tryRegister(String user, String password) {
+    private boolean tryRegister(final String user, final String password) {
         try {
-            new Registration(user, password);
+            BackgroundTask.run("Registration", "Creating user " + user + "...", false,
+                new BackgroundTask.Operation<Void>() {
+                public Void run(BackgroundTask.Progress progress) throws Exception {
+                    new Registration(user, password);
+                    return null;
+                }
+            });
             return true;
         } catch (FileAlreadyExistsException e) {
             UIUtility.errorMessage("Registration.", "User " + user + " already exists.");
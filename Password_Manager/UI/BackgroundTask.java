@@ -0,0 +1,213 @@
+package Password_Manager.UI;
+
+import org.eclipse.swt.*;
+import org.eclipse.swt.widgets.*;
+import org.eclipse.swt.layout.*;
+import java.util.concurrent.*;
+
+/**
+ * @brief Runs slow vault operations off the UI thread
+ *
+ * Operations like logging in run PBKDF2 and decrypt the whole vault,
+ * which would freeze the window if they ran on the SWT display thread.
+ * BackgroundTask runs them one at a time on a background thread instead,
+ * so they keep their order, while the display thread keeps handling
+ * events. The end of an operation is posted back with Display::asyncExec.
+ *
+ * If an operation takes longer than ```dialogDelay``` milliseconds, a
+ * dialog with a status line, a progress bar and, for operations that can
+ * be stopped, a Cancel button is shown. The window that started the
+ * operation is disabled until it is done.
+ *
+ * An operation cancelled after it built its result, like an unlocked
+ * vault, hands the result to DiscardableOperation::discard, since nobody
+ * else will release it.
+ */
+class BackgroundTask {
+	private static final int dialogDelay = 300; ///< Milliseconds before the progress dialog is shown
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Vault operations");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}); ///< Thread running the operations
+
+	/**
+	 * @brief A slow operation
+	 */
+	interface Operation<T> {
+		/**
+		 * @brief Run the operation on the background thread
+		 *
+		 * @param      progress   Status line of the progress dialog
+		 *
+		 * @return     The result of the operation
+		 *
+		 * @throws     Exception  If the operation failed. Cancellable operations
+		 * should stop when the thread is interrupted.
+		 */
+		T run(Progress progress) throws Exception;
+	}
+
+	/**
+	 * @brief An operation whose result must be released if nobody gets it
+	 */
+	interface DiscardableOperation<T> extends Operation<T> {
+		/**
+		 * @brief Release the result of a cancelled operation
+		 *
+		 * Called on the background thread when Cancel was pressed after
+		 * run had built ```result```.
+		 *
+		 * @param      result     The result of run
+		 *
+		 * @throws     Exception  If the result couldn't be released.
+		 */
+		void discard(T result) throws Exception;
+	}
+
+	/**
+	 * @brief Status line of the progress dialog
+	 *
+	 * Can be updated from the background thread.
+	 */
+	static class Progress {
+		private final Label status; ///< The status line
+
+		Progress(Label status) {
+			this.status = status;
+		}
+
+		/**
+		 * @brief Change the status line
+		 *
+		 * @param      text  The new status
+		 */
+		void setStatus(final String text) {
+			MainUI.display.asyncExec(new Runnable() {
+				public void run() {
+					if (!status.isDisposed()) {
+						status.setText(text);
+						status.getShell().layout();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @brief Run an operation and wait for it without blocking the UI
+	 *
+	 * Returns once the operation is done. Meanwhile the display thread keeps
+	 * dispatching events, so windows are repainted and timers run.
+	 *
+	 * After Cancel is pressed, this method returns right away. The operation
+	 * is interrupted, but runs until it notices, and the next operation
+	 * starts only after that. If it still returns a result, the result is
+	 * passed to DiscardableOperation::discard when the operation is one.
+	 *
+	 * @param      title                  The title of the progress dialog
+	 * @param      message                The initial status line
+	 * @param      cancellable            Whether to show a Cancel button
+	 * @param      operation              The operation
+	 *
+	 * @return     The result of the operation
+	 *
+	 * @throws     CancellationException  If Cancel was pressed.
+	 * @throws     Exception              The exception thrown by the operation.
+	 */
+	static <T> T run(String title, String message, boolean cancellable,
+		final Operation<T> operation) throws CancellationException, Exception {
+		final Display display = MainUI.display;
+		final Shell parent = display.getActiveShell();
+		final boolean[] finished = {false};
+		// Whether Cancel won, or the operation returned first. Guarded by cancelled.
+		final boolean[] cancelled = {false};
+		final boolean[] returned = {false};
+
+		final Shell shell = parent == null ? new Shell(display, SWT.TITLE) :
+			new Shell(parent, SWT.TITLE | SWT.APPLICATION_MODAL);
+		shell.setText(title);
+		shell.setLayout(new GridLayout());
+		Label status = new Label(shell, SWT.NONE);
+		status.setText(message);
+		status.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+		ProgressBar bar = new ProgressBar(shell, SWT.HORIZONTAL | SWT.INDETERMINATE);
+		bar.setLayoutData(new GridData(250, SWT.DEFAULT));
+
+		final Progress progress = new Progress(status);
+		final Future<T> result = executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				try {
+					T value = operation.run(progress);
+					synchronized (cancelled) {
+						if (!cancelled[0]) {
+							returned[0] = true;
+							return value;
+						}
+					}
+					// Cancel has interrupted the thread already; clear it so discard can use files
+					Thread.interrupted();
+					if (operation instanceof DiscardableOperation)
+						((DiscardableOperation<T>)operation).discard(value);
+					throw new CancellationException();
+				} finally {
+					display.asyncExec(new Runnable() {
+						public void run() {
+							finished[0] = true;
+						}
+					});
+				}
+			}
+		});
+
+		if (cancellable) {
+			Button cancel = new Button(shell, SWT.PUSH);
+			cancel.setText("Cancel");
+			cancel.setLayoutData(new GridData(SWT.END, SWT.CENTER, false, false));
+			cancel.addListener(SWT.Selection, new Listener() {
+				public void handleEvent(Event e) {
+					synchronized (cancelled) {
+						if (returned[0])
+							return;
+						cancelled[0] = true;
+						result.cancel(true);
+					}
+					finished[0] = true;
+				}
+			});
+		}
+
+		display.timerExec(dialogDelay, new Runnable() {
+			public void run() {
+				if (!finished[0] && !shell.isDisposed()) {
+					shell.pack();
+					shell.open();
+				}
+			}
+		});
+
+		if (parent != null)
+			parent.setEnabled(false);
+		try {
+			while (!finished[0])
+				if (!display.readAndDispatch())
+					display.sleep();
+		} finally {
+			if (parent != null && !parent.isDisposed())
+				parent.setEnabled(true);
+			shell.dispose();
+		}
+
+		if (cancelled[0])
+			throw new CancellationException(title + " cancelled.");
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+}
@@ -18,7 +18,8 @@ import org.eclipse.swt.layout.*;
 public class MainUI {
 	public static Display display; ///< The Display object the program uses to display the shells
 	private Shell shell; ///< The main shell of the program
-	private List list; ///< The list of password entries
+	private Text search; ///< The search box filtering the table
+	private Table table; ///< The table of password entries, filled as rows are shown
 	private PasswordsHandlerUI passwordHandler; ///< The UI used to handle most menu item presses
 
 	/**
@@ -32,7 +33,9 @@ public class MainUI {
 	public MainUI() {
 		display = new Display();
 		shell = UIUtility.createShell(new FormLayout(), "Password Manager");
-		list = new List(shell, SWT.V_SCROLL);
+		search = new Text(shell, SWT.SEARCH | SWT.ICON_SEARCH | SWT.ICON_CANCEL);
+		search.setMessage("Search");
+		table = new Table(shell, SWT.VIRTUAL | SWT.SINGLE | SWT.FULL_SELECTION | SWT.V_SCROLL);
 
 		EncryptedMap passwords = new AuthenticationUI().start();
 		if (passwords == null) {
@@ -40,7 +43,8 @@ public class MainUI {
 			return;
 		}
 		passwordHandler = new PasswordsHandlerUI(passwords);
-		passwordHandler.initializeList(list);
+		passwordHandler.initializeList(table);
+		passwordHandler.watchList(table);
 
 		Menu bar = new Menu(shell, SWT.BAR);
 		shell.setMenuBar(bar);
@@ -48,14 +52,27 @@ public class MainUI {
 		makeFileMenu(bar);
 		makeEditMenu(bar);
 
+		search.addListener(SWT.Modify, new Listener() {
+			public void handleEvent(Event e) {
+				passwordHandler.filterList(table, search.getText());
+			}
+		});
+
+		FormData searchLay = new FormData();
+		searchLay.left  = new FormAttachment(0,  0);
+		searchLay.top   = new FormAttachment(0,  0);
+		searchLay.right = new FormAttachment(100,0);
+		search.setLayoutData(searchLay);
+
 		FormData lay = new FormData();
 		lay.left   = new FormAttachment(0,  0);
-		lay.top    = new FormAttachment(0,  0);
+		lay.top    = new FormAttachment(search, 0);
 		lay.bottom = new FormAttachment(100,0);
 		lay.right  = new FormAttachment(100,0);
-		list.setLayoutData(lay);
+		table.setLayoutData(lay);
 
 		UIUtility.startShell(shell, 300, 200);
+		passwordHandler.lock();
 		display.dispose ();
 	}
 
@@ -63,8 +80,9 @@ public class MainUI {
 	 * @brief Create the File menu
 	 * 
 	 * Creates the File menu and its items, and adds it to the menu bar ```bar```.
-	 * You can create a new password, change the master password,
-	 * quit the program or delete your account.
+	 * You can create a new password, import passwords from a CSV file,
+	 * change the master password, replace the encryption keys, quit the
+	 * program or delete your account.
 	 *
 	 * @param      bar   The menu bar where this menu will be added
 	 */
@@ -77,7 +95,13 @@ public class MainUI {
 		addMenuPushItem(submenu, "&New password\tCtrl+N", SWT.MOD1 + 'N',
 			new Listener () {
 				public void handleEvent (Event e) {
-					passwordHandler.addPasswd(list);
+					passwordHandler.addPasswd(table);
+			}});
+
+		addMenuPushItem(submenu, "&Import CSV...", SWT.NONE,
+			new Listener () {
+				public void handleEvent (Event e) {
+					passwordHandler.importCsv(table);
 			}});
 
 		addMenuPushItem(submenu, "&Change Master Password", SWT.NONE,
@@ -86,6 +110,12 @@ public class MainUI {
 					passwordHandler.changeMasterPassword();
 			}});
 
+		addMenuPushItem(submenu, "&Replace Encryption Keys", SWT.NONE,
+			new Listener () {
+				public void handleEvent (Event e) {
+					passwordHandler.rotateKeys();
+			}});
+
 		addMenuPushItem(submenu, "&Quit\tCtrl+Q", SWT.MOD1 + 'Q',
 			new Listener () {
 				public void handleEvent (Event e) {
@@ -120,10 +150,9 @@ public class MainUI {
 		addMenuPushItem(submenu, "&Copy\tCtrl+C", SWT.MOD1 + 'C',
 			new Listener () {
 				public void handleEvent (Event e) {
-					String[] keys = list.getSelection();
+					String[] keys = passwordHandler.getSelection(table);
 					for (String key : keys) {
-						String value = passwordHandler.getPassword(key);
-						UIUtility.copyToClipboard(value);
+						tryCopyPassword(key);
 					}
 			}});
 
@@ -132,18 +161,16 @@ public class MainUI {
 				public void handleEvent (Event e) {
 					if (!UIUtility.yesNoQuestion("Delete Entry", "Are you sure?"))
 						return;
-					String[] keys = list.getSelection();
+					String[] keys = passwordHandler.getSelection(table);
 					for (String key : keys) {
-						boolean success = tryDeleteEntry(key);
-						if (success)
-							list.remove(key);
+						tryDeleteEntry(key);
 					}
 			}});
 
 		addMenuPushItem(submenu, "&Change\tEnter", SWT.LF,
 			new Listener () {
 				public void handleEvent (Event e) {
-					String[] keys = list.getSelection();
+					String[] keys = passwordHandler.getSelection(table);
 					for (String key : keys) {
 						passwordHandler.editEntry(key);
 					}
@@ -185,6 +212,24 @@ public class MainUI {
 		}
 	}
 
+	/**
+	 * @brief Copy the password of an entry to the clipboard
+	 *
+	 * @param      key   The website name that is used as the key
+	 * in the password map.
+	 *
+	 * @return     True if successful, false otherwise.
+	 */
+	private boolean tryCopyPassword(String key) {
+		try {
+			UIUtility.copyToClipboard(passwordHandler.getPassword(key));
+			return true;
+		} catch (Exception e) {
+			UIUtility.errorMessage("Copying Password", e.getMessage());
+			return false;
+		}
+	}
+
 	/**
 	 * @brief Delete a password entry
 	 *
@@ -195,7 +240,7 @@ public class MainUI {
 	 */
 	private boolean tryDeleteEntry(String key) {
 		try {
-			passwordHandler.deletePassword(key);
+			passwordHandler.deletePassword(table, key);
 			return true;
 		} catch (Exception e) {
 			UIUtility.errorMessage("Deleting Password", e.getMessage());
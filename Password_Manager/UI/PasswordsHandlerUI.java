@@ -1,12 +1,16 @@
 package Password_Manager.UI;
 
+import Password_Manager.CsvImporter;
 import Password_Manager.EncryptedMap;
+import Password_Manager.Naming;
+import Password_Manager.WebsiteIndex;
 
 import org.eclipse.swt.*;
 import org.eclipse.swt.widgets.*;
 import org.eclipse.swt.layout.*;
-import java.util.regex.Pattern;
 import java.io.*;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
 
 /**
  * @brief UI class to handle password related activities
@@ -17,6 +21,9 @@ import java.io.*;
  */
 public class PasswordsHandlerUI {
 	private EncryptedMap passwords; ///< The set of password entries
+	private WebsiteIndex index; ///< Search index over the websites in ```passwords```
+	private String filter = ""; ///< Only websites containing this string are shown
+	private java.util.List<String> rows = Collections.emptyList(); ///< The websites shown in the table, sorted
 
 	/**
 	 * @brief Create the UI
@@ -38,13 +45,155 @@ public class PasswordsHandlerUI {
 	 * password he wants and using the Copy button in the Edit
 	 * menu. The password will be copied to the clipboard
 	 * and will be ready to be pasted.
+	 * 
+	 * ```table``` must be a virtual table. Its rows are filled only when
+	 * they are shown, from a sorted snapshot of the websites.
 	 *
-	 * @param      list  The list that will be initialized with the
+	 * @param      table  The table that will be initialized with the
 	 * password entries.
 	 */
-	public void initializeList(List list) {
-		for (String entry : passwords.getWebsites())
-			list.add(entry, 0);
+	public void initializeList(Table table) {
+		index = new WebsiteIndex(passwords.getWebsites());
+		table.addListener(SWT.SetData, new Listener() {
+			public void handleEvent(Event e) {
+				TableItem item = (TableItem)e.item;
+				item.setText(rows.get(e.index));
+			}
+		});
+		showEntries(table);
+	}
+
+	/**
+	 * @brief Show only the entries whose website contains a string
+	 * 
+	 * The case of the letters is ignored.
+	 *
+	 * @param      table   The table of entries
+	 * @param      filter  The string to look for, or an empty string to
+	 * show all the entries.
+	 */
+	public void filterList(Table table, String filter) {
+		this.filter = filter;
+		showEntries(table);
+	}
+
+	/**
+	 * @brief Get the selected websites
+	 *
+	 * @param      table  The table of entries
+	 *
+	 * @return     The websites of the selected rows
+	 */
+	public String[] getSelection(Table table) {
+		int[] selected = table.getSelectionIndices();
+		String[] websites = new String[selected.length];
+		for (int i = 0; i < selected.length; ++i)
+			websites[i] = rows.get(selected[i]);
+		return websites;
+	}
+
+	/**
+	 * @brief Show the websites matching the filter
+	 * 
+	 * All the rows are refilled when they are next shown.
+	 *
+	 * @param      table  The table of entries
+	 */
+	private void showEntries(Table table) {
+		rows = index.search(filter);
+		table.setItemCount(rows.size());
+		table.clearAll();
+	}
+
+	/**
+	 * @brief Show that one website was added or removed
+	 * 
+	 * Only the rows from the position of ```website``` to the end are
+	 * refilled, and the selected websites stay selected. Must be called
+	 * after ```index``` has been updated.
+	 *
+	 * @param      table    The table of entries
+	 * @param      website  The website that was added or removed
+	 */
+	private void updateEntries(Table table, String website) {
+		if (table.isDisposed())
+			return;
+
+		String[] selected = getSelection(table);
+		java.util.List<String> oldRows = rows;
+		rows = index.search(filter);
+		int position = Math.min(rowPosition(oldRows, website), rowPosition(rows, website));
+
+		table.setItemCount(rows.size());
+		if (position < rows.size())
+			table.clear(position, rows.size() - 1);
+
+		table.deselectAll();
+		for (String selectedWebsite : selected) {
+			int row = Collections.binarySearch(rows, selectedWebsite, WebsiteIndex.order);
+			if (row >= 0)
+				table.select(row);
+		}
+	}
+
+	/**
+	 * @brief Position of a website in sorted rows
+	 *
+	 * @param      rows     The rows
+	 * @param      website  The website
+	 *
+	 * @return     The row of ```website```, or where it would be inserted.
+	 */
+	private static int rowPosition(java.util.List<String> rows, String website) {
+		int position = Collections.binarySearch(rows, website, WebsiteIndex.order);
+		return position >= 0 ? position : -position - 1;
+	}
+
+	/**
+	 * @brief Keep the list of entries in sync with changes made by other programs
+	 * 
+	 * Entries added, changed or removed in the vault by another program are
+	 * added to or removed from ```table``` without reloading it.
+	 *
+	 * @param      table  The table of entries
+	 */
+	public void watchList(final Table table) {
+		try {
+			passwords.startWatching(new EncryptedMap.ChangeListener() {
+				public void entryChanged(final String website) {
+					MainUI.display.asyncExec(new Runnable() {
+						public void run() {
+							index.add(website);
+							updateEntries(table, website);
+						}
+					});
+				}
+
+				public void entryRemoved(final String website) {
+					MainUI.display.asyncExec(new Runnable() {
+						public void run() {
+							index.remove(website);
+							updateEntries(table, website);
+						}
+					});
+				}
+			});
+		} catch (IOException e) {
+			UIUtility.errorMessage("Watching Passwords",
+				"Changes made by other programs won't be shown until you log in again.");
+		}
+	}
+
+	/**
+	 * @brief Stop following changes made by other programs and zero the
+	 * decrypted passwords
+	 */
+	public void lock() {
+		try {
+			passwords.lock();
+		} catch (IOException e) {
+			// the program is closing the list anyway
+		}
 	}
 
 	/**
@@ -53,9 +202,9 @@ public class PasswordsHandlerUI {
 	 * Shows the UI to add a new password entry. Asks to input
 	 * the website and password for the entry.
 	 *
-	 * @param      list  The list where the entry will be added
+	 * @param      table  The table where the entry will be added
 	 */
-	public void addPasswd(List list) {
+	public void addPasswd(final Table table) {
 		GridLayout layout = new GridLayout();
 		layout.numColumns = 2;
 
@@ -71,7 +220,7 @@ public class PasswordsHandlerUI {
 		add.setLayoutData(UIUtility.textFieldData);
 		add.addListener(SWT.Selection, new Listener() {
 			public void handleEvent(Event e) {
-				if (list.indexOf(tsite.getText()) != -1) {
+				if (passwords.getWebsites().contains(tsite.getText())) {
 					String question = tsite.getText() + " already exists. Replace?";
 					UIUtility.yesNoQuestion("Replace password", question);
 					if (!UIUtility.answeredYes) {
@@ -81,8 +230,8 @@ public class PasswordsHandlerUI {
 				}
 				boolean success = tryAddPassword(tsite.getText(), tpass.getText());
 				if (success) {
-					if (list.indexOf(tsite.getText()) == -1)
-						list.add(tsite.getText());
+					index.add(tsite.getText());
+					updateEntries(table, tsite.getText());
 					shell.dispose();
 				}
 			}
@@ -95,17 +244,23 @@ public class PasswordsHandlerUI {
 	 * @brief Add a password entry
 	 * 
 	 * Checks validity of the password and website, and
-	 * tries to add the password to the password map
+	 * tries to add the password to the password map in the background
 	 *
 	 * @param      website   The website
 	 * @param      password  The password
 	 *
 	 * @return     True if successful, false otherwise
 	 */
-	private boolean tryAddPassword(String website, String password) {
+	private boolean tryAddPassword(final String website, final String password) {
 		try {
 			isValid(website);
-			passwords.addEntry(website, password);
+			BackgroundTask.run("Adding/Changing Entry", "Saving " + website + "...", false,
+				new BackgroundTask.Operation<Void>() {
+				public Void run(BackgroundTask.Progress progress) throws Exception {
+					passwords.addEntry(website, password);
+					return null;
+				}
+			});
 			return true;
 		} catch (IOException e) {
 			UIUtility.errorMessage("Adding/Changing Entry",
@@ -120,19 +275,68 @@ public class PasswordsHandlerUI {
 	/**
 	 * @brief Checks validity of the website string in an entry
 	 * 
-	 * The only website names allowed are those containing english alphabet
-	 * letters, numbers, dashes, underscores and dots.
+	 * See Naming::checkWebsite.
 	 *
 	 * @param      website    The website
 	 *
 	 * @throws     Exception  If the website name is invalid.
 	 */
 	private void isValid(String website) throws Exception {
-		Pattern websitePattern = Pattern.compile("[a-zA-Z0-9_.-]+");
-		boolean match = websitePattern.matcher(website).matches();
-		if (!match)
-			throw new Exception("Invalid characters in website." +
-				" Use only english letters, numbers, dot, dash or underscore.");
+		Naming.checkWebsite(website);
+	}
+
+	/**
+	 * @brief UI to import password entries from a CSV file
+	 * 
+	 * Asks for a CSV file and imports it with CsvImporter in the
+	 * background, showing the progress. The new websites are added to
+	 * ```table```, and a summary of the import is shown at the end. If the
+	 * import is cancelled, the batches added before are kept.
+	 *
+	 * @param      table  The table where the entries will be added
+	 */
+	public void importCsv(Table table) {
+		FileDialog dialog = new FileDialog(table.getShell(), SWT.OPEN);
+		dialog.setText("Import Passwords");
+		dialog.setFilterExtensions(new String[] {"*.csv", "*"});
+		final String filename = dialog.open();
+		if (filename == null)
+			return;
+
+		CsvImporter.Result result;
+		try {
+			result = BackgroundTask.run("Importing Passwords", "Reading " + filename + "...", true,
+				new BackgroundTask.Operation<CsvImporter.Result>() {
+				public CsvImporter.Result run(final BackgroundTask.Progress progress) throws Exception {
+					return new CsvImporter(passwords).importFile(filename, new CsvImporter.ProgressListener() {
+						public void progress(long rows, double rowsPerSecond) {
+							progress.setStatus(String.format("Imported %d rows (%.0f rows/s)...", rows, rowsPerSecond));
+						}
+					});
+				}
+			});
+		} catch (CancellationException e) {
+			UIUtility.infoMessage("Importing Passwords",
+				"Import cancelled. The entries imported so far were kept.");
+			return;
+		} catch (Exception e) {
+			UIUtility.errorMessage("Importing Passwords", e.getMessage());
+			return;
+		} finally {
+			for (String website : passwords.getWebsites())
+				index.add(website);
+			showEntries(table);
+		}
+
+		StringBuilder summary = new StringBuilder();
+		summary.append("Imported ").append(result.imported).append(" entries");
+		summary.append(String.format(" (%.0f rows/s).", result.rowsPerSecond()));
+		if (result.rejected > 0) {
+			summary.append("\nSkipped ").append(result.rejected).append(" rows:");
+			for (String error : result.errors)
+				summary.append("\n").append(error);
+		}
+		UIUtility.infoMessage("Importing Passwords", summary.toString());
 	}
 
 	/**
@@ -208,16 +412,22 @@ public class PasswordsHandlerUI {
 	 * @brief Change the master password
 	 * 
 	 * Calls the backend method to change the master password
-	 * and handle the files.
+	 * and handle the files, in the background.
 	 *
 	 * @param      oldPassword  The old password
 	 * @param      newPassword  The new password
 	 *
 	 * @return     True if successful, false otherwise.
 	 */
-	private boolean tryChangeMasterPassword(String oldPassword, String newPassword) {
+	private boolean tryChangeMasterPassword(final String oldPassword, final String newPassword) {
 		try {
-			passwords.tryChangeMasterPassword(oldPassword, newPassword);
+			BackgroundTask.run("Change Password", "Re-encrypting the vault...", false,
+				new BackgroundTask.Operation<Void>() {
+				public Void run(BackgroundTask.Progress progress) throws Exception {
+					passwords.tryChangeMasterPassword(oldPassword, newPassword);
+					return null;
+				}
+			});
 			return true;
 		} catch (Exception e) {
 			UIUtility.errorMessage("Password Change Error", e.getMessage());
@@ -225,26 +435,88 @@ public class PasswordsHandlerUI {
 		}
 	}
 
+	/**
+	 * @brief Show UI to replace the encryption keys
+	 * 
+	 * The user is asked for the master password, and every entry is then
+	 * encrypted again with new keys.
+	 */
+	public void rotateKeys() {
+		GridLayout layout = new GridLayout();
+		layout.numColumns = 2;
+
+		final Shell shell = UIUtility.createShell(layout, "Replace Encryption Keys");
+
+		final Text pass = UIUtility.labelAndText(shell, "Master Password: ", SWT.BORDER | SWT.PASSWORD);
+		UIUtility.addEmptyCell(shell);
+
+		Button rotate = new Button(shell, SWT.PUSH);
+		shell.setDefaultButton(rotate);
+		rotate.setLayoutData(UIUtility.textFieldData);
+		rotate.setText("Submit");
+		rotate.addListener(SWT.Selection, new Listener() {
+			public void handleEvent(Event e) {
+				boolean success = tryRotateKeys(pass.getText());
+				if (success)
+					shell.dispose();
+			}
+		});
+
+		UIUtility.startShell(shell);
+	}
+
+	/**
+	 * @brief Replace the encryption keys
+	 * 
+	 * Calls the backend method to encrypt the entries with new keys,
+	 * in the background.
+	 *
+	 * @param      password  The master password
+	 *
+	 * @return     True if successful, false otherwise.
+	 */
+	private boolean tryRotateKeys(final String password) {
+		try {
+			BackgroundTask.run("Replace Encryption Keys", "Re-encrypting the vault...", false,
+				new BackgroundTask.Operation<Void>() {
+				public Void run(BackgroundTask.Progress progress) throws Exception {
+					passwords.rotateKeys(password);
+					return null;
+				}
+			});
+			return true;
+		} catch (Exception e) {
+			UIUtility.errorMessage("Key Replacement Error", e.getMessage());
+			return false;
+		}
+	}
+
 	/**
 	 * @brief Get the password of an entry
 	 *
 	 * @param      website  The website of the entry
 	 *
-	 * @return     The password.
+	 * @return     The password, to be zeroed by the caller, or null if
+	 * there is no entry.
+	 *
+	 * @throws     Exception  If the password couldn't be decrypted.
 	 */
-	public String getPassword(String website) {
-		return passwords.getWebsitePassword(website);
+	public char[] getPassword(String website) throws Exception {
+		return passwords.getWebsitePasswordChars(website);
 	}
 
 	/**
 	 * @brief Delete a password entry
 	 *
+	 * @param      table      The table of entries
 	 * @param      website    The website of the entry
 	 *
 	 * @throws     Exception  If an error occurred removing the password file.
 	 */
-	public void deletePassword(String website) throws Exception {
+	public void deletePassword(Table table, String website) throws Exception {
 		passwords.removeEntry(website);
+		index.remove(website);
+		updateEntries(table, website);
 	}
 
 	/**
@@ -6,6 +6,8 @@ import org.eclipse.swt.widgets.*;
 import org.eclipse.swt.layout.*;
 import org.eclipse.swt.custom.*;
 
+import java.util.Arrays;
+
 /**
  * @brief Utility methods for UI classes
  */
@@ -60,6 +62,24 @@ class UIUtility {
 				MainUI.display.sleep();
 	}
 
+	/**
+	 * @brief Copy a password to clipboard and zero it
+	 *
+	 * SWT only takes Strings, so the clipboard gets one; ```password```
+	 * itself is zeroed once it has been copied.
+	 *
+	 * @param      password  The password, or null
+	 */
+	public static void copyToClipboard(char[] password) {
+		if (password == null)
+			return;
+		try {
+			copyToClipboard(new String(password));
+		} finally {
+			Arrays.fill(password, '\0');
+		}
+	}
+
 	/**
 	 * @brief Copy a string to clipboard
 	 *
@@ -139,6 +159,22 @@ class UIUtility {
 		return errorBox.open();
 	}
 
+	/**
+	 * @brief Display an information message
+	 *
+	 * @param      title    The title of the window
+	 * @param      message  The message to display
+	 *
+	 * @return     The ID of the button that was selected to dismiss the message box
+	 */
+	public static int infoMessage(String title, String message) {
+		final Shell shell = UIUtility.createShell(new FillLayout(), "");
+		MessageBox infoBox = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK | SWT.TITLE);
+		infoBox.setText(title);
+		infoBox.setMessage(message);
+		return infoBox.open();
+	}
+
 	/**
 	 * @brief Add an empty placeholder cell in a shell
 	 *
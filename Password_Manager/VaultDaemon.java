@@ -0,0 +1,405 @@
+package Password_Manager;
+
+import Password_Manager.DaemonProtocol.Frame;
+import Password_Manager.Encryption.Hmac;
+import Password_Manager.Encryption.UnlockSession;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+import javax.crypto.BadPaddingException;
+
+/**
+ * @brief Headless server keeping unlocked vaults in memory
+ *
+ * Listens on a Unix domain socket and serves the requests described in
+ * DaemonProtocol. Vaults are unlocked once with an UNLOCK request and
+ * then stay in memory as EncryptedMap objects, so later lookups pay
+ * neither PBKDF2 nor the decryption of the vault. The maps watch their
+ * files, so changes made by the GUI show up in the daemon.
+ *
+ * Each connection has a thread reading its requests, which are run on a
+ * shared pool of ```threads``` workers. Lookups from the same connection
+ * run concurrently. A request changing a vault runs after the requests
+ * read before it, and the requests read after it run after it. A request
+ * is only handed to the workers once those it follows are done, so a
+ * slow UNLOCK doesn't keep workers waiting for it from other clients. At most
+ * ```maxPipelined``` requests of a connection are in flight; the reading
+ * thread waits when a client sends more without reading the responses.
+ *
+ * The socket file is made readable and writable by its owner only. It
+ * should still be created in a directory other users can't access.
+ *
+ * The daemon may keep an UnlockSession, so a vault that is locked and
+ * unlocked again within ```sessionMillis``` skips the key derivation. The
+ * derived keys stay in memory that long after a LOCK, so it is off unless
+ * the ```Password_Manager.unlockSessionMillis``` property is set.
+ */
+public class VaultDaemon implements Closeable {
+	private static final int maxPipelined = 1024; ///< Requests of one connection that may run or wait at once
+	private static final int pruneInterval = 64; ///< Finished lookups are dropped from a connection's list when it reaches a multiple of this size
+	private final Path socketPath; ///< The socket file
+	private final ServerSocketChannel server; ///< The listening socket
+	private final ExecutorService workers; ///< Threads running the requests
+	private final ConcurrentHashMap<String, EncryptedMap> vaults; ///< Unlocked vaults by user
+	private final Set<SocketChannel> connections; ///< Open client connections
+	private final UnlockSession session; ///< Cache of salts and derived keys of recent unlocks, or null
+
+	/**
+	 * @brief Start listening on a socket
+	 *
+	 * Keeps an unlock session for the milliseconds given by the
+	 * ```Password_Manager.unlockSessionMillis``` property, or none if it is
+	 * not set.
+	 *
+	 * @param      socketFilename  The socket file
+	 * @param      threads         The number of worker threads
+	 *
+	 * @throws     IOException     If another daemon is listening on the socket,
+	 * or the socket couldn't be created.
+	 */
+	public VaultDaemon(String socketFilename, int threads) throws IOException {
+		this(socketFilename, threads, Long.getLong("Password_Manager.unlockSessionMillis", 0));
+	}
+
+	/**
+	 * @brief Start listening on a socket, with an unlock session
+	 *
+	 * If the socket file exists but no daemon answers on it, it is left
+	 * over from a daemon that stopped without cleaning up, and is replaced.
+	 *
+	 * @param      socketFilename  The socket file
+	 * @param      threads         The number of worker threads
+	 * @param      sessionMillis   How long the salts and derived keys of an
+	 * unlock are kept, in milliseconds, or 0 to derive the keys every time.
+	 *
+	 * @throws     IOException     If another daemon is listening on the socket,
+	 * or the socket or the session couldn't be created.
+	 */
+	public VaultDaemon(String socketFilename, int threads, long sessionMillis) throws IOException {
+		try {
+			session = sessionMillis > 0 ? new UnlockSession(sessionMillis) : null;
+		} catch (Exception e) {
+			throw new IOException("Couldn't create the unlock session.", e);
+		}
+		socketPath = Paths.get(socketFilename);
+		if (Files.exists(socketPath)) {
+			SocketChannel other;
+			try {
+				other = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+			} catch (ConnectException e) {
+				other = null;
+			}
+			if (other != null) {
+				other.close();
+				throw new IOException("A daemon is already listening on " + socketFilename + ".");
+			}
+			Files.delete(socketPath);
+		}
+
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(socketPath));
+		try {
+			Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+		}
+
+		workers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "VaultDaemon worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		vaults = new ConcurrentHashMap<String, EncryptedMap>();
+		connections = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * @brief Accept connections until the daemon is closed
+	 *
+	 * Each connection is read by its own thread.
+	 *
+	 * @throws     IOException  If accepting failed for another reason than
+	 * the daemon being closed.
+	 */
+	public void serve() throws IOException {
+		while (true) {
+			final SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (ClosedChannelException e) {
+				return;
+			}
+			connections.add(channel);
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					new Connection(channel).serve();
+				}
+			}, "VaultDaemon connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * @brief Stop the daemon
+	 *
+	 * Closes the socket and all connections, forgets the unlocked vaults,
+	 * and deletes the socket file.
+	 *
+	 * @throws     IOException  If the socket file couldn't be deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+		for (SocketChannel channel : connections)
+			channel.close();
+		workers.shutdownNow();
+		for (String user : new ArrayList<String>(vaults.keySet()))
+			lock(user);
+		if (session != null)
+			session.close();
+		Files.deleteIfExists(socketPath);
+	}
+
+	/**
+	 * @brief Requests of one client connection
+	 */
+	private class Connection {
+		private final SocketChannel channel; ///< The connection
+		private final Semaphore inFlight = new Semaphore(maxPipelined); ///< Limits the requests running or waiting
+		private CompletableFuture<?> lastChange; ///< The last request changing a vault, or null. Only used by the reading thread.
+		private ArrayList<CompletableFuture<?>> sinceChange = new ArrayList<CompletableFuture<?>>(); ///< Requests read after ```lastChange```. Only used by the reading thread.
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * @brief Read and dispatch requests until the client disconnects
+		 *
+		 * A malformed frame closes the connection, since the next frame
+		 * can't be found after it.
+		 */
+		void serve() {
+			try {
+				Frame request;
+				while ((request = DaemonProtocol.read(channel)) != null) {
+					inFlight.acquire();
+					dispatch(request);
+				}
+			} catch (IOException | InterruptedException | RejectedExecutionException e) {
+				// client gone or daemon closed
+			} finally {
+				connections.remove(channel);
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+
+		/**
+		 * @brief Run a request on the workers, after the requests it must wait for
+		 *
+		 * @param      request  The request
+		 */
+		private void dispatch(final Frame request) {
+			final boolean change = request.code != DaemonProtocol.GET &&
+				request.code != DaemonProtocol.LIST && request.code != DaemonProtocol.METRICS;
+			List<CompletableFuture<?>> after;
+			if (change) {
+				after = sinceChange;
+				if (lastChange != null)
+					after.add(lastChange);
+			} else {
+				after = lastChange == null ? Collections.<CompletableFuture<?>>emptyList() :
+					Collections.<CompletableFuture<?>>singletonList(lastChange);
+			}
+
+			// Runs whether the earlier requests succeeded or not; they
+			// reported their errors in their responses.
+			CompletableFuture<?>[] earlier = after.toArray(new CompletableFuture<?>[after.size()]);
+			CompletableFuture<Void> result = CompletableFuture.allOf(earlier).handleAsync(
+				new BiFunction<Void, Throwable, Void>() {
+					public Void apply(Void ignored, Throwable earlierError) {
+						try {
+							respond(request.id, handle(request));
+						} finally {
+							inFlight.release();
+						}
+						return null;
+					}
+				}, workers);
+
+			if (change) {
+				lastChange = result;
+				sinceChange = new ArrayList<CompletableFuture<?>>();
+			} else {
+				sinceChange.add(result);
+				if (sinceChange.size() % pruneInterval == 0)
+					pruneFinished();
+			}
+		}
+
+		/**
+		 * @brief Forget the lookups that are done, so the list stays short
+		 */
+		private void pruneFinished() {
+			ArrayList<CompletableFuture<?>> running = new ArrayList<CompletableFuture<?>>(sinceChange.size());
+			for (CompletableFuture<?> request : sinceChange)
+				if (!request.isDone())
+					running.add(request);
+			sinceChange = running;
+		}
+
+		/**
+		 * @brief Send a response
+		 *
+		 * Responses are written one at a time, so frames never interleave.
+		 *
+		 * @param      id        The id of the request
+		 * @param      response  The status and fields of the response
+		 */
+		private void respond(int id, Frame response) {
+			ByteBuffer data = DaemonProtocol.encode(new Frame(id, response.code, response.fields));
+			synchronized (this) {
+				try {
+					DaemonProtocol.write(channel, data);
+				} catch (IOException e) {
+					// client gone; the reading thread closes the connection
+				}
+			}
+		}
+	}
+
+	/**
+	 * @brief Run a request
+	 *
+	 * @param      request  The request
+	 *
+	 * @return     The response. Its id is not used.
+	 */
+	private Frame handle(Frame request) {
+		List<String> fields = request.fields;
+		try {
+			switch (request.code) {
+			case DaemonProtocol.UNLOCK:
+				checkFields(fields, 2);
+				unlock(fields.get(0), fields.get(1));
+				return reply(DaemonProtocol.OK);
+			case DaemonProtocol.LOCK:
+				checkFields(fields, 1);
+				lock(fields.get(0));
+				return reply(DaemonProtocol.OK);
+			case DaemonProtocol.METRICS:
+				checkFields(fields, 0);
+				return reply(DaemonProtocol.OK, Metrics.report());
+			}
+
+			checkFields(fields, request.code == DaemonProtocol.LIST ? 1 :
+				request.code == DaemonProtocol.ADD ? 3 : 2);
+			EncryptedMap passwords = vaults.get(fields.get(0));
+			if (passwords == null)
+				return reply(DaemonProtocol.LOCKED);
+
+			switch (request.code) {
+			case DaemonProtocol.GET:
+				String password = passwords.getWebsitePassword(fields.get(1));
+				return password == null ? reply(DaemonProtocol.NOT_FOUND) :
+					reply(DaemonProtocol.OK, password);
+			case DaemonProtocol.LIST:
+				ArrayList<String> websites = new ArrayList<String>(passwords.getWebsites());
+				Collections.sort(websites, WebsiteIndex.order);
+				return new Frame(0, DaemonProtocol.OK, websites);
+			case DaemonProtocol.ADD:
+				Naming.checkWebsite(fields.get(1));
+				passwords.addEntry(fields.get(1), fields.get(2));
+				return reply(DaemonProtocol.OK);
+			case DaemonProtocol.REMOVE:
+				if (!passwords.getWebsites().contains(fields.get(1)))
+					return reply(DaemonProtocol.NOT_FOUND);
+				passwords.removeEntry(fields.get(1));
+				return reply(DaemonProtocol.OK);
+			default:
+				throw new Exception("Unknown operation " + request.code + ".");
+			}
+		} catch (BadPaddingException | Hmac.IntegrityException e) {
+			return reply(DaemonProtocol.ERROR, "Wrong password or corrupted files.");
+		} catch (Exception e) {
+			return reply(DaemonProtocol.ERROR, String.valueOf(e.getMessage()));
+		}
+	}
+
+	/**
+	 * @brief Unlock a vault and keep it in memory
+	 *
+	 * If the vault was already unlocked, it is unlocked again with the
+	 * given password, which must be right.
+	 *
+	 * @param      user       The username
+	 * @param      password   The master password
+	 *
+	 * @throws     Exception  If the vault couldn't be unlocked.
+	 */
+	private void unlock(String user, String password) throws Exception {
+		EncryptedMap passwords = new EncryptedMap(user, password,
+			EncryptedMap.defaultLoadThreads, true, session);
+		passwords.startWatching(null);
+		EncryptedMap previous = vaults.put(user, passwords);
+		if (previous != null)
+			previous.lock();
+	}
+
+	/**
+	 * @brief Forget an unlocked vault
+	 *
+	 * Its decrypted passwords are zeroed.
+	 *
+	 * @param      user  The username. Nothing happens if the vault isn't unlocked.
+	 */
+	private void lock(String user) {
+		EncryptedMap passwords = vaults.remove(user);
+		if (passwords == null)
+			return;
+		try {
+			passwords.lock();
+		} catch (IOException e) {
+			// the watcher thread ends anyway
+		}
+	}
+
+	/**
+	 * @brief Check the number of fields of a request
+	 *
+	 * @param      fields     The fields
+	 * @param      count      The number of fields of the operation
+	 *
+	 * @throws     Exception  If the number is wrong.
+	 */
+	private static void checkFields(List<String> fields, int count) throws Exception {
+		if (fields.size() != count)
+			throw new Exception("Expected " + count + " fields, got " + fields.size() + ".");
+	}
+
+	/**
+	 * @brief Build a response
+	 *
+	 * @param      status  The status
+	 * @param      fields  The fields
+	 *
+	 * @return     The response. Its id is not used.
+	 */
+	private static Frame reply(byte status, String... fields) {
+		return new Frame(0, status, Arrays.asList(fields));
+	}
+}
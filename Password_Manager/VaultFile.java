@@ -0,0 +1,201 @@
+package Password_Manager;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * @brief Class for reading and writing single-file vaults.
+ *
+ * A vault keeps all the password entries of a user in one encoded file,
+ * instead of one file per entry. It uses the same record format as
+ * EncodedFileWriter, laid out as follows:
+ *
+ * 1. A header record containing ```magic```.
+ * 2. A count record: the number of entries, encoded as a 4 byte integer.
+ * 3. Two records per entry: the encrypted website and the encrypted password.
+ */
+public class VaultFile {
+	private static final byte[] magic = "PMVAULT1".getBytes(StandardCharsets.US_ASCII); ///< Header identifying a vault file
+	private static final int headerRecords = 2; ///< Number of records before the first entry
+	private static final String tempSuffix = ".tmp"; ///< Suffix of the file written before replacing the vault
+
+	/**
+	 * @brief Check if a user has a vault
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     True if the user's vault file exists, false otherwise.
+	 */
+	public static boolean exists(String user) {
+		return new File(Naming.vaultFilename(user)).exists();
+	}
+
+	/**
+	 * @brief Read all entries of a vault
+	 *
+	 * @param      filename   The vault filename
+	 *
+	 * @return     The encrypted entries, in the order they are stored.
+	 *
+	 * @throws     IOException  If an error occurred reading from the file.
+	 * @throws     Exception    If the file is not a valid vault.
+	 */
+	public static ArrayList<EncryptedEntry> read(String filename)
+	throws IOException, Exception {
+		MappedEncodedFileReader fileReader = new MappedEncodedFileReader(filename);
+		ArrayList<ByteArray> records = fileReader.readData();
+		fileReader.close();
+
+		if (records.size() < headerRecords ||
+			!Arrays.equals(records.get(0).getRawBytes(), magic))
+			throw new Exception("Vault file " + filename + " is corrupted.");
+
+		int count = EncodedFileReader.decodeInt(records.get(1).getRawBytes());
+		if (records.size() != headerRecords + 2*count)
+			throw new Exception("Vault file " + filename + " is incomplete.");
+
+		ArrayList<EncryptedEntry> entries = new ArrayList<EncryptedEntry>(count);
+		for (int i = headerRecords; i < records.size(); i += 2)
+			entries.add(new EncryptedEntry(records.get(i), records.get(i+1)));
+		return entries;
+	}
+
+	/**
+	 * @brief Write entries to a vault
+	 *
+	 * Writes ```entries``` to a temporary file and then moves it over
+	 * ```filename```, so a failed write never leaves a half written vault.
+	 *
+	 * @param      filename     The vault filename
+	 * @param      entries      The encrypted entries
+	 *
+	 * @throws     IOException  If an error occurred writing the file.
+	 */
+	public static void write(String filename, Collection<EncryptedEntry> entries)
+	throws IOException {
+		writeTemporary(filename, entries);
+		replaceWithTemporary(filename);
+	}
+
+	/**
+	 * @brief Write entries to the temporary file of a vault
+	 *
+	 * First half of write. The vault itself is not touched until
+	 * replaceWithTemporary is called.
+	 *
+	 * @param      filename     The vault filename
+	 * @param      entries      The encrypted entries
+	 *
+	 * @throws     IOException  If an error occurred writing the file.
+	 */
+	public static void writeTemporary(String filename, Collection<EncryptedEntry> entries)
+	throws IOException {
+		ArrayList<ByteArray> records = new ArrayList<ByteArray>(headerRecords + 2*entries.size());
+		records.add(new ByteArray(magic));
+		records.add(new ByteArray(EncodedFileWriter.encodeInt(entries.size())));
+		for (EncryptedEntry entry : entries) {
+			records.add(entry.getWebsite());
+			records.add(entry.getPassword());
+		}
+
+		EncodedFileWriter fileWriter = new EncodedFileWriter(filename + tempSuffix);
+		fileWriter.writeData(records);
+		fileWriter.close(false);
+	}
+
+	/**
+	 * @brief Replace a vault with its temporary file
+	 *
+	 * Second half of write. The move is atomic, so the vault is always
+	 * either the old or the new one. The directory is synced afterwards,
+	 * so the new vault is durable when this returns.
+	 *
+	 * @param      filename     The vault filename
+	 *
+	 * @throws     IOException  If the temporary file couldn't be moved.
+	 */
+	public static void replaceWithTemporary(String filename) throws IOException {
+		Files.move(Paths.get(filename + tempSuffix), Paths.get(filename),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		EncodedFileWriter.syncDirectory(filename);
+	}
+
+	/**
+	 * @brief Delete the temporary file of a vault, if there is one
+	 *
+	 * @param      filename     The vault filename
+	 *
+	 * @throws     IOException  If the temporary file couldn't be deleted.
+	 */
+	public static void deleteTemporary(String filename) throws IOException {
+		Files.deleteIfExists(Paths.get(filename + tempSuffix));
+	}
+
+	/**
+	 * @brief Move a user's entry files into a vault
+	 *
+	 * One-shot migration from the one-file-per-entry layout. The entries are
+	 * copied to the vault as they are, without being decrypted. The entry
+	 * files are deleted only after the vault has been written, and the
+	 * deletions are synced, since the names of the files contain the
+	 * websites in plaintext.
+	 *
+	 * @param      user       The username
+	 *
+	 * @throws     Exception  If an entry file couldn't be read or deleted, or
+	 * the vault couldn't be written.
+	 */
+	public static void migrate(String user) throws Exception {
+		ArrayList<String> filenames = EncodedFileReader.getFilenames(user);
+		ArrayList<EncryptedEntry> entries = new ArrayList<EncryptedEntry>(filenames.size());
+
+		for (String filename : filenames) {
+			EncodedFileReader fileReader = new EncodedFileReader(filename);
+			ArrayList<ByteArray> data = fileReader.readData();
+			fileReader.close();
+
+			if (data.size() != 2)
+				throw new Exception("Password file " + filename + " is corrupted.");
+			entries.add(new EncryptedEntry(data.get(0), data.get(1)));
+		}
+
+		write(Naming.vaultFilename(user), entries);
+
+		for (String filename : filenames)
+			EncodedFileWriter.deleteFile(filename);
+		if (!filenames.isEmpty())
+			EncodedFileWriter.syncDirectory(filenames.get(0));
+	}
+
+	/**
+	 * @brief Delete entry files left over from an interrupted migration
+	 *
+	 * If the program stopped after migrate wrote the vault but before it
+	 * deleted the entry files, the files would stay next to the vault
+	 * with the websites in their names. Only the first name in the
+	 * directory is read to find out, so logins don't scan it.
+	 *
+	 * @param      user       The username
+	 *
+	 * @throws     Exception  If the directory couldn't be read or a file
+	 * couldn't be deleted.
+	 */
+	public static void deleteMigratedFiles(String user) throws Exception {
+		Path directory = Paths.get(Naming.directoryName(user));
+		if (!Files.isDirectory(directory))
+			return;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			if (!files.iterator().hasNext())
+				return;
+		} catch (IOException e) {
+			throw new Exception("Couldn't read password directory " + directory + ".", e);
+		}
+
+		ArrayList<String> filenames = EncodedFileReader.getFilenames(user);
+		for (String filename : filenames)
+			EncodedFileWriter.deleteFile(filename);
+		EncodedFileWriter.syncDirectory(filenames.get(0));
+	}
+}
@@ -0,0 +1,228 @@
+package Password_Manager;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * @brief Class for appending changes to a vault journal.
+ *
+ * The journal holds the changes made to a vault since it was last
+ * compacted, so a change costs one append instead of rewriting the whole
+ * vault. It uses the same record format as EncodedFileWriter, with two
+ * records per change:
+ *
+ * 1. The encrypted website.
+ * 2. The encrypted password, or an empty record if the entry was removed.
+ *
+ * Changes are replayed in order on top of the vault. Each change sets or
+ * removes a whole entry, so replaying a change that is already in the
+ * vault does nothing.
+ *
+ * Programs append, compact and replace the journal only while holding
+ * the VaultLock of the user.
+ *
+ * append doesn't force the changes to the storage device. Writers register
+ * their append with the GroupCommit of the journal and sync it once they
+ * no longer hold locks, so concurrent changes share one fsync.
+ */
+public class VaultJournal {
+	private static final String tempSuffix = ".tmp"; ///< Suffix of the file written before replacing the journal
+
+	/**
+	 * @brief Append changes to a journal
+	 *
+	 * All the changes are written with a single call to
+	 * EncodedFileWriter::writeData. If the journal didn't exist, the
+	 * directory is synced so the new file survives a crash; the appended
+	 * data itself is made durable with GroupCommit.
+	 *
+	 * @param      filename     The journal filename
+	 * @param      changes      The changes, oldest first
+	 *
+	 * @return     The number of bytes appended
+	 *
+	 * @throws     IOException  If an error occurred writing the journal.
+	 */
+	public static long append(String filename, Collection<EncryptedEntry> changes)
+	throws IOException {
+		ArrayList<ByteArray> records = new ArrayList<ByteArray>(2*changes.size());
+		long size = 0;
+		for (EncryptedEntry change : changes) {
+			records.add(change.getWebsite());
+			records.add(change.getPassword());
+			size += change.encodedSize();
+		}
+
+		boolean created = !new File(filename).exists();
+		EncodedFileWriter fileWriter = new EncodedFileWriter(filename, true);
+		try {
+			fileWriter.writeData(records);
+		} finally {
+			fileWriter.close();
+		}
+		if (created)
+			EncodedFileWriter.syncDirectory(filename);
+		return size;
+	}
+
+	/**
+	 * @brief Create the change recording the removal of an entry
+	 *
+	 * @param      website  The encrypted website of the removed entry
+	 *
+	 * @return     The change to append
+	 */
+	public static EncryptedEntry removal(ByteArray website) {
+		return new EncryptedEntry(website, new ByteArray(new byte[0]));
+	}
+
+	/**
+	 * @brief Check if a change removes its entry
+	 *
+	 * @param      change  A change read from the journal
+	 *
+	 * @return     True if the entry was removed, false if it was added or replaced.
+	 */
+	public static boolean isRemoval(EncryptedEntry change) {
+		return change.getPassword().length() == 0;
+	}
+
+	/**
+	 * @brief Read all complete changes of a journal
+	 *
+	 * If the last change was only partly written, for example because the
+	 * program stopped during an append, it is cut off the file so that
+	 * later appends follow the last complete change.
+	 *
+	 * @param      filename     The journal filename
+	 *
+	 * @return     The changes, oldest first. Empty if there is no journal.
+	 *
+	 * @throws     IOException  If an error occurred reading or truncating the journal.
+	 */
+	public static ArrayList<EncryptedEntry> recover(String filename) throws IOException {
+		ArrayList<EncryptedEntry> changes = new ArrayList<EncryptedEntry>();
+		long complete = read(filename, 0, changes);
+		if (complete < new File(filename).length())
+			truncate(filename, complete);
+		return changes;
+	}
+
+	/**
+	 * @brief Cut a partly written change off the end of a journal
+	 *
+	 * Must only be called while no program is appending, that is holding
+	 * ```VaultLock::journal```.
+	 *
+	 * @param      filename     The journal filename
+	 * @param      length       The position after the last complete change
+	 *
+	 * @throws     IOException  If an error occurred truncating the journal.
+	 */
+	public static void truncate(String filename, long length) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(filename, "rw");
+		try {
+			file.setLength(length);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @brief Read the complete changes after a position in a journal
+	 *
+	 * Unlike recover, a partly written last change is left in the file,
+	 * since another program may still be appending it.
+	 *
+	 * @param      filename     The journal filename
+	 * @param      offset       The position of the first change to read
+	 * @param      changes      The list the changes are added to, oldest first
+	 *
+	 * @return     The position after the last complete change. If there is no
+	 * journal, or it is shorter than ```offset```, returns 0 and reads nothing.
+	 *
+	 * @throws     IOException  If an error occurred reading the journal.
+	 */
+	public static long read(String filename, long offset, ArrayList<EncryptedEntry> changes)
+	throws IOException {
+		byte[] contents;
+		try {
+			contents = Files.readAllBytes(Paths.get(filename));
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+		if (offset > contents.length)
+			return 0;
+
+		ByteBuffer data = ByteBuffer.wrap(contents).order(ByteOrder.LITTLE_ENDIAN);
+		data.position((int)offset);
+		long complete = offset;
+		while (true) {
+			byte[] website = readRecord(data);
+			byte[] password = website == null ? null : readRecord(data);
+			if (password == null)
+				break;
+			changes.add(new EncryptedEntry(new ByteArray(website), new ByteArray(password)));
+			complete = data.position();
+		}
+		return complete;
+	}
+
+	/**
+	 * @brief Drop the start of a journal
+	 *
+	 * Keeps only the changes after the first ```length``` bytes, once those
+	 * have been compacted into the vault. The remaining changes are written
+	 * to a temporary file that is forced to the storage device and then
+	 * moved over the journal.
+	 *
+	 * @param      filename     The journal filename
+	 * @param      length       The number of bytes to drop
+	 *
+	 * @throws     IOException  If an error occurred rewriting the journal.
+	 */
+	public static void dropPrefix(String filename, long length) throws IOException {
+		Path path = Paths.get(filename);
+		if (!Files.exists(path))
+			return;
+
+		byte[] data = Files.readAllBytes(path);
+		if (length >= data.length) {
+			Files.delete(path);
+			return;
+		}
+
+		Path tempPath = Paths.get(filename + tempSuffix);
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer remaining = ByteBuffer.wrap(data, (int)length, data.length - (int)length);
+			while (remaining.hasRemaining())
+				channel.write(remaining);
+			channel.force(true);
+		}
+		Files.move(tempPath, path,
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		EncodedFileWriter.syncDirectory(filename);
+	}
+
+	/**
+	 * @brief Read one length prefixed record
+	 *
+	 * @param      data  The journal contents, positioned at a record
+	 *
+	 * @return     The record, or null if it is incomplete.
+	 */
+	private static byte[] readRecord(ByteBuffer data) {
+		if (data.remaining() < 4)
+			return null;
+		int length = data.getInt();
+		if (length < 0 || length > data.remaining())
+			return null;
+		byte[] record = new byte[length];
+		data.get(record);
+		return record;
+	}
+}
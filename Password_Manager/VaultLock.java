@@ -0,0 +1,175 @@
+package Password_Manager;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @brief Lock on the files of a vault, shared with other programs
+ *
+ * Several programs may have the same vault open, for example the GUI and
+ * the daemon. Each of them keeps the size of the journal it has read, and
+ * appends, compacts and replaces files based on it, so they must not
+ * change the files at the same time.
+ *
+ * The lock is an exclusive FileLock on one byte of the user's lock file.
+ * ```journal``` is held while appending to the journal, and while
+ * replacing the vault or the journal. ```files``` is held for a whole
+ * compaction, key rotation or password change, including the slow writing
+ * of the new files, so only one program writes them at a time while the
+ * others can still append.
+ *
+ * A JVM can't lock the same region of a file twice, so the locks are
+ * shared by all the threads of the program through one object per file,
+ * and are reentrant. Only one channel is opened on the file: on some
+ * systems closing any channel of a file releases all its locks.
+ *
+ * Always take ```files``` before ```journal```, and ```journal``` after
+ * the write lock of an EncryptedMap.
+ *
+ * File locks belong to the whole program, not to a thread. If two
+ * programs each waited in the system for one region while another of
+ * their threads held the other, the system would report a deadlock that
+ * isn't one. So only ```journal``` is waited for in the system;
+ * ```files``` is polled every ```pollMillis```.
+ */
+public class VaultLock {
+	public static final int files = 0; ///< Region held while writing new vault or key files
+	public static final int journal = 1; ///< Region held while appending to or replacing the journal or the vault
+	private static final long pollMillis = 10; ///< Time between two tries to take ```files```
+	private static final ConcurrentHashMap<Path, VaultLock> locks = new ConcurrentHashMap<Path, VaultLock>(); ///< The lock of each lock file
+	private final Path path; ///< The lock file
+	private final ReentrantLock[] owners = {new ReentrantLock(), new ReentrantLock()}; ///< Thread holding each region in this program
+	private final FileLock[] fileLocks = new FileLock[2]; ///< Lock of each region held by this program. Guarded by ```owners```.
+	private FileChannel channel; ///< Channel of the lock file, or null. Guarded by ```this```.
+	private int users; ///< Number of regions held or being taken. Guarded by ```this```.
+
+	/**
+	 * Constructs the lock of a file.
+	 *
+	 * @param      path  The lock file
+	 */
+	private VaultLock(Path path) {
+		this.path = path;
+	}
+
+	/**
+	 * @brief Get the lock of a user's vault
+	 *
+	 * @param      user  The username
+	 *
+	 * @return     The lock shared by every EncryptedMap of the user
+	 */
+	public static VaultLock of(String user) {
+		Path path = Paths.get(Naming.lockFilename(user)).toAbsolutePath().normalize();
+		VaultLock lock = locks.get(path);
+		if (lock != null)
+			return lock;
+		VaultLock created = new VaultLock(path);
+		lock = locks.putIfAbsent(path, created);
+		return lock == null ? created : lock;
+	}
+
+	/**
+	 * @brief Take a region, waiting for other threads and programs
+	 *
+	 * @param      region       ```files``` or ```journal```
+	 *
+	 * @throws     IOException  If the lock file couldn't be opened or locked.
+	 */
+	public void lock(int region) throws IOException {
+		ReentrantLock owner = owners[region];
+		owner.lock();
+		if (owner.getHoldCount() > 1)
+			return;
+		try {
+			FileChannel opened = open();
+			try {
+				fileLocks[region] = region == files ? poll(opened) : opened.lock(region, 1, false);
+			} catch (IOException | RuntimeException e) {
+				close();
+				throw e;
+			}
+		} catch (IOException | RuntimeException e) {
+			owner.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * @brief Take ```files``` without waiting for it in the system
+	 *
+	 * @param      opened       The channel of the lock file
+	 *
+	 * @return     The lock
+	 *
+	 * @throws     IOException  If the file couldn't be locked, or the thread
+	 * was interrupted.
+	 */
+	private static FileLock poll(FileChannel opened) throws IOException {
+		while (true) {
+			FileLock fileLock = opened.tryLock(files, 1, false);
+			if (fileLock != null)
+				return fileLock;
+			try {
+				Thread.sleep(pollMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the lock of the vault files.");
+			}
+		}
+	}
+
+	/**
+	 * @brief Release a region taken by the calling thread
+	 *
+	 * @param      region       ```files``` or ```journal```
+	 *
+	 * @throws     IOException  If the lock file couldn't be closed.
+	 */
+	public void unlock(int region) throws IOException {
+		ReentrantLock owner = owners[region];
+		try {
+			if (owner.getHoldCount() == 1) {
+				FileLock fileLock = fileLocks[region];
+				fileLocks[region] = null;
+				try {
+					fileLock.release();
+				} finally {
+					close();
+				}
+			}
+		} finally {
+			owner.unlock();
+		}
+	}
+
+	/**
+	 * @brief Open the lock file, or share the channel already open
+	 *
+	 * @return     The channel
+	 *
+	 * @throws     IOException  If the file couldn't be opened.
+	 */
+	private synchronized FileChannel open() throws IOException {
+		if (users == 0)
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		++users;
+		return channel;
+	}
+
+	/**
+	 * @brief Close the lock file once no region is held
+	 *
+	 * @throws     IOException  If the file couldn't be closed.
+	 */
+	private synchronized void close() throws IOException {
+		if (--users > 0)
+			return;
+		FileChannel closed = channel;
+		channel = null;
+		closed.close();
+	}
+}
@@ -0,0 +1,348 @@
+package Password_Manager;
+
+import java.util.*;
+
+/**
+ * @brief Index for searching website names by substring
+ *
+ * Keeps the website names sorted, and for every character and every
+ * pair of adjacent characters, the list of names containing it. A search
+ * only looks at the names that are in the lists of all the characters or
+ * pairs of the query, and returns the matches in sorted order without
+ * sorting them. The matches are returned as a list of ids that only
+ * looks up the names when they are read, so showing the first rows of a
+ * large result doesn't cost more than a small one.
+ *
+ * Searches ignore case. Names are added and removed one at a time. Each
+ * change costs one pass over the sorted positions, while searches don't
+ * depend on how often the index changes.
+ *
+ * The class is not thread safe.
+ */
+public class WebsiteIndex {
+	private static final String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789_.-"; ///< Characters allowed in website names, see Naming::checkWebsite
+	private static final int otherCode = alphabet.length(); ///< Code of any character not in ```alphabet```
+	private static final int codes = alphabet.length() + 1; ///< Number of character codes
+	private static final int minRebuildSize = 1024; ///< Removed names kept at least up to this number before rebuilding
+	private static final int[] asciiCodes = new int[128]; ///< Code of each ASCII character
+
+	static {
+		Arrays.fill(asciiCodes, otherCode);
+		for (int i = 0; i < alphabet.length(); ++i)
+			asciiCodes[alphabet.charAt(i)] = i;
+	}
+
+	public static final Comparator<String> order = new Comparator<String>() {
+		public int compare(String a, String b) {
+			return compareNames(a.toLowerCase(Locale.ROOT), a, b.toLowerCase(Locale.ROOT), b);
+		}
+	}; ///< Order of the names returned by search
+
+	private ArrayList<String> names; ///< Names by id, including removed ones
+	private ArrayList<String> lowerNames; ///< Lower case names by id. Removed names are null.
+	private HashMap<String, Integer> ids; ///< Id of each name
+	private int[][] postings; ///< Ids of the names containing each character or pair, in increasing order
+	private int[] postingSizes; ///< Number of ids in each posting list
+	private int[] sorted; ///< Ids of the names in sorted order
+	private int[] rank; ///< Position of each id in ```sorted```, or -1 if the name was removed
+	private int removed; ///< Number of removed ids still in the posting lists
+
+	/**
+	 * Constructs an index of ```websites```.
+	 *
+	 * @param      websites  The website names
+	 */
+	public WebsiteIndex(Collection<String> websites) {
+		build(websites);
+	}
+
+	/**
+	 * @return     The number of names in the index
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * @brief Add a name
+	 *
+	 * Does nothing if the name is already in the index.
+	 *
+	 * @param      website  The name
+	 */
+	public void add(String website) {
+		if (ids.containsKey(website))
+			return;
+
+		int id = names.size();
+		names.add(website);
+		String lower = website.toLowerCase(Locale.ROOT);
+		lowerNames.add(lower);
+		ids.put(website, id);
+		addPostings(id, lower);
+
+		if (rank.length == id)
+			rank = Arrays.copyOf(rank, Math.max(16, 2*id));
+		int count = ids.size() - 1;
+		if (sorted.length == count)
+			sorted = Arrays.copyOf(sorted, Math.max(16, 2*count));
+		int position = insertionPoint(lower, website, count);
+		System.arraycopy(sorted, position, sorted, position + 1, count - position);
+		sorted[position] = id;
+		updateRanks(position, count + 1);
+	}
+
+	/**
+	 * @brief Remove a name
+	 *
+	 * Does nothing if the name is not in the index.
+	 *
+	 * @param      website  The name
+	 */
+	public void remove(String website) {
+		Integer id = ids.remove(website);
+		if (id == null)
+			return;
+
+		int count = ids.size();
+		int position = rank[id];
+		System.arraycopy(sorted, position + 1, sorted, position, count - position);
+		updateRanks(position, count);
+		rank[id] = -1;
+		lowerNames.set(id, null);
+
+		if (++removed > Math.max(minRebuildSize, count))
+			build(new ArrayList<String>(ids.keySet()));
+	}
+
+	/**
+	 * @brief Find the names containing a string
+	 *
+	 * @param      query  The string to look for, in any case
+	 *
+	 * @return     The names containing ```query```, sorted. All the names
+	 * if ```query``` is empty. The list can't be modified, and is only
+	 * valid until the index is changed.
+	 */
+	public List<String> search(String query) {
+		int count = ids.size();
+		if (query.isEmpty())
+			return new Matches(names, Arrays.copyOf(sorted, count));
+
+		String lower = query.toLowerCase(Locale.ROOT);
+		boolean exact = lower.length() <= 2;
+		int[] grams = new int[Math.max(1, lower.length() - 1)];
+		for (int i = 0; i < grams.length; ++i) {
+			int code = codeOf(lower.charAt(i));
+			exact &= code != otherCode;
+			grams[i] = lower.length() == 1 ? code : codes + code*codes + codeOf(lower.charAt(i + 1));
+		}
+		if (lower.length() == 2)
+			exact &= codeOf(lower.charAt(1)) != otherCode;
+
+		int[] candidates = postings[grams[0]];
+		int candidateCount = postingSizes[grams[0]];
+		for (int i = 1; i < grams.length && candidateCount > 0; ++i) {
+			if (candidates == postings[grams[0]])
+				candidates = Arrays.copyOf(candidates, candidateCount);
+			candidateCount = intersect(candidates, candidateCount, postings[grams[i]], postingSizes[grams[i]]);
+		}
+
+		BitSet found = new BitSet(count);
+		for (int i = 0; i < candidateCount; ++i) {
+			int id = candidates[i];
+			if (rank[id] != -1 && (exact || lowerNames.get(id).contains(lower)))
+				found.set(rank[id]);
+		}
+
+		int[] matches = new int[found.cardinality()];
+		int match = 0;
+		for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1))
+			matches[match++] = sorted[i];
+		return new Matches(names, matches);
+	}
+
+	/**
+	 * @brief Intersect two posting lists
+	 *
+	 * @param      a      The first list. It is overwritten with the result.
+	 * @param      aSize  The number of ids in ```a```
+	 * @param      b      The second list
+	 * @param      bSize  The number of ids in ```b```
+	 *
+	 * @return     The number of ids in both lists
+	 */
+	private static int intersect(int[] a, int aSize, int[] b, int bSize) {
+		int size = 0;
+		for (int i = 0, j = 0; i < aSize && j < bSize; ) {
+			if (a[i] < b[j]) {
+				++i;
+			} else if (a[i] > b[j]) {
+				++j;
+			} else {
+				a[size++] = a[i];
+				++i;
+				++j;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @brief Names found by a search
+	 *
+	 * A read-only list of names given by their ids.
+	 */
+	private static class Matches extends AbstractList<String> implements RandomAccess {
+		private final ArrayList<String> names; ///< Names by id
+		private final int[] ids; ///< Ids of the names in the list
+
+		Matches(ArrayList<String> names, int[] ids) {
+			this.names = names;
+			this.ids = ids;
+		}
+
+		@Override
+		public String get(int index) {
+			return names.get(ids[index]);
+		}
+
+		@Override
+		public int size() {
+			return ids.length;
+		}
+	}
+
+	/**
+	 * @brief Rebuild the index from scratch
+	 *
+	 * Drops the ids of removed names from the posting lists.
+	 *
+	 * @param      websites  The names
+	 */
+	private void build(Collection<String> websites) {
+		names = new ArrayList<String>(websites.size());
+		lowerNames = new ArrayList<String>(websites.size());
+		ids = new HashMap<String, Integer>(2*websites.size());
+		postings = new int[codes + codes*codes][];
+		postingSizes = new int[postings.length];
+		removed = 0;
+
+		for (String website : websites) {
+			if (ids.containsKey(website))
+				continue;
+			int id = names.size();
+			names.add(website);
+			String lower = website.toLowerCase(Locale.ROOT);
+			lowerNames.add(lower);
+			ids.put(website, id);
+			addPostings(id, lower);
+		}
+
+		Integer[] order = new Integer[names.size()];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareNames(lowerNames.get(a), names.get(a), lowerNames.get(b), names.get(b));
+			}
+		});
+
+		sorted = new int[Math.max(16, order.length)];
+		rank = new int[Math.max(16, order.length)];
+		for (int i = 0; i < order.length; ++i)
+			sorted[i] = order[i];
+		updateRanks(0, order.length);
+	}
+
+	/**
+	 * @brief Add an id to the posting lists of the characters and pairs of its name
+	 *
+	 * Each list gets the id at most once.
+	 *
+	 * @param      id     The id
+	 * @param      lower  The lower case name
+	 */
+	private void addPostings(int id, String lower) {
+		for (int i = 0; i < lower.length(); ++i) {
+			int code = codeOf(lower.charAt(i));
+			addPosting(code, id);
+			if (i + 1 < lower.length())
+				addPosting(codes + code*codes + codeOf(lower.charAt(i + 1)), id);
+		}
+	}
+
+	/**
+	 * @brief Add an id to a posting list, unless it is already the last one
+	 *
+	 * @param      gram  The character or pair
+	 * @param      id    The id
+	 */
+	private void addPosting(int gram, int id) {
+		int size = postingSizes[gram];
+		int[] list = postings[gram];
+		if (size > 0 && list[size - 1] == id)
+			return;
+		if (list == null || list.length == size)
+			postings[gram] = list = list == null ? new int[4] : Arrays.copyOf(list, 2*size);
+		list[size] = id;
+		postingSizes[gram] = size + 1;
+	}
+
+	/**
+	 * @brief Update ```rank``` for part of ```sorted```
+	 *
+	 * @param      from  The first position
+	 * @param      to    The position after the last one
+	 */
+	private void updateRanks(int from, int to) {
+		for (int i = from; i < to; ++i)
+			rank[sorted[i]] = i;
+	}
+
+	/**
+	 * @brief Position of a new name in ```sorted```
+	 *
+	 * @param      lower    The lower case name
+	 * @param      website  The name
+	 * @param      count    The number of names in ```sorted```
+	 *
+	 * @return     The first position whose name is not before ```website```
+	 */
+	private int insertionPoint(String lower, String website, int count) {
+		int low = 0, high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			int id = sorted[middle];
+			if (compareNames(lowerNames.get(id), names.get(id), lower, website) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @brief Order of the names, ignoring case first
+	 *
+	 * @param      aLower  A lower case name
+	 * @param      a       The same name
+	 * @param      bLower  Another lower case name
+	 * @param      b       The same name
+	 *
+	 * @return     Negative, zero or positive as for Comparator::compare
+	 */
+	private static int compareNames(String aLower, String a, String bLower, String b) {
+		int order = aLower.compareTo(bLower);
+		return order != 0 ? order : a.compareTo(b);
+	}
+
+	/**
+	 * @param      c     A lower case character
+	 *
+	 * @return     The code of the character
+	 */
+	private static int codeOf(char c) {
+		return c < asciiCodes.length ? asciiCodes[c] : otherCode;
+	}
+}
@@ -0,0 +1,67 @@
+package Password_Manager.Benchmarks;
+
+import Password_Manager.*;
+import Password_Manager.Encryption.*;
+import java.util.*;
+
+/**
+ * @brief Creates and deletes vaults for benchmarks
+ *
+ * Adding entries one by one through EncryptedMap rewrites the vault for
+ * every entry, which is far too slow for large vaults. This class instead
+ * registers a user with keys it generated itself, encrypts the entries with
+ * those keys, and writes them to the vault in one go.
+ */
+class BenchmarkVault {
+	static final String password = "benchmark-password"; ///< Master password of every benchmark user
+
+	/**
+	 * @brief Create a user with a vault of ```entries``` entries
+	 *
+	 * The files are created in the working directory.
+	 *
+	 * @param      user       The username
+	 * @param      entries    The number of entries
+	 *
+	 * @throws     Exception  If the files couldn't be created.
+	 */
+	static void create(String user, int entries) throws Exception {
+		byte[] masterKey = CipherBuilder.generateKey(CipherBuilder.encryptionKeyType);
+		byte[] macKey = CipherBuilder.generateKey(Hmac.keyType);
+		new Registration(user, password, masterKey.clone(), macKey.clone());
+
+		StringCipher cipher = CipherBuilder.build(masterKey, macKey);
+		ArrayList<EncryptedEntry> encrypted = new ArrayList<EncryptedEntry>(entries);
+		for (int i = 0; i < entries; ++i) {
+			ByteArray website = new ByteArray(cipher.tryEncrypt("website" + i + ".com"));
+			ByteArray sitePassword = new ByteArray(cipher.tryEncrypt("password-" + i));
+			encrypted.add(new EncryptedEntry(website, sitePassword));
+		}
+		VaultFile.write(Naming.vaultFilename(user), encrypted);
+	}
+
+	/**
+	 * @brief Delete all files of a user created by create()
+	 *
+	 * @param      user       The username
+	 *
+	 * @throws     Exception  If a file couldn't be deleted.
+	 */
+	static void delete(String user) throws Exception {
+		EncodedFileWriter.deleteFile(Naming.vaultFilename(user));
+		EncodedFileWriter.deleteFile(Naming.masterSaltFilename(user));
+		EncodedFileWriter.deleteFile(Naming.macSaltFilename(user));
+		EncodedFileWriter.deleteFile(Naming.keyFileName(user));
+	}
+
+	/**
+	 * @brief Random bytes to use as benchmark payloads
+	 *
+	 * @param      size  The number of bytes
+	 *
+	 * @return     The bytes
+	 */
+	static byte[] payload(int size) {
+		return CipherBuilder.randomData(size);
+	}
+}
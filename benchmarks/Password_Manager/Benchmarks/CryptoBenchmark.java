@@ -0,0 +1,81 @@
+package Password_Manager.Benchmarks;
+
+import Password_Manager.Encryption.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @brief Benchmarks of the encryption layer
+ *
+ * Measures the per-entry crypto operations done at login and when adding
+ * an entry, and the two ways of building a cipher.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+	@Param({"16", "256"})
+	public int payloadSize; ///< Size of the encrypted and macced data in bytes
+
+	@Param({"CBC_HMAC", "GCM"})
+	public String format; ///< RecordFormat of the entry cipher
+
+	private byte[] masterKey; ///< Entry encryption key
+	private byte[] macKey; ///< Entry mac key
+	private byte[] salt; ///< Salt for the password-derived key
+	private byte[] plaintext; ///< Data that gets encrypted and macced
+	private byte[] encrypted; ///< ```plaintext``` encrypted by ```cipher```
+	private byte[] macced; ///< ```plaintext``` macced by ```hmac```
+	private StringCipher cipher; ///< Cipher with an Hmac, like the one used for entries
+	private Hmac hmac; ///< Hmac using ```macKey```
+
+	@Setup
+	public void setup() throws Exception {
+		masterKey = CipherBuilder.generateKey(CipherBuilder.encryptionKeyType);
+		macKey = CipherBuilder.generateKey(Hmac.keyType);
+		salt = BenchmarkVault.payload(32);
+		plaintext = BenchmarkVault.payload(payloadSize);
+		cipher = CipherBuilder.build(masterKey, macKey, RecordFormat.valueOf(format));
+		hmac = new Hmac(macKey);
+		encrypted = cipher.tryEncrypt(plaintext);
+		macced = hmac.mac(plaintext);
+	}
+
+	@Benchmark
+	public byte[] encrypt() throws Exception {
+		return cipher.tryEncrypt(plaintext);
+	}
+
+	@Benchmark
+	public byte[] decrypt() throws Exception {
+		return cipher.tryDecrypt(encrypted);
+	}
+
+	@Benchmark
+	public byte[] mac() throws Exception {
+		return hmac.mac(plaintext);
+	}
+
+	@Benchmark
+	public byte[] unmac() throws Exception {
+		return hmac.unmac(macced);
+	}
+
+	@Benchmark
+	public StringCipher buildFromKeys() throws Exception {
+		return CipherBuilder.build(masterKey, macKey, RecordFormat.valueOf(format));
+	}
+
+	/**
+	 * Uses the fixed legacy settings, since calibrated ones take the time
+	 * they were calibrated for by design.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public StringCipher buildFromPassword() throws Exception {
+		return CipherBuilder.build(BenchmarkVault.password, salt, KdfParameters.legacy);
+	}
+}
@@ -0,0 +1,65 @@
+package Password_Manager.Benchmarks;
+
+import Password_Manager.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @brief Benchmarks of durable changes to a vault
+ *
+ * Measures EncryptedMap::addEntry, which returns once the journal has been
+ * forced to the storage device, from one thread and from eight threads at
+ * once. Concurrent writers share the fsync of the journal, so the eight
+ * thread version should do several times more changes per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DurableWriteBenchmark {
+	private String user; ///< The benchmark user
+	private EncryptedMap map; ///< The unlocked vault
+
+	/**
+	 * @brief Number of the next entry added by a thread
+	 */
+	@State(Scope.Thread)
+	public static class Writer {
+		private static int threads; ///< Number of writers created so far
+		private String prefix; ///< Prefix of the websites added by this thread
+		private int next; ///< Number of the next website
+
+		@Setup
+		public void setup() {
+			synchronized (Writer.class) {
+				prefix = "writer" + threads++ + ".";
+			}
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		user = "benchmark" + System.nanoTime();
+		BenchmarkVault.create(user, 1000);
+		map = new EncryptedMap(user, BenchmarkVault.password);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		map.deleteAccount();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void addEntry(Writer writer) throws Exception {
+		map.addEntry(writer.prefix + writer.next++, "password");
+	}
+
+	@Benchmark
+	@Threads(8)
+	public void addEntryConcurrently(Writer writer) throws Exception {
+		map.addEntry(writer.prefix + writer.next++, "password");
+	}
+}
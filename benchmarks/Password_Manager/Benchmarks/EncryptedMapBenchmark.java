@@ -0,0 +1,74 @@
+package Password_Manager.Benchmarks;
+
+import Password_Manager.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @brief Benchmarks of unlocking a vault and rotating its keys
+ *
+ * Measures the construction of an EncryptedMap, which covers reading the
+ * key and salt files, deriving the key-encryption keys, and reading and
+ * decrypting the vault, and EncryptedMap::rotateKeys, which encrypts every
+ * entry again and writes a new vault.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncryptedMapBenchmark {
+	@Param({"10", "1000", "100000"})
+	public int entries; ///< Number of entries in the vault
+
+	private String user; ///< The benchmark user
+
+	/**
+	 * @brief An unlocked vault whose keys get rotated
+	 */
+	@State(Scope.Benchmark)
+	public static class Rotation {
+		@Param({"1", "4"})
+		public int threads; ///< Threads encrypting the entries again
+
+		private EncryptedMap map; ///< The unlocked vault
+
+		@Setup
+		public void setup(EncryptedMapBenchmark benchmark) throws Exception {
+			map = new EncryptedMap(benchmark.user, BenchmarkVault.password, threads);
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		user = "benchmark" + System.nanoTime();
+		BenchmarkVault.create(user, entries);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkVault.delete(user);
+	}
+
+	@Benchmark
+	public EncryptedMap unlock() throws Exception {
+		return new EncryptedMap(user, BenchmarkVault.password);
+	}
+
+	@Benchmark
+	public EncryptedMap unlockSingleThread() throws Exception {
+		return new EncryptedMap(user, BenchmarkVault.password, 1);
+	}
+
+	@Benchmark
+	public EncryptedMap unlockLazy() throws Exception {
+		return new EncryptedMap(user, BenchmarkVault.password,
+			EncryptedMap.defaultLoadThreads, true);
+	}
+
+	@Benchmark
+	public void rotateKeys(Rotation rotation) throws Exception {
+		rotation.map.rotateKeys(BenchmarkVault.password);
+	}
+}
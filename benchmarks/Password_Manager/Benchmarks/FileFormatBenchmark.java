@@ -0,0 +1,72 @@
+package Password_Manager.Benchmarks;
+
+import Password_Manager.*;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @brief Benchmarks of the encoded file format
+ *
+ * Reads and writes files of ```recordCount``` records of 80 bytes, about
+ * the size of an encrypted website or password.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileFormatBenchmark {
+	private static final int recordSize = 80; ///< Size of each record in bytes
+
+	@Param({"10", "1000", "100000"})
+	public int recordCount; ///< Number of records in the file
+
+	private ArrayList<ByteArray> records; ///< The records that are written
+	private String readFilename; ///< File that the read benchmarks read
+	private String writeFilename; ///< File that the write benchmark overwrites
+
+	@Setup
+	public void setup() throws Exception {
+		records = new ArrayList<ByteArray>(recordCount);
+		for (int i = 0; i < recordCount; ++i)
+			records.add(new ByteArray(BenchmarkVault.payload(recordSize)));
+
+		readFilename = File.createTempFile("bench_read", null).getPath();
+		writeFilename = File.createTempFile("bench_write", null).getPath();
+		EncodedFileWriter fileWriter = new EncodedFileWriter(readFilename);
+		fileWriter.writeData(records);
+		fileWriter.close();
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		EncodedFileWriter.deleteFile(readFilename);
+		EncodedFileWriter.deleteFile(writeFilename);
+	}
+
+	@Benchmark
+	public ArrayList<ByteArray> readData() throws Exception {
+		EncodedFileReader fileReader = new EncodedFileReader(readFilename);
+		ArrayList<ByteArray> data = fileReader.readData();
+		fileReader.close();
+		return data;
+	}
+
+	@Benchmark
+	public ArrayList<ByteArray> readDataMapped() throws Exception {
+		MappedEncodedFileReader fileReader = new MappedEncodedFileReader(readFilename);
+		ArrayList<ByteArray> data = fileReader.readData();
+		fileReader.close();
+		return data;
+	}
+
+	@Benchmark
+	public void writeData() throws Exception {
+		EncodedFileWriter fileWriter = new EncodedFileWriter(writeFilename);
+		fileWriter.writeData(records);
+		fileWriter.close();
+	}
+}
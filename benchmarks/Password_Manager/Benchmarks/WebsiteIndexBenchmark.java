@@ -0,0 +1,57 @@
+package Password_Manager.Benchmarks;
+
+import Password_Manager.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * @brief Benchmarks of the website search index
+ *
+ * Searches an index of ```websiteCount``` generated website names, the
+ * way the search box does on each keystroke.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebsiteIndexBenchmark {
+	private static final String[] words = {"mail", "shop", "bank", "news", "login", "cloud", "forum", "games"}; ///< Parts of the generated names
+
+	@Param({"1000", "100000"})
+	public int websiteCount; ///< Number of websites in the index
+
+	private WebsiteIndex index; ///< The index
+
+	/**
+	 * @brief The string searched for, only used by the search benchmark
+	 */
+	@State(Scope.Thread)
+	public static class Query {
+		@Param({"m", "ba", "shop", "ank12"})
+		public String query; ///< The string searched for
+	}
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		ArrayList<String> websites = new ArrayList<String>(websiteCount);
+		for (int i = 0; i < websiteCount; ++i)
+			websites.add(words[random.nextInt(words.length)] + "." + words[random.nextInt(words.length)] + i + ".com");
+		index = new WebsiteIndex(websites);
+	}
+
+	@Benchmark
+	public String search(Query query) {
+		List<String> matches = index.search(query.query);
+		return matches.isEmpty() ? null : matches.get(0);
+	}
+
+	@Benchmark
+	public void addAndRemove() {
+		index.add("new.website.com");
+		index.remove("new.website.com");
+	}
+}
@@ -0,0 +1,37 @@
+#!/bin/sh
+# Builds and runs the JMH benchmarks.
+#
+# Usage: benchmarks/run.sh <jmh_lib_dir> [JMH options]
+#
+# <jmh_lib_dir> must contain jmh-core, jmh-generator-annprocess and their
+# dependencies (jopt-simple, commons-math3). Extra arguments are passed to
+# JMH, e.g. "CryptoBenchmark" to run a single class, or "-p entries=1000".
+# The gc profiler is always enabled, so the results include allocation rates.
+
+if [ -z "$1" ]; then
+	echo "Usage: $0 <jmh_lib_dir> [JMH options]"
+	exit 1
+fi
+
+jmh_lib=$(cd "$1" && pwd)
+jmh_classpath=$(ls "$jmh_lib"/*.jar | tr '\n' ':')
+shift
+bench_dir=$(cd "$(dirname "$0")" && pwd)
+code_path=$(dirname "$bench_dir")
+build_dir="$bench_dir/build"
+
+rm -rf "$build_dir"
+mkdir -p "$build_dir"
+
+# Everything except the UI and its entry point, which need SWT
+find "$code_path/Password_Manager" "$bench_dir/Password_Manager" -name '*.java' \
+	! -path '*/UI/*' ! -name Client.java > "$build_dir/sources.txt"
+javac -cp "$jmh_classpath" -processorpath "$jmh_classpath" -d "$build_dir" \
+	@"$build_dir/sources.txt" || exit 1
+
+# The benchmarks create user files in the working directory
+work_dir=$(mktemp -d)
+cd "$work_dir" && java -cp "$build_dir:$jmh_classpath" org.openjdk.jmh.Main -prof gc "$@"
+status=$?
+rm -rf "$work_dir"
+exit $status